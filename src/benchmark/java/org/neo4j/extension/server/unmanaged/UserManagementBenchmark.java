@@ -0,0 +1,217 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.File;
+import java.net.URI;
+import java.security.Principal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Response;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.neo4j.helpers.Clock;
+import org.neo4j.kernel.logging.DevNullLoggingService;
+import org.neo4j.server.rest.repr.BadInputException;
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.repr.formats.JsonFormat;
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.FileUserRepository;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.server.security.auth.UserRepository;
+import org.neo4j.test.server.EntityOutputFormat;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Benchmarks the user management hot paths, against a real file backed auth store in a temporary
+ * directory and against an in-memory store that hashes passwords but persists nothing.
+ * <p>
+ * Every iteration starts from a fresh auth file, so that later iterations do not pay for the users
+ * created by earlier ones, and nothing is audited.
+ *
+ * @author Robin Bramley
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class UserManagementBenchmark
+{
+    private static final String PAYLOAD = "{ \"password\" : \"secret\" }";
+
+    /** The store behind the AuthManager: "file" or "memory". */
+    @Param( { "file", "memory" } )
+    public String store;
+
+    /** How the extension applies writes: "inline" on the request thread, or "grouping" via group commit. */
+    @Param( { "inline", "grouping" } )
+    public String writes;
+
+    /** Users already in the store when the benchmark starts. */
+    @Param( { "0", "1000" } )
+    public int existingUsers;
+
+    private final AtomicLong ids = new AtomicLong();
+    private final JsonFormat input = new JsonFormat();
+    private File directory;
+    private FileUserRepository repository;
+    private AuthManager authManager;
+    private UserManagementContext context;
+    private UserAddService userAddService;
+    private UserDeleteService userDeleteService;
+    private HttpServletRequest req;
+
+    @Setup( Level.Iteration )
+    public void setUp() throws Throwable
+    {
+        directory = File.createTempFile( "useradd-benchmark", "" );
+        directory.delete();
+        directory.mkdirs();
+        File authFile = new File( directory, "auth" );
+        if ( "file".equals( store ) )
+        {
+            repository = new FileUserRepository( authFile.toPath(), new DevNullLoggingService() );
+            repository.start();
+            authManager = new AuthManager( repository, Clock.SYSTEM_CLOCK, true );
+        } else
+        {
+            authManager = new AuthManager( mock( UserRepository.class ), Clock.SYSTEM_CLOCK, true )
+            {
+                @Override
+                public User newUser( String username, String initialPassword, boolean requirePasswordChange )
+                {
+                    return new User( username, Credential.forPassword( initialPassword ), requirePasswordChange );
+                }
+
+                @Override
+                public boolean deleteUser( String username )
+                {
+                    return true;
+                }
+            };
+        }
+        authManager.start();
+        for ( int i = 0; i < existingUsers; i++ )
+        {
+            authManager.newUser( "existing" + i, "secret", false );
+        }
+
+        if ( !"grouping".equals( writes ) )
+        {
+            context = UserManagementContext.inline();
+        } else if ( repository != null )
+        {
+            BaseConfiguration config = new BaseConfiguration();
+            config.setProperty( UserManagementSettings.AUTH_STORE, authFile.getPath() );
+            config.setProperty( UserManagementSettings.STORE, "auth" );
+            config.setProperty( UserManagementSettings.STORE_DIRECTORY, directory.getPath() );
+            config.setProperty( UserManagementSettings.AUDIT_ENABLED, false );
+            config.setProperty( UserManagementSettings.AUDIT_DIRECTORY, directory.getPath() );
+            context = UserManagementContext.create( new UserManagementSettings( config ) );
+        } else
+        {
+            // Without a store of its own, the extension writes through the in-memory AuthManager
+            context = new UserManagementContext( UserWriteCoalescer.grouping( 2, 256,
+                    PasswordHashingExecutor.bounded( Runtime.getRuntime().availableProcessors(), 1024, 1 ), 30000 ),
+                    new UsernameIndex() );
+        }
+        context.start();
+
+        Principal neo4j = new Principal()
+        {
+            @Override
+            public String getName()
+            {
+                return UserAddService.NEO4J_USER;
+            }
+        };
+        req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( neo4j );
+
+        OutputFormat output = new EntityOutputFormat( input, new URI( "http://localhost:7474" ), null );
+        userAddService = new UserAddService( authManager, input, output, context );
+        userDeleteService = new UserDeleteService( authManager, output, context );
+    }
+
+    @TearDown( Level.Iteration )
+    public void tearDown() throws Throwable
+    {
+        context.stop();
+        authManager.stop();
+        if ( repository != null )
+        {
+            repository.stop();
+            repository = null;
+        }
+        for ( File file : directory.listFiles() )
+        {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public Response createUser()
+    {
+        return userAddService.createUser( "user" + ids.incrementAndGet(), req, PAYLOAD );
+    }
+
+    @Benchmark
+    public Response createAndDeleteUser()
+    {
+        String username = "user" + ids.incrementAndGet();
+        userAddService.createUser( username, req, PAYLOAD );
+        return userDeleteService.deleteUser( username, req );
+    }
+
+    @Benchmark
+    public Object parsePayload() throws BadInputException
+    {
+        return input.readMap( PAYLOAD );
+    }
+
+    @Benchmark
+    @Threads( 8 )
+    public Response contendedCreateUser()
+    {
+        return userAddService.createUser( "user" + ids.incrementAndGet(), req, PAYLOAD );
+    }
+}
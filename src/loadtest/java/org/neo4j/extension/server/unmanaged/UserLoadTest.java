@@ -0,0 +1,376 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.jersey.core.util.Base64;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import org.neo4j.harness.ServerControls;
+import org.neo4j.harness.TestServerBuilder;
+import org.neo4j.harness.TestServerBuilders;
+
+/**
+ * Drives a mix of concurrent user additions and deletions over HTTP against an in-process server with
+ * the extension mounted and authentication enabled, so that every request pays for Basic authentication,
+ * password hashing and the auth store as it would in production. For each number of existing users a
+ * fresh server is started and seeded, and then each client concurrency is run in turn.
+ * <p>
+ * Throughput, latency percentiles and error rates for each step are printed as a table and written as JSON.
+ * Run with <code>mvn -Ploadtest verify</code>; the settings are the <code>loadtest.*</code> properties in the pom.
+ *
+ * @author Robin Bramley
+ */
+public class UserLoadTest
+{
+    public static final String MOUNT_POINT = "/unmanaged";
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final String PASSWORD = "loadtest";
+    private static final String PAYLOAD = "{ \"password\" : \"secret\" }";
+    private static final int SEED_BATCH_SIZE = 1000;
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+    private static final String[] QUANTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+    private final String store;
+    private final double addRatio;
+    private final long warmupMillis;
+    private final long durationMillis;
+
+    private URI base;
+    private String authorization;
+    private final AtomicLong ids = new AtomicLong();
+    private final Queue<String> created = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param store the extension's user store: "server" for none, "auth", "journal" or "mapped"
+     * @param addRatio the fraction of operations that add a user, the rest deleting one added earlier
+     */
+    UserLoadTest( String store, double addRatio, long warmupMillis, long durationMillis )
+    {
+        this.store = store;
+        this.addRatio = addRatio;
+        this.warmupMillis = warmupMillis;
+        this.durationMillis = durationMillis;
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        UserLoadTest loadTest = new UserLoadTest( System.getProperty( "loadtest.store", "server" ),
+                Double.parseDouble( System.getProperty( "loadtest.add_ratio", "0.5" ) ),
+                TimeUnit.SECONDS.toMillis( Long.getLong( "loadtest.warmup_seconds", 2 ) ),
+                TimeUnit.SECONDS.toMillis( Long.getLong( "loadtest.seconds", 10 ) ) );
+
+        List<Map<String, Object>> steps = new ArrayList<>();
+        for ( int users : integers( System.getProperty( "loadtest.users", "0,10000,100000" ) ) )
+        {
+            steps.addAll( loadTest.run( users, integers( System.getProperty( "loadtest.concurrency", "1,4,16,64" ) ) ) );
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put( "store", loadTest.store );
+        report.put( "add_ratio", loadTest.addRatio );
+        report.put( "seconds", TimeUnit.MILLISECONDS.toSeconds( loadTest.durationMillis ) );
+        report.put( "steps", steps );
+        File reportFile = new File( System.getProperty( "loadtest.report", "target/loadtest-report.json" ) );
+        reportFile.getParentFile().mkdirs();
+        mapper.writerWithDefaultPrettyPrinter().writeValue( reportFile, report );
+        System.out.println( "Report written to " + reportFile );
+    }
+
+    /**
+     * Start a server seeded with the users, and run each concurrency against it.
+     */
+    List<Map<String, Object>> run( int users, int[] concurrencies ) throws Exception
+    {
+        File directory = File.createTempFile( "useradd-loadtest", "" );
+        directory.delete();
+        directory.mkdirs();
+        created.clear();
+        TestServerBuilder builder = TestServerBuilders.newInProcessBuilder( directory )
+                .withConfig( "dbms.security.auth_enabled", "true" )
+                .withConfig( UserManagementSettings.AUTH_STORE, new File( directory, "auth" ).getAbsolutePath() )
+                .withConfig( UserManagementSettings.STORE_DIRECTORY, new File( directory, "useradd" ).getAbsolutePath() )
+                .withConfig( UserManagementSettings.AUDIT_DIRECTORY, new File( directory, "audit" ).getAbsolutePath() )
+                .withExtension( MOUNT_POINT, UserLoadTest.class.getPackage().getName() );
+        if ( !"server".equals( store ) )
+        {
+            builder = builder.withConfig( UserManagementSettings.STORE, store );
+        }
+        ServerControls server = builder.newServer();
+        List<Map<String, Object>> steps = new ArrayList<>();
+        try
+        {
+            base = server.httpURI();
+            changeInitialPassword();
+            seed( users );
+            System.out.println( String.format( "%-10s %-12s %-10s %-12s %-10s %-10s %-10s %-10s",
+                    "users", "concurrency", "ops", "ops/s", "errors", "p50 ms", "p99 ms", "p999 ms" ) );
+            for ( int concurrency : concurrencies )
+            {
+                runFor( concurrency, warmupMillis, null );
+                Step step = new Step();
+                long elapsed = runFor( concurrency, durationMillis, step );
+                Map<String, Object> result = step.toMap( users, concurrency, elapsed );
+                steps.add( result );
+                System.out.println( String.format( "%-10d %-12d %-10d %-12.1f %-10.4f %-10.2f %-10.2f %-10.2f",
+                        users, concurrency, step.total.count(), result.get( "throughput_per_second" ),
+                        result.get( "error_rate" ), step.total.percentileMicros( 0.5 ) / 1000.0,
+                        step.total.percentileMicros( 0.99 ) / 1000.0, step.total.percentileMicros( 0.999 ) / 1000.0 ) );
+            }
+        } finally
+        {
+            server.close();
+        }
+        return steps;
+    }
+
+    /**
+     * Run the clients for a while.
+     *
+     * @param step where to record the operations, or null to discard them
+     * @return how long the clients ran for, in nanoseconds
+     */
+    private long runFor( int concurrency, long millis, final Step step ) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( millis );
+        final CountDownLatch done = new CountDownLatch( concurrency );
+        long start = System.nanoTime();
+        for ( int i = 0; i < concurrency; i++ )
+        {
+            Thread client = new Thread( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        while ( System.nanoTime() < deadline )
+                        {
+                            operate( step );
+                        }
+                    } finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }, "useradd-loadtest-client-" + i );
+            client.setDaemon( true );
+            client.start();
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+    private void operate( Step step )
+    {
+        String username = ThreadLocalRandom.current().nextDouble() < addRatio ? null : created.poll();
+        boolean add = username == null;
+        if ( add )
+        {
+            username = "load" + ids.incrementAndGet();
+        }
+
+        long start = System.nanoTime();
+        int status;
+        try
+        {
+            status = add ? request( "POST", MOUNT_POINT + "/useradd/" + username, PAYLOAD )
+                    : request( "GET", MOUNT_POINT + "/userdel/" + username, null );
+        } catch ( IOException e )
+        {
+            status = -1;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        boolean succeeded = status >= 200 && status < 300;
+        if ( add && succeeded )
+        {
+            created.add( username );
+        }
+        if ( step != null )
+        {
+            step.record( add, succeeded, elapsed );
+        }
+    }
+
+    /**
+     * Give the neo4j user a password of its own, as the server refuses everything else until it has one.
+     */
+    private void changeInitialPassword() throws IOException
+    {
+        authorization = basic( "neo4j", "neo4j" );
+        int status = request( "POST", "/user/neo4j/password", "{ \"password\" : \"" + PASSWORD + "\" }" );
+        if ( status != 200 )
+        {
+            throw new IOException( "Unable to set the neo4j password, status " + status );
+        }
+        authorization = basic( "neo4j", PASSWORD );
+    }
+
+    private void seed( int users ) throws IOException
+    {
+        for ( int seeded = 0; seeded < users; seeded += SEED_BATCH_SIZE )
+        {
+            List<Map<String, Object>> batch = new ArrayList<>();
+            for ( int i = seeded; i < Math.min( users, seeded + SEED_BATCH_SIZE ); i++ )
+            {
+                Map<String, Object> user = new LinkedHashMap<>();
+                user.put( "username", "seed" + i );
+                user.put( "password", "secret" );
+                batch.add( user );
+            }
+            int status = request( "POST", MOUNT_POINT + "/useradd", mapper.writeValueAsString( batch ) );
+            if ( status != 200 )
+            {
+                throw new IOException( "Unable to seed users, status " + status );
+            }
+        }
+    }
+
+    /**
+     * Make a request on a connection kept alive for reuse, reading the whole response so that it can be.
+     *
+     * @return the response status
+     */
+    private int request( String method, String path, String body ) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL( base.resolve( path ).toString() ).openConnection();
+        connection.setRequestMethod( method );
+        connection.setRequestProperty( "Authorization", authorization );
+        connection.setRequestProperty( "Accept", "application/json" );
+        if ( body != null )
+        {
+            connection.setDoOutput( true );
+            connection.setRequestProperty( "Content-Type", "application/json" );
+            try ( OutputStream out = connection.getOutputStream() )
+            {
+                out.write( body.getBytes( UTF8 ) );
+            }
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if ( in != null )
+        {
+            try ( InputStream response = in )
+            {
+                byte[] buffer = new byte[8192];
+                while ( response.read( buffer ) >= 0 )
+                {
+                    // Discard it
+                }
+            }
+        }
+        return status;
+    }
+
+    private static String basic( String username, String password )
+    {
+        return "Basic " + new String( Base64.encode( (username + ":" + password).getBytes( UTF8 ) ), UTF8 );
+    }
+
+    private static int[] integers( String list )
+    {
+        String[] values = list.split( "," );
+        int[] integers = new int[values.length];
+        for ( int i = 0; i < values.length; i++ )
+        {
+            integers[i] = Integer.parseInt( values[i].trim() );
+        }
+        return integers;
+    }
+
+    /**
+     * The operations recorded in one step, by kind and outcome.
+     */
+    private static class Step
+    {
+        private final LatencyHistogram total = new LatencyHistogram();
+        private final LatencyHistogram adds = new LatencyHistogram();
+        private final LatencyHistogram deletes = new LatencyHistogram();
+        private final AtomicLong addErrors = new AtomicLong();
+        private final AtomicLong deleteErrors = new AtomicLong();
+
+        void record( boolean add, boolean succeeded, long nanos )
+        {
+            total.record( nanos );
+            (add ? adds : deletes).record( nanos );
+            if ( !succeeded )
+            {
+                (add ? addErrors : deleteErrors).incrementAndGet();
+            }
+        }
+
+        Map<String, Object> toMap( int users, int concurrency, long elapsedNanos )
+        {
+            long operations = total.count();
+            long errors = addErrors.get() + deleteErrors.get();
+            Map<String, Object> step = new LinkedHashMap<>();
+            step.put( "users", users );
+            step.put( "concurrency", concurrency );
+            step.put( "operations", operations );
+            step.put( "throughput_per_second", operations / (elapsedNanos / 1e9) );
+            step.put( "error_rate", operations == 0 ? 0.0 : (double) errors / operations );
+            step.put( "latency", latency( total ) );
+            step.put( "add", operation( adds, addErrors.get() ) );
+            step.put( "delete", operation( deletes, deleteErrors.get() ) );
+            return step;
+        }
+
+        private static Map<String, Object> operation( LatencyHistogram histogram, long errors )
+        {
+            Map<String, Object> operation = new LinkedHashMap<>();
+            operation.put( "count", histogram.count() );
+            operation.put( "errors", errors );
+            operation.put( "error_rate", histogram.count() == 0 ? 0.0 : (double) errors / histogram.count() );
+            operation.put( "latency", latency( histogram ) );
+            return operation;
+        }
+
+        private static Map<String, Object> latency( LatencyHistogram histogram )
+        {
+            Map<String, Object> latency = new LinkedHashMap<>();
+            for ( int i = 0; i < QUANTILES.length; i++ )
+            {
+                latency.put( QUANTILE_NAMES[i] + "_micros", histogram.percentileMicros( QUANTILES[i] ) );
+            }
+            return latency;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.security.Principal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Response;
+
+/**
+ * Limits the rate at which each principal, and each client address, may call the user management
+ * endpoints, so that one client cannot monopolise password hashing. Buckets are created on first use,
+ * and once there are more than the configured number of them the least recently used is forgotten.
+ *
+ * @author Robin Bramley
+ */
+class AdmissionControl
+{
+    /**
+     * JAX-RS 1.1 predates 429, so it has no constant for it.
+     */
+    public static final Response.StatusType TOO_MANY_REQUESTS = new Response.StatusType()
+    {
+        @Override
+        public int getStatusCode()
+        {
+            return 429;
+        }
+
+        @Override
+        public Response.Status.Family getFamily()
+        {
+            return Response.Status.Family.CLIENT_ERROR;
+        }
+
+        @Override
+        public String getReasonPhrase()
+        {
+            return "Too Many Requests";
+        }
+    };
+
+    private final Limit principals;
+    private final Limit addresses;
+
+    /**
+     * @param principalRate requests per second allowed for each principal, or 0 for no limit
+     * @param addressRate requests per second allowed from each client address, or 0 for no limit
+     * @param maxBuckets the number of buckets kept before the least recently used are forgotten
+     */
+    AdmissionControl( double principalRate, int principalBurst, double addressRate, int addressBurst, int maxBuckets )
+    {
+        this.principals = principalRate > 0 ? new Limit( principalRate, principalBurst, maxBuckets ) : null;
+        this.addresses = addressRate > 0 ? new Limit( addressRate, addressBurst, maxBuckets ) : null;
+    }
+
+    static AdmissionControl unlimited()
+    {
+        return new AdmissionControl( 0, 0, 0, 0, 0 );
+    }
+
+    /**
+     * Take a token for the request's client address and principal, but only if both have one, so that a
+     * request refused by one limit does not use up the other.
+     *
+     * @return 0 if the request is admitted, otherwise how many seconds the client should wait before retrying
+     */
+    int admit( HttpServletRequest req )
+    {
+        return admit( req, 1 );
+    }
+
+    /**
+     * @return the most entries a single request may be admitted with, the smaller of the bursts in force
+     */
+    int maxEntries()
+    {
+        int max = Integer.MAX_VALUE;
+        if ( principals != null )
+        {
+            max = Math.min( max, Math.max( 1, principals.burst ) );
+        }
+        if ( addresses != null )
+        {
+            max = Math.min( max, Math.max( 1, addresses.burst ) );
+        }
+        return max;
+    }
+
+    /**
+     * Take a token for each entry of a request, as each may cost a password hash.
+     *
+     * @return 0 if the request is admitted, otherwise how many seconds the client should wait before retrying
+     * @throws IllegalArgumentException if the request has more than {@link #maxEntries()}, which it could never
+     * be admitted with
+     */
+    int admit( HttpServletRequest req, int entries )
+    {
+        long wait = tryAdmit( address( req ), principal( req ), entries );
+        return wait == 0 ? 0 : (int) Math.max( 1, TimeUnit.NANOSECONDS.toSeconds( wait + TimeUnit.SECONDS.toNanos( 1 ) - 1 ) );
+    }
+
+    /**
+     * Take a token for each entry of a request that has already been admitted, waiting for them rather than
+     * refusing, for entries found only as a streamed request is read. More entries than a burst are taken
+     * a burst at a time.
+     */
+    void await( HttpServletRequest req, int entries ) throws InterruptedException
+    {
+        TokenBucket address = address( req );
+        TokenBucket user = principal( req );
+        int max = maxEntries();
+        for ( int remaining = entries; remaining > 0; remaining -= max )
+        {
+            int tokens = Math.min( remaining, max );
+            long wait;
+            while ( (wait = tryAdmit( address, user, tokens )) > 0 )
+            {
+                TimeUnit.NANOSECONDS.sleep( wait );
+            }
+        }
+    }
+
+    /**
+     * @return 0 if the tokens were taken from both buckets, otherwise how many nanoseconds until they can be
+     */
+    private static long tryAdmit( TokenBucket address, TokenBucket user, int tokens )
+    {
+        long wait = Math.max( address == null ? 0 : address.available( tokens ), user == null ? 0 : user.available( tokens ) );
+        if ( wait == 0 && address != null )
+        {
+            wait = address.tryAcquire( tokens );
+        }
+        if ( wait == 0 && user != null )
+        {
+            // Another request may have taken the principal's last token since it was checked
+            wait = user.tryAcquire( tokens );
+            if ( wait > 0 && address != null )
+            {
+                address.refund( tokens );
+            }
+        }
+        return wait;
+    }
+
+    private TokenBucket address( HttpServletRequest req )
+    {
+        return addresses == null || req.getRemoteAddr() == null ? null : addresses.bucket( req.getRemoteAddr() );
+    }
+
+    private TokenBucket principal( HttpServletRequest req )
+    {
+        Principal principal = req.getUserPrincipal();
+        return principals == null || principal == null ? null : principals.bucket( principal.getName() );
+    }
+
+    private static class Limit
+    {
+        private final double rate;
+        private final int burst;
+
+        // Guarded by this, and in access order so the least recently used bucket is forgotten first
+        private final Map<String, TokenBucket> buckets;
+
+        Limit( double rate, int burst, final int maxBuckets )
+        {
+            this.rate = rate;
+            this.burst = burst;
+            this.buckets = new LinkedHashMap<String, TokenBucket>( 16, 0.75f, true )
+            {
+                @Override
+                protected boolean removeEldestEntry( Map.Entry<String, TokenBucket> eldest )
+                {
+                    return size() > Math.max( 1, maxBuckets );
+                }
+            };
+        }
+
+        synchronized TokenBucket bucket( String key )
+        {
+            TokenBucket bucket = buckets.get( key );
+            if ( bucket == null )
+            {
+                bucket = new TokenBucket( rate, burst );
+                buckets.put( key, bucket );
+            }
+            return bucket;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An audit trail of user mutations, written off the request path.
+ * <p>
+ * Requests publish one record per mutation into a bounded ring buffer, claiming a slot with a single
+ * compare-and-set, and a writer thread drains it in batches into newline delimited JSON files. The writer
+ * parks while the buffer is empty and is woken by the next publisher. Files are rotated once they reach a
+ * size, optionally gzipped, and only the most recent are kept. When the buffer is full a record is either
+ * dropped and counted, or its publisher waits for room, as configured.
+ * <p>
+ * Only requests that change a user are audited; requests turned away, refused or for users that do not
+ * exist are left to the metrics.
+ *
+ * @author Robin Bramley
+ */
+class AuditLog implements Runnable
+{
+    private static final Logger logger = LoggerFactory.getLogger( AuditLog.class );
+
+    public static final String TIMESTAMP = "timestamp";
+    public static final String ACTION = "action";
+    public static final String ACTOR = "actor";
+    public static final String TARGET = "target";
+    public static final String OUTCOME = "outcome";
+    public static final String LATENCY_MICROS = "latency_micros";
+
+    private static final Pattern FILE = Pattern.compile( "audit\\.(\\d+)\\.log(\\.gz)?" );
+    private static final JsonFactory factory = new JsonFactory();
+    private static final int BATCH_SIZE = 1024;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos( 1 );
+
+    private final AtomicReferenceArray<Record> ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // Only advanced by the writer
+    private volatile long head;
+
+    private final File directory;
+    private final boolean blockWhenFull;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final boolean compress;
+    private volatile boolean running;
+    // Set by the writer while it is parked or about to park, so publishers know to wake it
+    private volatile boolean parked;
+    private Thread writer;
+
+    // Owned by the writer thread
+    private final TreeMap<Long, File> files = new TreeMap<>();
+    private OutputStream out;
+    private long fileBytes;
+
+    /**
+     * @param bufferSize the number of records the buffer holds, rounded up to a power of two
+     * @param blockWhenFull whether a publisher waits for room rather than dropping its record
+     * @param maxFileBytes the size at which a file is rotated, before compression
+     * @param maxFiles the number of files kept, including the current one
+     */
+    AuditLog( File directory, int bufferSize, boolean blockWhenFull, long maxFileBytes, int maxFiles, boolean compress )
+    {
+        int capacity = Integer.highestOneBit( Math.max( 2, bufferSize ) - 1 ) << 1;
+        this.ring = new AtomicReferenceArray<>( capacity );
+        this.mask = capacity - 1;
+        this.directory = directory;
+        this.blockWhenFull = blockWhenFull;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = Math.max( 1, maxFiles );
+        this.compress = compress;
+    }
+
+    private AuditLog()
+    {
+        this.ring = null;
+        this.mask = 0;
+        this.directory = null;
+        this.blockWhenFull = false;
+        this.maxFileBytes = 0;
+        this.maxFiles = 0;
+        this.compress = false;
+    }
+
+    /**
+     * @return an audit log that records nothing
+     */
+    static AuditLog disabled()
+    {
+        return new AuditLog();
+    }
+
+    /**
+     * Publish a record of a mutation, without waiting for it to be written.
+     *
+     * @param outcome the HTTP status, or the per-user status in a batch
+     */
+    void record( String action, String actor, String target, String outcome, long latencyNanos )
+    {
+        if ( ring == null )
+        {
+            return;
+        }
+        Record record = new Record( System.currentTimeMillis(), action, actor, target, outcome, latencyNanos );
+        while ( true )
+        {
+            long claim = tail.get();
+            if ( claim - head > mask )
+            {
+                if ( !blockWhenFull || !running )
+                {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                LockSupport.parkNanos( PARK_NANOS );
+                continue;
+            }
+            if ( tail.compareAndSet( claim, claim + 1 ) )
+            {
+                ring.lazySet( (int) claim & mask, record );
+                if ( parked )
+                {
+                    LockSupport.unpark( writer );
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return whether a request that ended with the status changed a user, and so is to be audited
+     */
+    static boolean mutated( int status )
+    {
+        return status >= 200 && status < 300;
+    }
+
+    /**
+     * @return the name of the principal making the request, or null if there is none
+     */
+    static String actor( HttpServletRequest req )
+    {
+        Principal principal = req.getUserPrincipal();
+        return principal == null ? null : principal.getName();
+    }
+
+    /**
+     * @return the number of records dropped because the buffer was full
+     */
+    long dropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of records dropped, in the Prometheus text exposition format
+     */
+    String toPrometheus()
+    {
+        if ( ring == null )
+        {
+            return "";
+        }
+        return "# HELP useradd_audit_dropped_total Audit records dropped because the buffer was full.\n"
+                + "# TYPE useradd_audit_dropped_total counter\n"
+                + "useradd_audit_dropped_total " + dropped() + '\n';
+    }
+
+    synchronized void start()
+    {
+        if ( ring == null || running )
+        {
+            return;
+        }
+        directory.mkdirs();
+        File[] existing = directory.listFiles();
+        if ( existing != null )
+        {
+            for ( File file : existing )
+            {
+                Matcher matcher = FILE.matcher( file.getName() );
+                if ( matcher.matches() )
+                {
+                    files.put( Long.parseLong( matcher.group( 1 ) ), file );
+                }
+            }
+        }
+        writer = new Thread( this, "useradd-audit" );
+        writer.setDaemon( true );
+        running = true;
+        writer.start();
+    }
+
+    synchronized void stop() throws InterruptedException
+    {
+        if ( running )
+        {
+            running = false;
+            LockSupport.unpark( writer );
+            writer.join();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        List<Record> batch = new ArrayList<>( BATCH_SIZE );
+        while ( running || tail.get() != head )
+        {
+            drain( batch );
+            if ( batch.isEmpty() )
+            {
+                park();
+                continue;
+            }
+            try
+            {
+                write( batch );
+            } catch ( IOException e )
+            {
+                logger.warn( "Unable to write {} audit records", batch.size(), e );
+                close();
+            }
+            batch.clear();
+        }
+        close();
+    }
+
+    /**
+     * Wait for a publisher, unless one has claimed a slot since the buffer was drained. A record claimed
+     * but not yet published is only moments away, so the writer yields to it rather than park.
+     */
+    private void park()
+    {
+        parked = true;
+        if ( tail.get() == head )
+        {
+            LockSupport.park( this );
+        } else
+        {
+            Thread.yield();
+        }
+        parked = false;
+    }
+
+    private void drain( List<Record> batch )
+    {
+        long next = head;
+        while ( batch.size() < BATCH_SIZE && next != tail.get() )
+        {
+            int slot = (int) next & mask;
+            Record record = ring.get( slot );
+            if ( record == null )
+            {
+                // Claimed but not yet published
+                break;
+            }
+            ring.set( slot, null );
+            batch.add( record );
+            next++;
+            head = next;
+        }
+    }
+
+    private void write( List<Record> batch ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( batch.size() * 128 );
+        JsonGenerator generator = factory.createJsonGenerator( bytes, JsonEncoding.UTF8 );
+        for ( Record record : batch )
+        {
+            generator.writeStartObject();
+            generator.writeNumberField( TIMESTAMP, record.timestamp );
+            generator.writeStringField( ACTION, record.action );
+            generator.writeStringField( ACTOR, record.actor );
+            generator.writeStringField( TARGET, record.target );
+            generator.writeStringField( OUTCOME, record.outcome );
+            generator.writeNumberField( LATENCY_MICROS, TimeUnit.NANOSECONDS.toMicros( record.latencyNanos ) );
+            generator.writeEndObject();
+            generator.writeRaw( '\n' );
+        }
+        generator.close();
+
+        if ( out == null || fileBytes >= maxFileBytes )
+        {
+            rotate();
+        }
+        bytes.writeTo( out );
+        out.flush();
+        fileBytes += bytes.size();
+    }
+
+    private void rotate() throws IOException
+    {
+        close();
+        long generation = files.isEmpty() ? 0 : files.lastKey() + 1;
+        File file = new File( directory, "audit." + generation + ".log" + (compress ? ".gz" : "") );
+        OutputStream stream = new BufferedOutputStream( new FileOutputStream( file ) );
+        out = compress ? new GZIPOutputStream( stream, true ) : stream;
+        fileBytes = 0;
+        files.put( generation, file );
+        while ( files.size() > maxFiles )
+        {
+            File oldest = files.pollFirstEntry().getValue();
+            if ( !oldest.delete() )
+            {
+                logger.warn( "Unable to delete audit file {}", oldest );
+            }
+        }
+    }
+
+    private void close()
+    {
+        if ( out != null )
+        {
+            try
+            {
+                out.close();
+            } catch ( IOException e )
+            {
+                logger.warn( "Unable to close audit file", e );
+            }
+            out = null;
+        }
+    }
+
+    private static class Record
+    {
+        private final long timestamp;
+        private final String action;
+        private final String actor;
+        private final String target;
+        private final String outcome;
+        private final long latencyNanos;
+
+        Record( long timestamp, String action, String actor, String target, String outcome, long latencyNanos )
+        {
+            this.timestamp = timestamp;
+            this.action = action;
+            this.actor = actor;
+            this.target = target;
+            this.outcome = outcome;
+            this.latencyNanos = latencyNanos;
+        }
+    }
+}
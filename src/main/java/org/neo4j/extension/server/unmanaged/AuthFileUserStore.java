@@ -0,0 +1,291 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.neo4j.kernel.lifecycle.LifecycleAdapter;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.server.security.auth.exception.ConcurrentModificationException;
+import org.neo4j.server.security.auth.exception.IllegalUsernameException;
+
+/**
+ * The server's auth file as a user store. Like the server's own repository the whole file is rewritten
+ * and atomically moved into place on every change, but a group of writes costs a single rewrite.
+ * <p>
+ * The users are held in an immutable map, replaced once the file has been written, so that readers
+ * never wait and a failed rewrite leaves the users as they were on disk.
+ *
+ * @author Robin Bramley
+ */
+class AuthFileUserStore extends LifecycleAdapter implements UserStore
+{
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private final File file;
+    private volatile Map<String, User> users = Collections.emptyMap();
+    private volatile Listener listener = Listener.NONE;
+
+    AuthFileUserStore( File file )
+    {
+        this.file = file;
+    }
+
+    @Override
+    public void start() throws Throwable
+    {
+        reload();
+    }
+
+    /**
+     * Read the file again, to pick up changes the server made to it before the store was put behind its AuthManager.
+     */
+    synchronized void reload() throws IOException
+    {
+        Map<String, User> loaded = new HashMap<>();
+        if ( file.exists() )
+        {
+            for ( User user : read( file ) )
+            {
+                loaded.put( user.name(), user );
+            }
+        }
+        users = Collections.unmodifiableMap( loaded );
+    }
+
+    /**
+     * The server replaces its auth file rather than rewriting it in place, so once the file is open
+     * it holds a consistent set of users however many are written meanwhile.
+     */
+    static List<User> read( File authFile ) throws IOException
+    {
+        List<User> users = new ArrayList<>();
+        try ( FileChannel channel = FileChannel.open( authFile.toPath(), StandardOpenOption.READ );
+              BufferedReader reader = new BufferedReader( Channels.newReader( channel, UTF8.newDecoder(), 1 << 16 ) ) )
+        {
+            String line;
+            while ( (line = reader.readLine()) != null )
+            {
+                if ( line.trim().length() > 0 )
+                {
+                    users.add( JournalUserRepository.deserialize( line ) );
+                }
+            }
+        }
+        return users;
+    }
+
+    @Override
+    public User findByName( String name )
+    {
+        return users.get( name );
+    }
+
+    @Override
+    public synchronized void create( User user ) throws IllegalUsernameException, IOException
+    {
+        if ( !isValidName( user.name() ) )
+        {
+            throw new IllegalUsernameException( "'" + user.name() + "' is not a valid user name." );
+        }
+        if ( !write( Collections.singletonList( Write.create( user ) ) )[0] )
+        {
+            throw new IllegalUsernameException( "The specified user already exists" );
+        }
+        listener.created( user );
+    }
+
+    @Override
+    public synchronized void update( User existingUser, User updatedUser )
+            throws ConcurrentModificationException, IOException
+    {
+        if ( users.get( existingUser.name() ) != existingUser )
+        {
+            throw new ConcurrentModificationException();
+        }
+        write( Collections.singletonList( Write.replace( updatedUser ) ) );
+        listener.updated( updatedUser );
+    }
+
+    @Override
+    public synchronized boolean delete( User user ) throws IOException
+    {
+        if ( !write( Collections.singletonList( Write.delete( user.name() ) ) )[0] )
+        {
+            return false;
+        }
+        listener.deleted( user.name() );
+        return true;
+    }
+
+    @Override
+    public Set<String> replaceAll( Collection<User> updated ) throws IOException
+    {
+        List<Write> writes = new ArrayList<>( updated.size() );
+        for ( User user : updated )
+        {
+            writes.add( Write.replace( user ) );
+        }
+        boolean[] replaced = write( writes );
+        Set<String> missing = new HashSet<>();
+        for ( int i = 0; i < replaced.length; i++ )
+        {
+            if ( !replaced[i] )
+            {
+                missing.add( writes.get( i ).username() );
+            }
+        }
+        return missing;
+    }
+
+    @Override
+    public Set<String> putAll( Collection<User> restored ) throws IOException
+    {
+        List<Write> writes = new ArrayList<>( restored.size() );
+        for ( User user : restored )
+        {
+            writes.add( Write.put( user ) );
+        }
+        boolean[] created = write( writes );
+        Set<String> names = new HashSet<>();
+        for ( int i = 0; i < created.length; i++ )
+        {
+            if ( created[i] )
+            {
+                names.add( writes.get( i ).username() );
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public synchronized boolean[] write( List<Write> writes ) throws IOException
+    {
+        Map<String, User> updated = new HashMap<>( users );
+        boolean[] expected = new boolean[writes.size()];
+        boolean changed = false;
+        for ( int i = 0; i < writes.size(); i++ )
+        {
+            Write write = writes.get( i );
+            boolean exists = updated.containsKey( write.username() );
+            expected[i] = write.expected( exists );
+            if ( !write.applies( exists ) )
+            {
+                continue;
+            }
+            if ( write.user() == null )
+            {
+                updated.remove( write.username() );
+            } else
+            {
+                updated.put( write.username(), write.user() );
+            }
+            changed = true;
+        }
+        if ( changed )
+        {
+            save( updated.values() );
+            users = Collections.unmodifiableMap( updated );
+        }
+        return expected;
+    }
+
+    private void save( Collection<User> all ) throws IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        File temporary = new File( parent, file.getName() + ".tmp" );
+        try ( FileOutputStream out = new FileOutputStream( temporary );
+              Writer writer = new BufferedWriter( new OutputStreamWriter( out, UTF8 ), 1 << 16 ) )
+        {
+            for ( User user : all )
+            {
+                writer.write( JournalUserRepository.serialize( user ) );
+                writer.write( '\n' );
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        Files.move( temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+
+    /**
+     * The map is replaced rather than changed, so this is a point in time snapshot without copying.
+     */
+    @Override
+    public Iterable<User> snapshot()
+    {
+        return users.values();
+    }
+
+    @Override
+    public void listen( Listener listener )
+    {
+        this.listener = listener;
+    }
+
+    @Override
+    public Iterable<User> users()
+    {
+        return users.values();
+    }
+
+    @Override
+    public Map<String, Boolean> usernames()
+    {
+        Map<String, Boolean> usernames = new HashMap<>();
+        for ( User user : users.values() )
+        {
+            usernames.put( user.name(), user.passwordChangeRequired() );
+        }
+        return usernames;
+    }
+
+    @Override
+    public int numberOfUsers()
+    {
+        return users.size();
+    }
+
+    @Override
+    public boolean isValidName( String name )
+    {
+        return name.matches( "^[a-zA-Z0-9_]+$" );
+    }
+}
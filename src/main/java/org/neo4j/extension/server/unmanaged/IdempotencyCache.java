@@ -0,0 +1,305 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Principal;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+
+import org.neo4j.kernel.api.exceptions.Status;
+import org.neo4j.server.rest.repr.ExceptionRepresentation;
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.transactional.error.Neo4jError;
+
+import static org.neo4j.server.rest.web.CustomStatusType.UNPROCESSABLE;
+
+/**
+ * Remembers the responses to requests carrying an <code>Idempotency-Key</code>, so that a retry
+ * gets the original response instead of repeating the work. A retry that arrives while the original
+ * is still in progress waits for it. The cache is bounded in size, evicting the oldest entries, and
+ * in time; server errors are not remembered, so that they can be retried.
+ * <p>
+ * A digest of the request body is remembered with the response, and a request that reuses a key with a
+ * different body is refused with 422 rather than answered with a response to something it did not ask.
+ * Responses are remembered by status, headers and entity, and each request is given a response of its own.
+ * <p>
+ * The exception is a write that timed out, which may yet be applied. Its response is remembered until
+ * the write has been settled, and from then on a retry gets the response the write settled on instead,
+ * unless that too is a server error.
+ *
+ * @author Robin Bramley
+ */
+class IdempotencyCache
+{
+    public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private final long ttlMillis;
+
+    // Guarded by this
+    private final Map<String, Entry> entries;
+
+    IdempotencyCache( final int maxEntries, long ttlMillis )
+    {
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, Entry>()
+        {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, Entry> eldest )
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * The work done for a request, which may give a response before its write has been applied.
+     */
+    interface Action
+    {
+        Response run( Settlement settlement );
+    }
+
+    /**
+     * Handed to an action, so that a response it gives before its write is applied can be followed
+     * by the response it settles on once the write has been.
+     */
+    static class Settlement
+    {
+        private volatile Future<Response> settled;
+
+        void settleWith( Future<Response> settled )
+        {
+            this.settled = settled;
+        }
+    }
+
+    /**
+     * Run the action for a request, or return the response to an earlier request with the same
+     * <code>Idempotency-Key</code> from the same principal for the same endpoint and user.
+     * Requests without a key, or without a principal, are always run.
+     *
+     * @param body the request body, or null if it has none
+     */
+    Response execute( String endpoint, String username, HttpServletRequest req, String body, OutputFormat output,
+            Action action )
+    {
+        String key = req.getHeader( IDEMPOTENCY_KEY );
+        Principal principal = req.getUserPrincipal();
+        if ( key == null || principal == null )
+        {
+            return action.run( new Settlement() );
+        }
+        Response response = execute( endpoint + '\n' + principal.getName() + '\n' + username + '\n' + key,
+                digest( body ), action );
+        return response != null ? response : output.response( UNPROCESSABLE, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.Invalid, "The " + IDEMPOTENCY_KEY + " was used for a different request." ) ) );
+    }
+
+    /**
+     * @return the response remembered for the key, or the response of the action, which is then remembered,
+     * or null if the key was remembered with a different digest
+     */
+    Response execute( String key, byte[] digest, Action action )
+    {
+        Entry entry;
+        boolean owner = false;
+        synchronized ( this )
+        {
+            entry = entries.get( key );
+            if ( entry == null || System.currentTimeMillis() - entry.created >= ttlMillis || entry.failed() )
+            {
+                entry = new Entry( digest, action );
+                entries.put( key, entry );
+                owner = true;
+            } else if ( !MessageDigest.isEqual( entry.digest, digest ) )
+            {
+                return null;
+            }
+        }
+
+        boolean failed = true;
+        try
+        {
+            if ( owner )
+            {
+                entry.task.run();
+            }
+            Response response = entry.response();
+            failed = entry.failed();
+            return response;
+        } finally
+        {
+            if ( failed )
+            {
+                forget( key, entry );
+            }
+        }
+    }
+
+    private synchronized void forget( String key, Entry failed )
+    {
+        if ( entries.get( key ) == failed )
+        {
+            entries.remove( key );
+        }
+    }
+
+    static byte[] digest( String body )
+    {
+        try
+        {
+            return MessageDigest.getInstance( "SHA-256" ).digest( (body == null ? "" : body).getBytes( UTF8 ) );
+        } catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static <T> T await( Future<T> task )
+    {
+        boolean interrupted = false;
+        try
+        {
+            while ( true )
+            {
+                try
+                {
+                    return task.get();
+                } catch ( InterruptedException e )
+                {
+                    interrupted = true;
+                } catch ( ExecutionException e )
+                {
+                    Throwable cause = e.getCause();
+                    if ( cause instanceof RuntimeException )
+                    {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new IllegalStateException( cause );
+                }
+            }
+        } finally
+        {
+            if ( interrupted )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class Entry
+    {
+        private final Settlement settlement = new Settlement();
+        private final FutureTask<Remembered> task;
+        private final byte[] digest;
+        private final long created = System.currentTimeMillis();
+
+        Entry( byte[] digest, final Action action )
+        {
+            this.digest = digest;
+            this.task = new FutureTask<>( new Callable<Remembered>()
+            {
+                @Override
+                public Remembered call()
+                {
+                    return new Remembered( action.run( settlement ) );
+                }
+            } );
+        }
+
+        /**
+         * @return the response the write settled on if it has been, otherwise the original response
+         */
+        Response response()
+        {
+            return remembered().response();
+        }
+
+        private Remembered remembered()
+        {
+            Remembered remembered = await( task );
+            Future<Response> settled = settlement.settled;
+            return settled != null && settled.isDone() ? new Remembered( await( settled ) ) : remembered;
+        }
+
+        /**
+         * @return whether the request has finished with a server error or an exception, and has no write
+         * still to be settled
+         */
+        boolean failed()
+        {
+            Future<Response> settled = settlement.settled;
+            if ( !task.isDone() || (settled != null && !settled.isDone()) )
+            {
+                return false;
+            }
+            try
+            {
+                return remembered().status >= 500;
+            } catch ( RuntimeException e )
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The status, headers and entity of a response, from which a response is built for each request given it.
+     */
+    private static class Remembered
+    {
+        private final int status;
+        private final MultivaluedMap<String, Object> headers;
+        private final Object entity;
+
+        Remembered( Response response )
+        {
+            this.status = response.getStatus();
+            this.headers = response.getMetadata();
+            this.entity = response.getEntity();
+        }
+
+        Response response()
+        {
+            Response.ResponseBuilder builder = Response.status( status ).entity( entity );
+            for ( Map.Entry<String, List<Object>> header : headers.entrySet() )
+            {
+                for ( Object value : header.getValue() )
+                {
+                    builder.header( header.getKey(), value );
+                }
+            }
+            return builder.build();
+        }
+    }
+}
@@ -0,0 +1,731 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.neo4j.kernel.lifecycle.LifecycleAdapter;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.server.security.auth.UserSerialization;
+import org.neo4j.server.security.auth.exception.ConcurrentModificationException;
+import org.neo4j.server.security.auth.exception.IllegalUsernameException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A user repository that appends one checksummed record per mutation to a journal, instead of
+ * rewriting the whole auth file. A background compactor folds the journal into a snapshot once it
+ * has grown past a threshold, and on start the snapshot is loaded and the journal replayed.
+ * <p>
+ * Concurrent writers share fsyncs: each waits only until a force covering its own record has
+ * completed, so under load one force commits a whole group of records.
+ * <p>
+ * On start the snapshot is split into chunks parsed in parallel, but only as far as each user's name,
+ * so that the usernames are known almost at once. The credentials are then decoded in the background,
+ * and anything that needs them waits until they have all been.
+ * <p>
+ * Files in the directory are <code>users.snapshot</code>, in the auth file format preceded by the
+ * journal generation it was taken at, and <code>users.journal.N</code> for each generation since.
+ *
+ * @author Robin Bramley
+ */
+class JournalUserRepository extends LifecycleAdapter implements UserStore
+{
+    private static final Logger logger = LoggerFactory.getLogger( JournalUserRepository.class );
+
+    public static final String SNAPSHOT = "users.snapshot";
+    public static final String JOURNAL = "users.journal.";
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private static final Pattern JOURNAL_FILE = Pattern.compile( "users\\.journal\\.(\\d+)" );
+    private static final String GENERATION_HEADER = "# generation ";
+    private static final char ADD = '+';
+    private static final char DELETE = '-';
+    private static final UserSerialization SERIALIZATION = new UserSerialization();
+
+    private final File directory;
+    private final long compactAfterRecords;
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private final Object syncLock = new Object();
+    private final CountDownLatch loaded = new CountDownLatch( 1 );
+
+    // The undecoded record of each user, until the credentials have been loaded
+    private volatile Map<String, String> pending = Collections.emptyMap();
+    private volatile Throwable loadFailure;
+    private volatile Listener listener = Listener.NONE;
+
+    // Guarded by this
+    private FileChannel journal;
+    private long generation;
+    private long recordsSinceSnapshot;
+    private long appendedBytes;
+
+    // Guarded by syncLock
+    private volatile long syncedBytes;
+
+    private volatile boolean running;
+    private Thread compactor;
+    private Thread loader;
+
+    JournalUserRepository( File directory, long compactAfterRecords )
+    {
+        this.directory = directory;
+        this.compactAfterRecords = compactAfterRecords;
+    }
+
+    @Override
+    public User findByName( String name )
+    {
+        awaitLoaded();
+        return users.get( name );
+    }
+
+    @Override
+    public void create( User user ) throws IllegalUsernameException, IOException
+    {
+        awaitLoaded();
+        if ( !isValidName( user.name() ) )
+        {
+            throw new IllegalUsernameException( "'" + user.name() + "' is not a valid user name." );
+        }
+        long end;
+        synchronized ( this )
+        {
+            if ( users.containsKey( user.name() ) )
+            {
+                throw new IllegalUsernameException( "The specified user already exists" );
+            }
+            end = append( ADD + serialize( user ) );
+            users.put( user.name(), user );
+            listener.created( user );
+        }
+        sync( end );
+    }
+
+    @Override
+    public void update( User existingUser, User updatedUser )
+            throws ConcurrentModificationException, IOException
+    {
+        awaitLoaded();
+        long end;
+        synchronized ( this )
+        {
+            if ( users.get( existingUser.name() ) != existingUser )
+            {
+                throw new ConcurrentModificationException();
+            }
+            end = append( ADD + serialize( updatedUser ) );
+            users.put( updatedUser.name(), updatedUser );
+            listener.updated( updatedUser );
+        }
+        sync( end );
+    }
+
+    @Override
+    public Set<String> replaceAll( Collection<User> updated ) throws IOException
+    {
+        awaitLoaded();
+        Set<String> missing = new HashSet<>();
+        long end;
+        synchronized ( this )
+        {
+            end = appendedBytes;
+            for ( User user : updated )
+            {
+                if ( !users.containsKey( user.name() ) )
+                {
+                    missing.add( user.name() );
+                    continue;
+                }
+                end = append( ADD + serialize( user ) );
+                users.put( user.name(), user );
+            }
+        }
+        sync( end );
+        return missing;
+    }
+
+    @Override
+    public Set<String> putAll( Collection<User> restored ) throws IOException
+    {
+        awaitLoaded();
+        Set<String> created = new HashSet<>();
+        long end;
+        synchronized ( this )
+        {
+            end = appendedBytes;
+            for ( User user : restored )
+            {
+                end = append( ADD + serialize( user ) );
+                if ( users.put( user.name(), user ) == null )
+                {
+                    created.add( user.name() );
+                }
+            }
+        }
+        sync( end );
+        return created;
+    }
+
+    @Override
+    public boolean[] write( List<Write> writes ) throws IOException
+    {
+        awaitLoaded();
+        boolean[] expected = new boolean[writes.size()];
+        long end;
+        synchronized ( this )
+        {
+            end = appendedBytes;
+            for ( int i = 0; i < writes.size(); i++ )
+            {
+                Write write = writes.get( i );
+                boolean exists = users.containsKey( write.username() );
+                expected[i] = write.expected( exists );
+                if ( !write.applies( exists ) )
+                {
+                    continue;
+                }
+                if ( write.user() == null )
+                {
+                    end = append( DELETE + write.username() );
+                    users.remove( write.username() );
+                } else
+                {
+                    end = append( ADD + serialize( write.user() ) );
+                    users.put( write.username(), write.user() );
+                }
+            }
+        }
+        sync( end );
+        return expected;
+    }
+
+    /**
+     * Users are immutable, so a snapshot is a copy of the references, taken while writers are held off.
+     */
+    @Override
+    public Iterable<User> snapshot()
+    {
+        awaitLoaded();
+        synchronized ( this )
+        {
+            return new ArrayList<>( users.values() );
+        }
+    }
+
+    @Override
+    public boolean delete( User user ) throws IOException
+    {
+        awaitLoaded();
+        long end;
+        synchronized ( this )
+        {
+            if ( users.remove( user.name() ) == null )
+            {
+                return false;
+            }
+            end = append( DELETE + user.name() );
+            listener.deleted( user.name() );
+        }
+        sync( end );
+        return true;
+    }
+
+    @Override
+    public void listen( Listener listener )
+    {
+        this.listener = listener;
+    }
+
+    @Override
+    public int numberOfUsers()
+    {
+        Map<String, String> records = pending;
+        return records.isEmpty() ? users.size() : records.size();
+    }
+
+    @Override
+    public boolean isValidName( String name )
+    {
+        return name.matches( "^[a-zA-Z0-9_]+$" );
+    }
+
+    @Override
+    public Collection<User> users()
+    {
+        awaitLoaded();
+        return users.values();
+    }
+
+    @Override
+    public Map<String, Boolean> usernames()
+    {
+        Map<String, Boolean> usernames = new HashMap<>();
+        Map<String, String> records = pending;
+        if ( records.isEmpty() )
+        {
+            for ( User user : users.values() )
+            {
+                usernames.put( user.name(), user.passwordChangeRequired() );
+            }
+        } else
+        {
+            for ( Map.Entry<String, String> record : records.entrySet() )
+            {
+                usernames.put( record.getKey(), UsernameIndex.passwordChangeRequiredIn( record.getValue() ) );
+            }
+        }
+        return usernames;
+    }
+
+    @Override
+    public synchronized void start() throws Throwable
+    {
+        directory.mkdirs();
+        final Map<String, String> records = recover();
+        loader = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                load( records );
+            }
+        }, "useradd-journal-loader" );
+        loader.setDaemon( true );
+        loader.start();
+        running = true;
+        compactor = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while ( running )
+                {
+                    try
+                    {
+                        Thread.sleep( 1000 );
+                        if ( needsCompaction() )
+                        {
+                            compact();
+                        }
+                    } catch ( InterruptedException e )
+                    {
+                        return;
+                    } catch ( IOException e )
+                    {
+                        logger.warn( "Unable to compact the user journal, it will be retried", e );
+                    } catch ( IllegalStateException e )
+                    {
+                        // The users could not be loaded, so there is nothing safe to compact
+                        return;
+                    }
+                }
+            }
+        }, "useradd-journal-compactor" );
+        compactor.setDaemon( true );
+        compactor.start();
+    }
+
+    @Override
+    public void stop() throws Throwable
+    {
+        running = false;
+        if ( compactor != null )
+        {
+            compactor.interrupt();
+            compactor.join();
+        }
+        if ( loader != null )
+        {
+            loader.join();
+        }
+        synchronized ( syncLock )
+        {
+            synchronized ( this )
+            {
+                // Both the extension and the server's AuthManager stop the store once it is installed
+                if ( journal == null || !journal.isOpen() )
+                {
+                    return;
+                }
+                journal.force( false );
+                journal.close();
+                syncedBytes = appendedBytes;
+            }
+        }
+    }
+
+    private synchronized boolean needsCompaction()
+    {
+        return recordsSinceSnapshot >= compactAfterRecords;
+    }
+
+    /**
+     * Fold the journal into a new snapshot. Writers carry on appending to a new journal generation
+     * while the snapshot is written, and the journals it covers are deleted once it is in place.
+     */
+    void compact() throws IOException
+    {
+        awaitLoaded();
+        long snapshotGeneration;
+        List<User> snapshot;
+        synchronized ( syncLock )
+        {
+            synchronized ( this )
+            {
+                // Everything in the old journal is forced before switching, so no waiting writer needs it again
+                journal.force( false );
+                journal.close();
+                syncedBytes = appendedBytes;
+                snapshotGeneration = generation + 1;
+                openJournal( snapshotGeneration );
+                snapshot = new ArrayList<>( users.values() );
+                recordsSinceSnapshot = 0;
+            }
+        }
+
+        File tmp = new File( directory, SNAPSHOT + ".tmp" );
+        try ( FileOutputStream out = new FileOutputStream( tmp ) )
+        {
+            Writer writer = new BufferedWriter( new OutputStreamWriter( out, UTF8 ) );
+            writer.write( GENERATION_HEADER + snapshotGeneration + "\n" );
+            for ( User user : snapshot )
+            {
+                writer.write( serialize( user ) );
+                writer.write( '\n' );
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        Files.move( tmp.toPath(), new File( directory, SNAPSHOT ).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        deleteJournalsBefore( snapshotGeneration );
+        logger.info( "Compacted user journal into a snapshot of {} users", snapshot.size() );
+    }
+
+    /**
+     * Read the snapshot and replay the journals, keeping each user's latest record undecoded.
+     *
+     * @return the record of each user
+     */
+    private Map<String, String> recover() throws IOException
+    {
+        long firstGeneration = 0;
+        final Map<String, String> records = new ConcurrentHashMap<>();
+        File snapshot = new File( directory, SNAPSHOT );
+        if ( snapshot.exists() )
+        {
+            try ( BufferedReader reader = reader( snapshot ) )
+            {
+                String header = reader.readLine();
+                if ( header != null && header.startsWith( GENERATION_HEADER ) )
+                {
+                    firstGeneration = Long.parseLong( header.substring( GENERATION_HEADER.length() ) );
+                }
+            }
+            ParallelLoader.lines( snapshot, new ParallelLoader.Handler<String>()
+            {
+                @Override
+                public void handle( String line ) throws IOException
+                {
+                    if ( !line.startsWith( GENERATION_HEADER ) )
+                    {
+                        records.put( name( line ), line );
+                    }
+                }
+            } );
+        }
+
+        generation = firstGeneration;
+        List<Long> journalGenerations = journalGenerations();
+        for ( long journalGeneration : journalGenerations )
+        {
+            if ( journalGeneration >= firstGeneration )
+            {
+                boolean last = journalGeneration == journalGenerations.get( journalGenerations.size() - 1 );
+                recordsSinceSnapshot += replay( new File( directory, JOURNAL + journalGeneration ), records, last );
+                generation = Math.max( generation, journalGeneration );
+            }
+        }
+        deleteJournalsBefore( firstGeneration );
+        openJournal( generation );
+        pending = records;
+        logger.info( "Recovered {} users from the user journal, loading their credentials", records.size() );
+        return records;
+    }
+
+    /**
+     * Decode the credentials of every user, in parallel, and then let everything waiting on them through.
+     */
+    private void load( Map<String, String> records )
+    {
+        long start = System.currentTimeMillis();
+        try
+        {
+            ParallelLoader.each( new ArrayList<>( records.values() ), new ParallelLoader.Handler<String>()
+            {
+                @Override
+                public void handle( String line ) throws IOException
+                {
+                    User user = deserialize( line );
+                    users.put( user.name(), user );
+                }
+            } );
+            logger.info( "Loaded the credentials of {} users in {}ms", users.size(), System.currentTimeMillis() - start );
+        } catch ( IOException | RuntimeException e )
+        {
+            loadFailure = e;
+            logger.error( "Unable to load the users in " + directory, e );
+        } finally
+        {
+            pending = Collections.emptyMap();
+            loaded.countDown();
+        }
+    }
+
+    /**
+     * Wait for the credentials to be loaded.
+     *
+     * @throws IllegalStateException if they could not be
+     */
+    private void awaitLoaded()
+    {
+        try
+        {
+            loaded.await();
+        } catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "Interrupted while waiting for the users to be loaded", e );
+        }
+        if ( loadFailure != null )
+        {
+            throw new IllegalStateException( "The users in " + directory + " could not be loaded", loadFailure );
+        }
+    }
+
+    /**
+     * Apply the records of a journal. The last record of the last journal is the only one a crash can have
+     * left half written, so if it is torn it is truncated away; a bad record anywhere else means the journal
+     * has been corrupted, and replaying past it, or truncating everything after it, would lose users silently.
+     *
+     * @return the number of records applied
+     * @throws IOException if a record other than the last of the last journal is torn or corrupt
+     */
+    private long replay( File file, Map<String, String> records, boolean last ) throws IOException
+    {
+        long applied = 0;
+        long validBytes = 0;
+        try ( BufferedReader reader = reader( file ) )
+        {
+            String line;
+            while ( (line = reader.readLine()) != null )
+            {
+                int tab = line.lastIndexOf( '\t' );
+                String record = tab < 1 ? null : line.substring( 0, tab );
+                if ( record == null || !checksum( record ).equals( line.substring( tab + 1 ) )
+                        || (record.charAt( 0 ) != ADD && record.charAt( 0 ) != DELETE) )
+                {
+                    if ( !last || reader.readLine() != null )
+                    {
+                        throw new IOException( "Record " + (applied + 1) + " of " + file + ", at byte " + validBytes
+                                + ", is corrupt and is followed by others. Restore " + directory + " from a backup." );
+                    }
+                    break;
+                }
+                if ( record.charAt( 0 ) == ADD )
+                {
+                    records.put( name( record.substring( 1 ) ), record.substring( 1 ) );
+                } else
+                {
+                    records.remove( record.substring( 1 ) );
+                }
+                applied++;
+                validBytes += line.getBytes( UTF8 ).length + 1;
+            }
+        }
+        if ( validBytes < file.length() )
+        {
+            logger.warn( "Truncating {} at byte {} after a torn record", file, validBytes );
+            try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.WRITE ) )
+            {
+                channel.truncate( validBytes );
+            }
+        }
+        return applied;
+    }
+
+    private long append( String record ) throws IOException
+    {
+        ByteBuffer bytes = UTF8.encode( record + '\t' + checksum( record ) + '\n' );
+        while ( bytes.hasRemaining() )
+        {
+            appendedBytes += journal.write( bytes );
+        }
+        recordsSinceSnapshot++;
+        return appendedBytes;
+    }
+
+    /**
+     * Wait until the journal has been forced at least as far as <code>end</code>, forcing it if
+     * no one else has. Everything appended before the force starts rides along with it.
+     */
+    private void sync( long end ) throws IOException
+    {
+        if ( syncedBytes >= end )
+        {
+            return;
+        }
+        synchronized ( syncLock )
+        {
+            if ( syncedBytes >= end )
+            {
+                return;
+            }
+            FileChannel channel;
+            long target;
+            synchronized ( this )
+            {
+                channel = journal;
+                target = appendedBytes;
+            }
+            channel.force( false );
+            syncedBytes = target;
+        }
+    }
+
+    private void openJournal( long journalGeneration ) throws IOException
+    {
+        generation = journalGeneration;
+        journal = FileChannel.open( new File( directory, JOURNAL + journalGeneration ).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND );
+    }
+
+    private List<Long> journalGenerations()
+    {
+        List<Long> generations = new ArrayList<>();
+        String[] names = directory.list();
+        if ( names != null )
+        {
+            for ( String name : names )
+            {
+                Matcher matcher = JOURNAL_FILE.matcher( name );
+                if ( matcher.matches() )
+                {
+                    generations.add( Long.parseLong( matcher.group( 1 ) ) );
+                }
+            }
+        }
+        Collections.sort( generations );
+        return generations;
+    }
+
+    private void deleteJournalsBefore( long firstGeneration )
+    {
+        for ( long journalGeneration : journalGenerations() )
+        {
+            if ( journalGeneration < firstGeneration )
+            {
+                new File( directory, JOURNAL + journalGeneration ).delete();
+            }
+        }
+    }
+
+    private static BufferedReader reader( File file ) throws IOException
+    {
+        return new BufferedReader( new InputStreamReader( new FileInputStream( file ), UTF8 ) );
+    }
+
+    private static String checksum( String record )
+    {
+        CRC32 crc = new CRC32();
+        crc.update( record.getBytes( UTF8 ) );
+        return Long.toHexString( crc.getValue() );
+    }
+
+    /**
+     * Users are written in the auth file format, by the server's own serialization, one line each.
+     */
+    static String serialize( User user )
+    {
+        byte[] line = SERIALIZATION.serialize( Collections.singletonList( user ) );
+        return new String( line, 0, line.length - 1, UTF8 );
+    }
+
+    private String name( String line ) throws IOException
+    {
+        int nameEnd = line.indexOf( ':' );
+        if ( nameEnd <= 0 )
+        {
+            throw new IOException( "Malformed user record in " + directory );
+        }
+        return line.substring( 0, nameEnd );
+    }
+
+    /**
+     * @throws IOException if the line is not a user in the auth file format, including a hash or salt that is
+     * not hexadecimal, which the server's serialization would otherwise let through as a missing credential
+     */
+    static User deserialize( String line ) throws IOException
+    {
+        List<User> users;
+        try
+        {
+            users = SERIALIZATION.deserializeUsers( line.getBytes( UTF8 ) );
+        } catch ( UserSerialization.FormatException | RuntimeException e )
+        {
+            throw new IOException( "Malformed user record: " + line.split( ":", 2 )[0], e );
+        }
+        Credential credential = users.size() == 1 ? users.get( 0 ).credentials() : null;
+        if ( credential == null || credential.salt() == null || credential.passwordHash() == null )
+        {
+            throw new IOException( "Malformed user record: " + line.split( ":", 2 )[0] );
+        }
+        return users.get( 0 );
+    }
+}
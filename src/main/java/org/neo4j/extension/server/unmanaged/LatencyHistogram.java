@@ -0,0 +1,107 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with two buckets per power of two of microseconds, so any
+ * reported percentile is within 50% of the true value. Recording is a couple of atomic increments.
+ *
+ * @author Robin Bramley
+ */
+class LatencyHistogram
+{
+    private static final int BUCKETS = 2 * 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    void record( long nanos )
+    {
+        counts.incrementAndGet( bucket( TimeUnit.NANOSECONDS.toMicros( nanos ) ) );
+        count.incrementAndGet();
+        totalNanos.addAndGet( nanos );
+    }
+
+    long count()
+    {
+        return count.get();
+    }
+
+    long totalNanos()
+    {
+        return totalNanos.get();
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return the upper bound, in microseconds, of the bucket holding the quantile, or 0 if nothing was recorded
+     */
+    long percentileMicros( double quantile )
+    {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for ( int i = 0; i < BUCKETS; i++ )
+        {
+            snapshot[i] = counts.get( i );
+            total += snapshot[i];
+        }
+        if ( total == 0 )
+        {
+            return 0;
+        }
+        long rank = (long) Math.ceil( quantile * total );
+        long seen = 0;
+        for ( int i = 0; i < BUCKETS; i++ )
+        {
+            seen += snapshot[i];
+            if ( seen >= Math.max( 1, rank ) )
+            {
+                return upperBound( i );
+            }
+        }
+        return upperBound( BUCKETS - 1 );
+    }
+
+    static int bucket( long micros )
+    {
+        if ( micros < 1 )
+        {
+            return 0;
+        }
+        int power = 63 - Long.numberOfLeadingZeros( micros );
+        int upperHalf = power == 0 ? 0 : (int) ((micros >>> (power - 1)) & 1);
+        return Math.min( BUCKETS - 1, 2 * power + upperHalf );
+    }
+
+    static long upperBound( int bucket )
+    {
+        int power = bucket / 2;
+        if ( power >= 62 )
+        {
+            return Long.MAX_VALUE;
+        }
+        long base = 1L << power;
+        return bucket % 2 == 0 ? base + base / 2 : 2 * base;
+    }
+}
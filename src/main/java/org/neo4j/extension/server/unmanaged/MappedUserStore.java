@@ -0,0 +1,877 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.neo4j.kernel.lifecycle.LifecycleAdapter;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.server.security.auth.exception.ConcurrentModificationException;
+import org.neo4j.server.security.auth.exception.IllegalUsernameException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A user store held in a memory-mapped file laid out as an open-addressing hash table keyed by
+ * username, so that neither the users nor the index live on the heap. Users are inserted into,
+ * overwritten in and tombstoned in their slot in place; only growing the table rewrites the file.
+ * <p>
+ * The file is a header of <code>magic, capacity, live, tombstones</code> followed by fixed size
+ * slots of <code>state, flags, name length, name, salt length, salt, hash length, hash</code>.
+ * A single mapping limits the file to 2GB, and so the table to 2<sup>23</sup> slots, as its capacity is a
+ * power of two: about 5.8 million users at the load factor of 0.7.
+ * <p>
+ * The counts in the header are checked against the slots on open, so that a store whose counts were not
+ * written before a crash is not mistaken for an emptier one and allowed to fill up.
+ *
+ * @author Robin Bramley
+ */
+class MappedUserStore extends LifecycleAdapter implements UserStore
+{
+    private static final Logger logger = LoggerFactory.getLogger( MappedUserStore.class );
+
+    public static final String FILE = "users.mapped";
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private static final int MAGIC = 0x55534552;
+    private static final int HEADER = 16;
+    private static final int MAX_NAME = 64;
+    private static final int MAX_BYTES = 32;
+    private static final int SLOT = 3 + MAX_NAME + 1 + MAX_BYTES + 1 + MAX_BYTES;
+    private static final double MAX_LOAD = 0.7;
+
+    private static final byte EMPTY = 0;
+    private static final byte LIVE = 1;
+    private static final byte TOMBSTONE = 2;
+
+    private final File file;
+    private final int initialCapacity;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile Listener listener = Listener.NONE;
+
+    // Guarded by lock
+    private MappedByteBuffer map;
+    private int capacity;
+    private int live;
+    private int tombstones;
+    private final List<Export> exports = new ArrayList<>();
+
+    MappedUserStore( File directory, int initialCapacity )
+    {
+        this.file = new File( directory, FILE );
+        this.initialCapacity = Integer.highestOneBit( Math.max( 16, initialCapacity - 1 ) ) << 1;
+    }
+
+    @Override
+    public void start() throws Throwable
+    {
+        file.getParentFile().mkdirs();
+        lock.writeLock().lock();
+        try
+        {
+            boolean exists = file.exists() && file.length() > 0;
+            map = map( file, exists ? (int) ((file.length() - HEADER) / SLOT) : initialCapacity );
+            if ( exists )
+            {
+                if ( map.getInt( 0 ) != MAGIC )
+                {
+                    throw new IOException( file + " is not a user store" );
+                }
+                capacity = map.getInt( 4 );
+                recount();
+            } else
+            {
+                capacity = initialCapacity;
+                writeHeader( map, capacity, 0, 0 );
+            }
+        } finally
+        {
+            lock.writeLock().unlock();
+        }
+        logger.info( "Opened {} with {} users in {} slots", file, live, capacity );
+    }
+
+    @Override
+    public void stop() throws Throwable
+    {
+        lock.writeLock().lock();
+        try
+        {
+            // Both the extension and the server's AuthManager stop the store once it is installed
+            if ( map != null )
+            {
+                map.force();
+            }
+        } finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public User findByName( String name )
+    {
+        byte[] key = name.getBytes( UTF8 );
+        lock.readLock().lock();
+        try
+        {
+            int slot = find( key );
+            return map.get( offset( slot ) ) == LIVE ? read( map, slot ) : null;
+        } finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void create( User user ) throws IllegalUsernameException, IOException
+    {
+        if ( !isValidName( user.name() ) )
+        {
+            throw new IllegalUsernameException( "'" + user.name() + "' is not a valid user name." );
+        }
+        byte[] key = user.name().getBytes( UTF8 );
+        lock.writeLock().lock();
+        try
+        {
+            if ( live + tombstones + 1 > capacity * MAX_LOAD )
+            {
+                grow();
+            }
+            int slot = find( key );
+            byte state = map.get( offset( slot ) );
+            if ( state == LIVE )
+            {
+                throw new IllegalUsernameException( "The specified user already exists" );
+            }
+            // Reuse the first tombstone on the probe path rather than extending it
+            int reusable = firstTombstone( key );
+            if ( reusable >= 0 )
+            {
+                slot = reusable;
+                tombstones--;
+            }
+            write( slot, key, user );
+            live++;
+            updateCounts();
+            map.force();
+            listener.created( user );
+        } finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void update( User existingUser, User updatedUser )
+            throws ConcurrentModificationException, IOException
+    {
+        byte[] key = existingUser.name().getBytes( UTF8 );
+        lock.writeLock().lock();
+        try
+        {
+            int slot = find( key );
+            if ( map.get( offset( slot ) ) != LIVE )
+            {
+                throw new ConcurrentModificationException();
+            }
+            write( slot, key, updatedUser );
+            map.force();
+            listener.updated( updatedUser );
+        } finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> replaceAll( Collection<User> updated ) throws IOException
+    {
+        Set<String> missing = new HashSet<>();
+        lock.writeLock().lock();
+        try
+        {
+            for ( User user : updated )
+            {
+                byte[] key = user.name().getBytes( UTF8 );
+                int slot = find( key );
+                if ( map.get( offset( slot ) ) != LIVE )
+                {
+                    missing.add( user.name() );
+                    continue;
+                }
+                write( slot, key, user );
+            }
+            map.force();
+        } finally
+        {
+            lock.writeLock().unlock();
+        }
+        return missing;
+    }
+
+    @Override
+    public Set<String> putAll( Collection<User> restored ) throws IOException
+    {
+        for ( User user : restored )
+        {
+            checkFits( user.name() );
+        }
+        Set<String> created = new HashSet<>();
+        lock.writeLock().lock();
+        try
+        {
+            for ( User user : restored )
+            {
+                if ( live + tombstones + 1 > capacity * MAX_LOAD )
+                {
+                    grow();
+                }
+                byte[] key = user.name().getBytes( UTF8 );
+                int slot = find( key );
+                if ( map.get( offset( slot ) ) != LIVE )
+                {
+                    int reusable = firstTombstone( key );
+                    if ( reusable >= 0 )
+                    {
+                        slot = reusable;
+                        tombstones--;
+                    }
+                    live++;
+                    created.add( user.name() );
+                }
+                write( slot, key, user );
+            }
+            updateCounts();
+            map.force();
+        } finally
+        {
+            lock.writeLock().unlock();
+        }
+        return created;
+    }
+
+    @Override
+    public boolean[] write( List<Write> writes ) throws IOException
+    {
+        for ( Write write : writes )
+        {
+            if ( write.user() != null )
+            {
+                checkFits( write.username() );
+            }
+        }
+        boolean[] expected = new boolean[writes.size()];
+        lock.writeLock().lock();
+        try
+        {
+            for ( int i = 0; i < writes.size(); i++ )
+            {
+                Write write = writes.get( i );
+                if ( write.user() != null && live + tombstones + 1 > capacity * MAX_LOAD )
+                {
+                    grow();
+                }
+                byte[] key = write.username().getBytes( UTF8 );
+                int slot = find( key );
+                boolean exists = map.get( offset( slot ) ) == LIVE;
+                expected[i] = write.expected( exists );
+                if ( !write.applies( exists ) )
+                {
+                    continue;
+                }
+                if ( write.user() == null )
+                {
+                    preserve( slot );
+                    map.put( offset( slot ), TOMBSTONE );
+                    live--;
+                    tombstones++;
+                    continue;
+                }
+                if ( !exists )
+                {
+                    int reusable = firstTombstone( key );
+                    if ( reusable >= 0 )
+                    {
+                        slot = reusable;
+                        tombstones--;
+                    }
+                    live++;
+                }
+                write( slot, key, write.user() );
+            }
+            updateCounts();
+            map.force();
+        } finally
+        {
+            lock.writeLock().unlock();
+        }
+        return expected;
+    }
+
+    /**
+     * Users are read straight off the mapping as the iteration advances, rather than copied first.
+     * A slot the export has yet to reach is copied aside before it is changed, so the export sees the
+     * users as they were when it began while holding on the heap only those changed since.
+     * An iteration given up before its end should be closed, so that writers stop copying for it.
+     */
+    @Override
+    public Iterable<User> snapshot()
+    {
+        return new Iterable<User>()
+        {
+            @Override
+            public Iterator<User> iterator()
+            {
+                lock.writeLock().lock();
+                try
+                {
+                    Export export = new Export( map, capacity );
+                    if ( export.hasNext() )
+                    {
+                        exports.add( export );
+                    }
+                    return export;
+                } finally
+                {
+                    lock.writeLock().unlock();
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean delete( User user ) throws IOException
+    {
+        byte[] key = user.name().getBytes( UTF8 );
+        lock.writeLock().lock();
+        try
+        {
+            int slot = find( key );
+            if ( map.get( offset( slot ) ) != LIVE )
+            {
+                return false;
+            }
+            preserve( slot );
+            map.put( offset( slot ), TOMBSTONE );
+            live--;
+            tombstones++;
+            updateCounts();
+            map.force();
+            listener.deleted( user.name() );
+            return true;
+        } finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void listen( Listener listener )
+    {
+        this.listener = listener;
+    }
+
+    @Override
+    public int numberOfUsers()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return live;
+        } finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isValidName( String name )
+    {
+        return name.matches( "^[a-zA-Z0-9_]+$" ) && name.getBytes( UTF8 ).length <= MAX_NAME;
+    }
+
+    /**
+     * @return the live users, read one slot at a time as the iteration advances. The iteration keeps to
+     * the mapping it started on, which growing the table leaves as it was, so no slot is read twice.
+     */
+    @Override
+    public Iterable<User> users()
+    {
+        return new Iterable<User>()
+        {
+            @Override
+            public Iterator<User> iterator()
+            {
+                final MappedByteBuffer slots;
+                final int count;
+                lock.readLock().lock();
+                try
+                {
+                    slots = map;
+                    count = capacity;
+                } finally
+                {
+                    lock.readLock().unlock();
+                }
+
+                return new Iterator<User>()
+                {
+                    private int slot = -1;
+                    private User next = advance();
+
+                    private User advance()
+                    {
+                        lock.readLock().lock();
+                        try
+                        {
+                            while ( ++slot < count )
+                            {
+                                if ( slots.get( offset( slot ) ) == LIVE )
+                                {
+                                    return read( slots, slot );
+                                }
+                            }
+                            return null;
+                        } finally
+                        {
+                            lock.readLock().unlock();
+                        }
+                    }
+
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return next != null;
+                    }
+
+                    @Override
+                    public User next()
+                    {
+                        if ( next == null )
+                        {
+                            throw new NoSuchElementException();
+                        }
+                        User current = next;
+                        next = advance();
+                        return current;
+                    }
+
+                    @Override
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * The slots are read in place, so there is nothing to load before the credentials are available.
+     */
+    @Override
+    public Map<String, Boolean> usernames()
+    {
+        Map<String, Boolean> usernames = new HashMap<>();
+        for ( User user : users() )
+        {
+            usernames.put( user.name(), user.passwordChangeRequired() );
+        }
+        return usernames;
+    }
+
+    /**
+     * @return the slot holding the key, or the empty slot that ends its probe sequence
+     */
+    private int find( byte[] key )
+    {
+        int mask = capacity - 1;
+        int slot = hash( key ) & mask;
+        while ( true )
+        {
+            byte state = map.get( offset( slot ) );
+            if ( state == EMPTY || (state == LIVE && matches( slot, key )) )
+            {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int firstTombstone( byte[] key )
+    {
+        int mask = capacity - 1;
+        int slot = hash( key ) & mask;
+        while ( true )
+        {
+            byte state = map.get( offset( slot ) );
+            if ( state == TOMBSTONE )
+            {
+                return slot;
+            }
+            if ( state == EMPTY )
+            {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean matches( int slot, byte[] key )
+    {
+        int base = offset( slot );
+        if ( map.get( base + 2 ) != key.length )
+        {
+            return false;
+        }
+        for ( int i = 0; i < key.length; i++ )
+        {
+            if ( map.get( base + 3 + i ) != key[i] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static User read( ByteBuffer map, int slot )
+    {
+        int base = offset( slot );
+        byte[] name = new byte[map.get( base + 2 )];
+        for ( int i = 0; i < name.length; i++ )
+        {
+            name[i] = map.get( base + 3 + i );
+        }
+        int position = base + 3 + MAX_NAME;
+        byte[] salt = new byte[map.get( position )];
+        for ( int i = 0; i < salt.length; i++ )
+        {
+            salt[i] = map.get( position + 1 + i );
+        }
+        position += 1 + MAX_BYTES;
+        byte[] hash = new byte[map.get( position )];
+        for ( int i = 0; i < hash.length; i++ )
+        {
+            hash[i] = map.get( position + 1 + i );
+        }
+        return new User( new String( name, UTF8 ), new Credential( salt, hash ), map.get( base + 1 ) != 0 );
+    }
+
+    /**
+     * Refuse a name longer than a slot holds, before anything is written for a group it is part of.
+     */
+    private static void checkFits( String name ) throws IOException
+    {
+        if ( name.getBytes( UTF8 ).length > MAX_NAME )
+        {
+            throw new IOException( "The name '" + name + "' does not fit in a slot" );
+        }
+    }
+
+    private void write( int slot, byte[] key, User user ) throws IOException
+    {
+        byte[] salt = user.credentials().salt();
+        byte[] hash = user.credentials().passwordHash();
+        if ( key.length > MAX_NAME )
+        {
+            throw new IOException( "The name '" + user.name() + "' does not fit in a slot" );
+        }
+        if ( salt.length > MAX_BYTES || hash.length > MAX_BYTES )
+        {
+            throw new IOException( "Credentials for '" + user.name() + "' do not fit in a slot" );
+        }
+        preserve( slot );
+        int base = offset( slot );
+        map.put( base + 1, (byte) (user.passwordChangeRequired() ? 1 : 0) );
+        map.put( base + 2, (byte) key.length );
+        for ( int i = 0; i < key.length; i++ )
+        {
+            map.put( base + 3 + i, key[i] );
+        }
+        int position = base + 3 + MAX_NAME;
+        map.put( position, (byte) salt.length );
+        for ( int i = 0; i < salt.length; i++ )
+        {
+            map.put( position + 1 + i, salt[i] );
+        }
+        position += 1 + MAX_BYTES;
+        map.put( position, (byte) hash.length );
+        for ( int i = 0; i < hash.length; i++ )
+        {
+            map.put( position + 1 + i, hash[i] );
+        }
+        // Written last, so a new entry is never live while partial. An entry overwritten in place has no
+        // such protection: a crash before the mapping is forced may leave it with a torn credential, which
+        // fails to authenticate until the password is set again
+        map.put( base, LIVE );
+    }
+
+    /**
+     * Rehash the live users into a table of twice the capacity, dropping tombstones, and swap it in.
+     * The old mapping is not written again, so the exports reading it need nothing more copied for them.
+     */
+    private void grow() throws IOException
+    {
+        exports.clear();
+        int newCapacity = live * 2 > capacity * MAX_LOAD ? capacity * 2 : capacity;
+        File grown = new File( file.getPath() + ".grow" );
+        grown.delete();
+        MappedByteBuffer old = map;
+        int oldCapacity = capacity;
+
+        map = map( grown, newCapacity );
+        capacity = newCapacity;
+        writeHeader( map, newCapacity, live, 0 );
+        for ( int slot = 0; slot < oldCapacity; slot++ )
+        {
+            int base = HEADER + slot * SLOT;
+            if ( old.get( base ) == LIVE )
+            {
+                byte[] name = new byte[old.get( base + 2 )];
+                for ( int i = 0; i < name.length; i++ )
+                {
+                    name[i] = old.get( base + 3 + i );
+                }
+                int target = find( name );
+                for ( int i = 0; i < SLOT; i++ )
+                {
+                    map.put( offset( target ) + i, old.get( base + i ) );
+                }
+            }
+        }
+        tombstones = 0;
+        map.force();
+        Files.move( grown.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        logger.info( "Grew {} to {} slots", file, newCapacity );
+    }
+
+    /**
+     * Count the live and tombstoned slots rather than trust the header, which is written after them,
+     * and grow the table if it is fuller than it should be, since a lookup probes until an empty slot.
+     */
+    private void recount() throws IOException
+    {
+        int counted = 0;
+        int dead = 0;
+        for ( int slot = 0; slot < capacity; slot++ )
+        {
+            byte state = map.get( offset( slot ) );
+            if ( state == LIVE )
+            {
+                counted++;
+            } else if ( state == TOMBSTONE )
+            {
+                dead++;
+            }
+        }
+        if ( counted != map.getInt( 8 ) || dead != map.getInt( 12 ) )
+        {
+            logger.warn( "{} recorded {} users and {} tombstones but holds {} and {}, correcting it",
+                    file, map.getInt( 8 ), map.getInt( 12 ), counted, dead );
+        }
+        live = counted;
+        tombstones = dead;
+        if ( live + tombstones > capacity * MAX_LOAD )
+        {
+            grow();
+        }
+        updateCounts();
+        map.force();
+    }
+
+    /**
+     * Copy the slot aside for every export yet to reach it, before it is changed. Called holding the write lock.
+     */
+    private void preserve( int slot )
+    {
+        for ( Export export : exports )
+        {
+            export.preserve( slot );
+        }
+    }
+
+    private void updateCounts()
+    {
+        map.putInt( 8, live );
+        map.putInt( 12, tombstones );
+    }
+
+    private static void writeHeader( MappedByteBuffer map, int capacity, int live, int tombstones )
+    {
+        map.putInt( 0, MAGIC );
+        map.putInt( 4, capacity );
+        map.putInt( 8, live );
+        map.putInt( 12, tombstones );
+    }
+
+    /**
+     * An export's iteration over the mapping it began on. The user each changed slot held, or null if
+     * it held none, is read from the copy instead of the slot.
+     */
+    private class Export implements Iterator<User>, Closeable
+    {
+        private final MappedByteBuffer slots;
+        private final int count;
+        // Guarded by lock: written holding the write lock, and read holding the read lock
+        private final Map<Integer, User> preserved = new HashMap<>();
+        private int slot = -1;
+        private User next;
+
+        Export( MappedByteBuffer slots, int count )
+        {
+            this.slots = slots;
+            this.count = count;
+            this.next = advance();
+        }
+
+        void preserve( int changed )
+        {
+            if ( changed > slot && !preserved.containsKey( changed ) )
+            {
+                preserved.put( changed, slots.get( offset( changed ) ) == LIVE ? read( slots, changed ) : null );
+            }
+        }
+
+        private User advance()
+        {
+            lock.readLock().lock();
+            try
+            {
+                while ( ++slot < count )
+                {
+                    if ( preserved.containsKey( slot ) )
+                    {
+                        User user = preserved.remove( slot );
+                        if ( user != null )
+                        {
+                            return user;
+                        }
+                    } else if ( slots.get( offset( slot ) ) == LIVE )
+                    {
+                        return read( slots, slot );
+                    }
+                }
+            } finally
+            {
+                lock.readLock().unlock();
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return next != null;
+        }
+
+        @Override
+        public User next()
+        {
+            if ( next == null )
+            {
+                throw new NoSuchElementException();
+            }
+            User current = next;
+            next = advance();
+            if ( next == null )
+            {
+                close();
+            }
+            return current;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close()
+        {
+            lock.writeLock().lock();
+            try
+            {
+                exports.remove( this );
+                preserved.clear();
+                slot = count;
+                next = null;
+            } finally
+            {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private static MappedByteBuffer map( File file, int capacity ) throws IOException
+    {
+        long size = HEADER + (long) capacity * SLOT;
+        if ( size > Integer.MAX_VALUE )
+        {
+            throw new IOException( "A user store of " + capacity + " slots does not fit in one mapping" );
+        }
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+        {
+            // The mapping stays valid after the channel is closed
+            return raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+        }
+    }
+
+    private static int offset( int slot )
+    {
+        return HEADER + slot * SLOT;
+    }
+
+    private static int hash( byte[] key )
+    {
+        int h = 0;
+        for ( byte b : key )
+        {
+            h = 31 * h + b;
+        }
+        // Spread the bits so that linear probing over a power of two table does not cluster
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h;
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Loads large files and collections in parallel on a fork-join pool, so that parsing hundreds of
+ * thousands of users does not hold up server start up for as long as it would on one thread.
+ * A file is split into chunks of about {@link #CHUNK_BYTES}, each ending at a line break, and the
+ * lines of each chunk are handed to a handler that must be safe to call from several threads at once.
+ *
+ * @author Robin Bramley
+ */
+final class ParallelLoader
+{
+    static final int CHUNK_BYTES = 1 << 20;
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private static final int SCAN_BYTES = 4096;
+
+    interface Handler<T>
+    {
+        void handle( T item ) throws IOException;
+    }
+
+    private ParallelLoader()
+    {
+    }
+
+    /**
+     * Hand every non-empty line of a file to the handler, in no particular order.
+     */
+    static void lines( File file, final Handler<String> handler ) throws IOException
+    {
+        try ( final FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) )
+        {
+            each( chunks( channel ), new Handler<long[]>()
+            {
+                @Override
+                public void handle( long[] chunk ) throws IOException
+                {
+                    // Each chunk maps its own region, so files larger than a single mapping are fine
+                    ByteBuffer bytes = channel.map( FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0] );
+                    CharBuffer chars = UTF8.decode( bytes );
+                    int lineStart = 0;
+                    for ( int i = 0; i <= chars.limit(); i++ )
+                    {
+                        if ( i == chars.limit() || chars.get( i ) == '\n' )
+                        {
+                            if ( i > lineStart )
+                            {
+                                handler.handle( chars.subSequence( lineStart, i ).toString() );
+                            }
+                            lineStart = i + 1;
+                        }
+                    }
+                }
+            } );
+        }
+    }
+
+    /**
+     * Hand every item to the handler, in no particular order.
+     */
+    static <T> void each( List<T> items, Handler<T> handler ) throws IOException
+    {
+        if ( items.isEmpty() )
+        {
+            return;
+        }
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        int threshold = Math.max( 1, items.size() / (parallelism * 4) );
+        ForkJoinPool pool = new ForkJoinPool( parallelism );
+        try
+        {
+            pool.invoke( new Slice<>( items, 0, items.size(), threshold, handler ) );
+        } catch ( RuntimeException e )
+        {
+            // The pool may rethrow a copy of the failure, with the original as its cause
+            for ( Throwable cause = e; cause != null; cause = cause.getCause() )
+            {
+                if ( cause instanceof HandlerFailure && cause.getCause() instanceof IOException )
+                {
+                    throw (IOException) cause.getCause();
+                }
+            }
+            throw e;
+        } finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return the <code>[start, end)</code> offsets of each chunk, every one but the last ending just after a line break
+     */
+    private static List<long[]> chunks( FileChannel channel ) throws IOException
+    {
+        List<long[]> chunks = new ArrayList<>();
+        long size = channel.size();
+        ByteBuffer scan = ByteBuffer.allocate( SCAN_BYTES );
+        long start = 0;
+        while ( start < size )
+        {
+            long end = Math.min( size, start + CHUNK_BYTES );
+            while ( end < size )
+            {
+                scan.clear();
+                int read = channel.read( scan, end );
+                int newline = -1;
+                for ( int i = 0; i < read && newline < 0; i++ )
+                {
+                    if ( scan.get( i ) == '\n' )
+                    {
+                        newline = i;
+                    }
+                }
+                if ( newline >= 0 )
+                {
+                    end += newline + 1;
+                    break;
+                }
+                end = read > 0 ? end + read : size;
+            }
+            chunks.add( new long[]{ start, Math.min( end, size ) } );
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static class Slice<T> extends RecursiveAction
+    {
+        private final List<T> items;
+        private final int from;
+        private final int to;
+        private final int threshold;
+        private final Handler<T> handler;
+
+        Slice( List<T> items, int from, int to, int threshold, Handler<T> handler )
+        {
+            this.items = items;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+            this.handler = handler;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if ( to - from <= threshold )
+            {
+                try
+                {
+                    for ( int i = from; i < to; i++ )
+                    {
+                        handler.handle( items.get( i ) );
+                    }
+                } catch ( IOException e )
+                {
+                    throw new HandlerFailure( e );
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll( new Slice<>( items, from, middle, threshold, handler ),
+                    new Slice<>( items, middle, to, threshold, handler ) );
+        }
+    }
+
+    private static class HandlerFailure extends RuntimeException
+    {
+        HandlerFailure( IOException cause )
+        {
+            super( cause );
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed pool of workers for password hashing, kept off the server's request threads.
+ * Callers reserve capacity before submitting work, so that a burst beyond the configured
+ * queue size is turned away immediately rather than piling up behind the pool.
+ * <p>
+ * An inline executor runs work on the calling thread and never turns anything away.
+ *
+ * @author Robin Bramley
+ */
+class PasswordHashingExecutor
+{
+    private final ExecutorService pool;
+    private final Semaphore capacity;
+    private final int size;
+    private final int retryAfterSeconds;
+
+    private PasswordHashingExecutor( ExecutorService pool, int size, int retryAfterSeconds )
+    {
+        this.pool = pool;
+        this.capacity = pool == null ? null : new Semaphore( size );
+        this.size = size;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    static PasswordHashingExecutor inline()
+    {
+        return new PasswordHashingExecutor( null, Integer.MAX_VALUE, 0 );
+    }
+
+    static PasswordHashingExecutor bounded( int threads, int queueSize, int retryAfterSeconds )
+    {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor( threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread( Runnable r )
+                    {
+                        Thread thread = new Thread( r, "useradd-hashing-" + count.incrementAndGet() );
+                        thread.setDaemon( true );
+                        return thread;
+                    }
+                } );
+        // The semaphore bounds queued and running work together, so the pool's own queue never overflows
+        return new PasswordHashingExecutor( pool, threads + queueSize, retryAfterSeconds );
+    }
+
+    /**
+     * @return the most tasks that can be reserved at once, so that larger batches must be reserved in parts
+     */
+    int capacity()
+    {
+        return size;
+    }
+
+    /**
+     * Reserve room for <code>count</code> hashing tasks.
+     *
+     * @param wait whether to block until room is available rather than fail
+     * @throws RejectedExecutionException if there is no room and the caller would not wait
+     */
+    void reserve( int count, boolean wait ) throws InterruptedException
+    {
+        if ( capacity == null || count == 0 )
+        {
+            return;
+        }
+        if ( wait )
+        {
+            capacity.acquire( count );
+        } else if ( !capacity.tryAcquire( count ) )
+        {
+            throw new RejectedExecutionException( "Password hashing queue is full" );
+        }
+    }
+
+    /**
+     * Give back capacity reserved for tasks that will not be run after all.
+     */
+    void release( int count )
+    {
+        if ( capacity != null && count > 0 )
+        {
+            capacity.release( count );
+        }
+    }
+
+    /**
+     * Run a task for which capacity has already been reserved, releasing the reservation when it is done.
+     */
+    void execute( final Runnable task )
+    {
+        if ( pool == null )
+        {
+            task.run();
+            return;
+        }
+        pool.execute( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    task.run();
+                } finally
+                {
+                    capacity.release();
+                }
+            }
+        } );
+    }
+
+    int retryAfterSeconds()
+    {
+        return retryAfterSeconds;
+    }
+
+    void stop() throws InterruptedException
+    {
+        if ( pool != null )
+        {
+            pool.shutdown();
+            pool.awaitTermination( 30, TimeUnit.SECONDS );
+        }
+    }
+}
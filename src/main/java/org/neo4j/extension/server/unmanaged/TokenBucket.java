@@ -0,0 +1,113 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, refilled at a fixed rate up to its burst size.
+ * <p>
+ * Rather than counting tokens, the bucket tracks the time at which it will next be full, which lets
+ * a single compare-and-set take a token and account for the refill since the last request.
+ *
+ * @author Robin Bramley
+ */
+class TokenBucket
+{
+    private final long nanosPerToken;
+    private final int burst;
+    private final long burstNanos;
+    private final AtomicLong fullAt;
+
+    /**
+     * @param ratePerSecond the number of tokens added each second
+     * @param burst the most tokens the bucket holds
+     */
+    TokenBucket( double ratePerSecond, int burst )
+    {
+        this.nanosPerToken = (long) (TimeUnit.SECONDS.toNanos( 1 ) / ratePerSecond);
+        this.burst = Math.max( 1, burst );
+        this.burstNanos = nanosPerToken * this.burst;
+        this.fullAt = new AtomicLong( System.nanoTime() );
+    }
+
+    /**
+     * @return the most tokens the bucket holds, and so the most that can be taken at once
+     */
+    int burst()
+    {
+        return burst;
+    }
+
+    /**
+     * Take tokens if the bucket holds them.
+     *
+     * @return 0 if the tokens were taken, otherwise how many nanoseconds until they can be
+     * @throws IllegalArgumentException if more tokens than the burst size are asked for, as the bucket never
+     * holds them, and taking them anyway would leave it refilling from deep below empty
+     */
+    long tryAcquire( int tokens )
+    {
+        long needed = needed( tokens );
+        while ( true )
+        {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long from = Math.max( current, now );
+            long wait = from + needed - now - burstNanos;
+            if ( wait > 0 )
+            {
+                return wait;
+            }
+            if ( fullAt.compareAndSet( current, from + needed ) )
+            {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Check for tokens without taking them.
+     *
+     * @return 0 if {@link #tryAcquire(int)} would take the tokens, otherwise how many nanoseconds until it would
+     */
+    long available( int tokens )
+    {
+        long now = System.nanoTime();
+        return Math.max( 0, Math.max( fullAt.get(), now ) + needed( tokens ) - now - burstNanos );
+    }
+
+    private long needed( int tokens )
+    {
+        if ( tokens > burst )
+        {
+            throw new IllegalArgumentException( tokens + " tokens asked of a bucket that holds at most " + burst );
+        }
+        return nanosPerToken * tokens;
+    }
+
+    /**
+     * Give back tokens taken for a request that was refused after all.
+     */
+    void refund( int tokens )
+    {
+        fullAt.addAndGet( -nanosPerToken * tokens );
+    }
+}
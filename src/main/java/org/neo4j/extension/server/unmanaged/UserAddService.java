@@ -19,10 +19,19 @@
 package org.neo4j.extension.server.unmanaged;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.Principal;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
@@ -30,17 +39,23 @@ import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
 
 import org.neo4j.kernel.api.exceptions.Status;
+import org.neo4j.server.rest.domain.JsonHelper;
+import org.neo4j.server.rest.domain.JsonParseException;
 import org.neo4j.server.rest.repr.AuthorizationRepresentation;
 import org.neo4j.server.rest.repr.BadInputException;
 import org.neo4j.server.rest.repr.ExceptionRepresentation;
 import org.neo4j.server.rest.repr.InputFormat;
+import org.neo4j.server.rest.repr.MapRepresentation;
 import org.neo4j.server.rest.repr.OutputFormat;
 import org.neo4j.server.rest.transactional.error.Neo4jError;
+import org.neo4j.server.rest.web.CustomStatusType;
 import org.neo4j.server.security.auth.AuthManager;
 import org.neo4j.server.security.auth.User;
 import org.neo4j.server.security.auth.exception.IllegalUsernameException;
 
 import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.CONFLICT;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
 import static org.neo4j.server.rest.web.CustomStatusType.UNPROCESSABLE;
 
 /**
@@ -54,28 +69,66 @@ public class UserAddService
     private final AuthManager authManager;
     private final InputFormat input;
     private final OutputFormat output;
+    private final UserManagementContext context;
     public static final String NEO4J_USER = "neo4j";
     public static final String PASSWORD = "password";
+    public static final String USERNAME = "username";
+    public static final String RESULTS = "results";
+    public static final String STATUS = "status";
+    public static final String MESSAGE = "message";
+    public static final String NDJSON = "application/x-ndjson";
+    public static final String RETRY_AFTER = "Retry-After";
+    // JAX-RS 1.1 has no constant for 413 either
+    public static final Response.StatusType REQUEST_ENTITY_TOO_LARGE =
+            new CustomStatusType( 413, "Request Entity Too Large" );
 
     public UserAddService( @Context AuthManager authManager,
         @Context InputFormat input, @Context OutputFormat output )
     {
-        this.authManager = authManager;
+        this( authManager, input, output, UserManagementContext.shared() );
+    }
+
+    public UserAddService( @Context AuthManager authManager,
+        @Context InputFormat input, @Context OutputFormat output, @Context UserManagementContext context )
+    {
+        this.authManager = context.authManager( authManager );
         this.input = input;
         this.output = output;
+        this.context = context;
     }
 
     @POST
     @Path("/{username}")
-    public Response createUser( @PathParam("username") String username, @Context HttpServletRequest req, String payload )
+    public Response createUser( @PathParam("username") final String username, @Context final HttpServletRequest req,
+        final String payload )
     {
-        Principal principal = req.getUserPrincipal();
-        if ( principal == null || !principal.getName().equals( NEO4J_USER ) )
+        long start = System.nanoTime();
+        Response refused = refuse( req, output, context.admission() );
+        Response response = refused != null ? refused
+            : context.idempotency().execute( "useradd", username, req, payload, output,
+                new IdempotencyCache.Action()
         {
-            return output.notFound();
+            @Override
+            public Response run( IdempotencyCache.Settlement settlement )
+            {
+                return create( username, req, payload, settlement );
+            }
+        } );
+        long elapsed = System.nanoTime() - start;
+        context.metrics().completed( UserManagementMetrics.USERADD, response.getStatus(), elapsed );
+        if ( AuditLog.mutated( response.getStatus() ) )
+        {
+            context.audit().record( UserManagementMetrics.USERADD, AuditLog.actor( req ), username,
+                String.valueOf( response.getStatus() ), elapsed );
         }
+        return response;
+    }
 
+    private Response create( String username, HttpServletRequest req, String payload,
+            IdempotencyCache.Settlement settlement )
+    {
         final Map<String, Object> deserialized;
+        long parseStart = System.nanoTime();
         try
         {
             deserialized = input.readMap( payload );
@@ -83,40 +136,317 @@ public class UserAddService
         {
             return output.response( BAD_REQUEST, new ExceptionRepresentation(
             new Neo4jError( Status.Request.InvalidFormat, e.getMessage() ) ) );
+        } finally
+        {
+            context.metrics().record( UserManagementMetrics.USERADD, UserManagementMetrics.PARSE, System.nanoTime() - parseStart );
         }
 
-        Object o = deserialized.get( PASSWORD );
-        if ( o == null )
+        Neo4jError invalid = validatePassword( deserialized.get( PASSWORD ) );
+        if ( invalid != null )
         {
-            return output.response( UNPROCESSABLE, new ExceptionRepresentation(
-            new Neo4jError( Status.Request.InvalidFormat, String.format( "Required parameter '%s' is missing.", PASSWORD ) ) ) );
+            return output.response( UNPROCESSABLE, new ExceptionRepresentation( invalid ) );
         }
-        if ( !( o instanceof String ) )
+        String newPassword = (String) deserialized.get( PASSWORD );
+
+        // Operations on the same user are applied one at a time
+        try ( UserLocks.Held ignored = context.locks().lock( username ) )
         {
-            return output.response( UNPROCESSABLE, new ExceptionRepresentation(
-            new Neo4jError( Status.Request.InvalidFormat, String.format( "Expected '%s' to be a string.", PASSWORD ) ) ) );
+            return write( username, newPassword, settlement );
         }
-        String newPassword = (String) o;
-        if ( newPassword.length() == 0 )
+    }
+
+    private Response write( final String username, String newPassword, IdempotencyCache.Settlement settlement )
+    {
+        // Claim the name before hashing, so a duplicate costs nothing
+        if ( !context.users().reserve( username ) )
         {
-            return output.response( UNPROCESSABLE, new ExceptionRepresentation(
-            new Neo4jError( Status.Request.Invalid, "Password cannot be empty." ) ) );
+            return output.response( CONFLICT, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.Invalid, "The specified user already exists" ) ) );
         }
 
         final User newUser;
+        Future<User> pending = null;
+        long writeStart = System.nanoTime();
         try
         {
-            newUser = authManager.newUser( username, newPassword, true );
+            UserWriteCoalescer writes = context.writes();
+            writes.reserve( 1, false );
+            pending = writes.submitNewUser( authManager, username, newPassword, true );
+            newUser = writes.awaitUser( pending );
+            context.metrics().record( UserManagementMetrics.USERADD, UserManagementMetrics.WRITE, System.nanoTime() - writeStart );
+        } catch ( UserWriteTimeoutException e )
+        {
+            // The user may yet be created, so keep the name claimed until the write is settled
+            final Runnable settle = settleNewUser( context.users(), context.changes(), username, pending );
+            final Future<User> created = pending;
+            FutureTask<Response> settled = new FutureTask<>( new Callable<Response>()
+            {
+                @Override
+                public Response call()
+                {
+                    settle.run();
+                    try
+                    {
+                        return created.get() == null ? output.notFound() : output.ok();
+                    } catch ( InterruptedException | ExecutionException e )
+                    {
+                        return output.serverErrorWithoutLegacyStacktrace( e.getCause() == null ? e : e.getCause() );
+                    }
+                }
+            } );
+            settlement.settleWith( settled );
+            context.writes().whenDone( pending, settled );
+            return unavailable( e );
+        } catch ( RejectedExecutionException e )
+        {
+            context.users().release( username );
+            return unavailable( e );
         } catch ( IOException | IllegalUsernameException e )
         {
+            context.users().release( username );
             return output.serverErrorWithoutLegacyStacktrace( e );
         }
 
         if (newUser == null)
         {
+            context.users().release( username );
             return output.notFound();
         }
 
+        context.users().created( username, newUser.passwordChangeRequired() );
+        context.changes().added( newUser );
         return output.ok();
     }
+
+    /**
+     * Create a batch of users from a JSON list of <code>{username, password}</code> maps.
+     * Every entry is validated before any user is created, and a result is reported per entry.
+     * <p>
+     * With a store configured the batch is written, and so made durable, all at once. Without one, the default,
+     * each user goes through the server's AuthManager and is made durable on its own. A retry with the same idempotency key is
+     * answered with the results of the first attempt, whose entries may have failed only for timing out.
+     * The batch takes an admission token for each of its entries.
+     */
+    @POST
+    public Response createUsers( @Context final HttpServletRequest req, final String payload )
+    {
+        long start = System.nanoTime();
+        Response response = admitAll( req, payload );
+        context.metrics().completed( UserManagementMetrics.USERADD_BATCH, response.getStatus(), System.nanoTime() - start );
+        return response;
+    }
+
+    /**
+     * Parse the batch before admitting it, so that it can be charged a token for each of its entries.
+     */
+    private Response admitAll( final HttpServletRequest req, final String payload )
+    {
+        Principal principal = req.getUserPrincipal();
+        if ( principal == null || !principal.getName().equals( NEO4J_USER ) )
+        {
+            return output.notFound();
+        }
+
+        final Object deserialized;
+        long parseStart = System.nanoTime();
+        try
+        {
+            deserialized = readJson( payload );
+        } catch ( BadInputException e )
+        {
+            return output.response( BAD_REQUEST, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.InvalidFormat, e.getMessage() ) ) );
+        } finally
+        {
+            context.metrics().record( UserManagementMetrics.USERADD_BATCH, UserManagementMetrics.PARSE, System.nanoTime() - parseStart );
+        }
+
+        if ( !( deserialized instanceof List ) )
+        {
+            return output.response( UNPROCESSABLE, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.InvalidFormat, "Expected a list of users." ) ) );
+        }
+
+        Response refused = refuse( req, output, context.admission(), ((List<?>) deserialized).size() );
+        return refused != null ? refused
+            : context.idempotency().execute( "useradd_batch", "", req, payload, output,
+                new IdempotencyCache.Action()
+        {
+            @Override
+            public Response run( IdempotencyCache.Settlement settlement )
+            {
+                return createAll( req, (List<?>) deserialized );
+            }
+        } );
+    }
+
+    private Response createAll( HttpServletRequest req, List<?> entries )
+    {
+        // Validate the whole batch up front so that no work is done for entries that cannot succeed
+        UserBatch batch = new UserBatch( authManager, context, req.getUserPrincipal().getName(), false );
+        for ( Object entry : entries )
+        {
+            batch.add( entry );
+        }
+
+        Map<String, Object> document = new LinkedHashMap<>();
+        long writeStart = System.nanoTime();
+        try
+        {
+            document.put( RESULTS, batch.apply() );
+            context.metrics().record( UserManagementMetrics.USERADD_BATCH, UserManagementMetrics.WRITE, System.nanoTime() - writeStart );
+        } catch ( RejectedExecutionException | UserWriteTimeoutException e )
+        {
+            return unavailable( e );
+        } catch ( IOException e )
+        {
+            return output.serverErrorWithoutLegacyStacktrace( e );
+        }
+        return output.ok( new MapRepresentation( document ) );
+    }
+
+    /**
+     * Create users streamed as newline delimited JSON, one <code>{username, password}</code> map per line.
+     * The request body is consumed incrementally and a result line is streamed back for each input line.
+     * The request is measured until its results start streaming, and the write of each chunk on its own.
+     * Each chunk waits for an admission token for each of its entries before it is written.
+     */
+    @POST
+    @Consumes( NDJSON )
+    public Response importUsers( @Context HttpServletRequest req, InputStream payload )
+    {
+        long start = System.nanoTime();
+        Response response = importAll( req, payload );
+        context.metrics().completed( UserManagementMetrics.USERADD_IMPORT, response.getStatus(), System.nanoTime() - start );
+        return response;
+    }
+
+    private Response importAll( HttpServletRequest req, InputStream payload )
+    {
+        Response refused = refuse( req, output, context.admission() );
+        if ( refused != null )
+        {
+            return refused;
+        }
+
+        // An import waits for hashing capacity, and admission, between chunks instead of failing part way through
+        UserBatch batch = new UserBatch( authManager, context, req.getUserPrincipal().getName(), true );
+        return Response.ok( new UserImport( batch, payload, UserImport.DEFAULT_CHUNK_SIZE, context.metrics(),
+            context.admission(), req ), NDJSON ).build();
+    }
+
+    /**
+     * @return a callback that completes the bookkeeping of a new user whose caller stopped waiting for it,
+     * recording the user if it was created or giving up its claim on the name if not
+     */
+    static Runnable settleNewUser( final UsernameIndex users, final UserChangeLog changes, final String username,
+            final Future<User> pending )
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                User newUser = null;
+                try
+                {
+                    newUser = pending.get();
+                } catch ( InterruptedException | ExecutionException e )
+                {
+                    // Not created
+                }
+                if ( newUser == null )
+                {
+                    users.release( username );
+                } else
+                {
+                    users.created( username, newUser.passwordChangeRequired() );
+                    changes.added( newUser );
+                }
+            }
+        };
+    }
+
+    private Response unavailable( Exception e )
+    {
+        return Response.fromResponse( output.response( SERVICE_UNAVAILABLE, new ExceptionRepresentation(
+            new Neo4jError( Status.General.UnknownFailure, e.getMessage() ) ) ) )
+            .header( RETRY_AFTER, context.writes().retryAfterSeconds() ).build();
+    }
+
+    /**
+     * Check that the request is from the neo4j user before taking an admission token for it, so that
+     * requests that would be refused anyway cannot use up the tokens of those that would not.
+     *
+     * @return 404 if the request is not from the neo4j user, 429 if it is not admitted, otherwise null
+     */
+    static Response refuse( HttpServletRequest req, OutputFormat output, AdmissionControl admission )
+    {
+        return refuse( req, output, admission, 1 );
+    }
+
+    /**
+     * As {@link #refuse(HttpServletRequest, OutputFormat, AdmissionControl)}, taking an admission token for
+     * each entry of a request with many, as each may cost a password hash.
+     *
+     * @return 413 too if the request has more entries than it could ever be admitted with
+     */
+    static Response refuse( HttpServletRequest req, OutputFormat output, AdmissionControl admission, int entries )
+    {
+        Principal principal = req.getUserPrincipal();
+        if ( principal == null || !principal.getName().equals( NEO4J_USER ) )
+        {
+            return output.notFound();
+        }
+        if ( entries > admission.maxEntries() )
+        {
+            return output.response( REQUEST_ENTITY_TOO_LARGE, new ExceptionRepresentation(
+                new Neo4jError( Status.Request.Invalid, String.format( "A request may have at most %d entries, "
+                        + "as many as the admission burst allows; split it into smaller ones.", admission.maxEntries() ) ) ) );
+        }
+        int retryAfter = admission.admit( req, Math.max( 1, entries ) );
+        return retryAfter > 0 ? tooManyRequests( output, retryAfter ) : null;
+    }
+
+    static Response tooManyRequests( OutputFormat output, int retryAfterSeconds )
+    {
+        return Response.fromResponse( output.response( AdmissionControl.TOO_MANY_REQUESTS, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.Invalid, "Too many requests, retry later." ) ) ) )
+            .header( RETRY_AFTER, retryAfterSeconds ).build();
+    }
+
+    /**
+     * Parse a request body that may be any JSON value. {@link InputFormat#readValue} refuses a map, which
+     * would make a well formed body of the wrong shape indistinguishable from a malformed one.
+     */
+    static Object readJson( String payload ) throws BadInputException
+    {
+        try
+        {
+            return JsonHelper.readJson( payload );
+        } catch ( JsonParseException e )
+        {
+            throw new BadInputException( e );
+        }
+    }
+
+    /**
+     * @return the error describing why the password is unacceptable, or null if it is valid
+     */
+    static Neo4jError validatePassword( Object o )
+    {
+        if ( o == null )
+        {
+            return new Neo4jError( Status.Request.InvalidFormat, String.format( "Required parameter '%s' is missing.", PASSWORD ) );
+        }
+        if ( !( o instanceof String ) )
+        {
+            return new Neo4jError( Status.Request.InvalidFormat, String.format( "Expected '%s' to be a string.", PASSWORD ) );
+        }
+        if ( ((String) o).length() == 0 )
+        {
+            return new Neo4jError( Status.Request.Invalid, "Password cannot be empty." );
+        }
+        return null;
+    }
 }
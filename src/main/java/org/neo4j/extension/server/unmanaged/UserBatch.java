@@ -0,0 +1,408 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.neo4j.server.rest.transactional.error.Neo4jError;
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.server.security.auth.exception.IllegalUsernameException;
+
+import static org.neo4j.extension.server.unmanaged.UserAddService.MESSAGE;
+import static org.neo4j.extension.server.unmanaged.UserAddService.PASSWORD;
+import static org.neo4j.extension.server.unmanaged.UserAddService.STATUS;
+import static org.neo4j.extension.server.unmanaged.UserAddService.USERNAME;
+
+/**
+ * Collects a batch of <code>{username, password}</code> entries, validating each as it is added,
+ * and then creates the accepted users in one pass.
+ * <p>
+ * With the extension's own store, every password is hashed first, a hashing capacity at a time, and the
+ * whole batch is then created in a single write, so it becomes durable at once. Without it each user goes
+ * through the server's AuthManager, which makes each durable on its own, rewriting the auth file every time.
+ *
+ * @author Robin Bramley
+ */
+class UserBatch
+{
+    public static final String CREATED = "created";
+    public static final String INVALID = "invalid";
+    public static final String DUPLICATE = "duplicate";
+    public static final String EXISTS = "exists";
+    public static final String FAILED = "failed";
+
+    private final AuthManager authManager;
+    private final UserWriteCoalescer writes;
+    private final UserStore store;
+    private final UsernameIndex users;
+    private final AuditLog audit;
+    private final UserChangeLog changes;
+    private final UserLocks locks;
+    private final String actor;
+    private final boolean waitForCapacity;
+    private final List<Map<String, Object>> results = new ArrayList<>();
+    private final List<Map<String, Object>> accepted = new ArrayList<>();
+    private final Set<String> seen = new HashSet<>();
+
+    /**
+     * @param actor the principal creating the users, for the audit log
+     * @param waitForCapacity whether to wait for password hashing capacity rather than reject the batch
+     */
+    UserBatch( AuthManager authManager, UserManagementContext context, String actor, boolean waitForCapacity )
+    {
+        this.authManager = authManager;
+        this.writes = context.writes();
+        this.store = context.store();
+        this.users = context.users();
+        this.audit = context.audit();
+        this.changes = context.changes();
+        this.locks = context.locks();
+        this.actor = actor;
+        this.waitForCapacity = waitForCapacity;
+    }
+
+    /**
+     * Record an entry that could not even be read, in its place among the results.
+     *
+     * @return the result document for the entry
+     */
+    Map<String, Object> invalid( String message )
+    {
+        Map<String, Object> result = new LinkedHashMap<>();
+        results.add( result );
+        return reject( result, INVALID, message );
+    }
+
+    /**
+     * Validate an entry and queue it for creation.
+     *
+     * @return the result document for the entry, completed by {@link #apply()}
+     */
+    Map<String, Object> add( Object entry )
+    {
+        Map<String, Object> result = new LinkedHashMap<>();
+        results.add( result );
+        if ( !( entry instanceof Map ) )
+        {
+            return reject( result, INVALID, String.format( "Expected a map with '%s' and '%s'.", USERNAME, PASSWORD ) );
+        }
+        Map<?, ?> user = (Map<?, ?>) entry;
+        Object username = user.get( USERNAME );
+        if ( !( username instanceof String ) || ((String) username).length() == 0 )
+        {
+            return reject( result, INVALID, String.format( "Expected '%s' to be a non-empty string.", USERNAME ) );
+        }
+        result.put( USERNAME, username );
+        Neo4jError invalid = UserAddService.validatePassword( user.get( PASSWORD ) );
+        if ( invalid != null )
+        {
+            return reject( result, INVALID, invalid.getMessage() );
+        }
+        if ( !seen.add( (String) username ) )
+        {
+            return reject( result, DUPLICATE, "The specified user appears more than once in the batch" );
+        }
+        if ( users.contains( (String) username ) )
+        {
+            return reject( result, EXISTS, "The specified user already exists" );
+        }
+        result.put( PASSWORD, user.get( PASSWORD ) );
+        accepted.add( result );
+        return result;
+    }
+
+    int size()
+    {
+        return results.size();
+    }
+
+    /**
+     * Create the accepted users and reset the batch. Passwords are hashed, and created users waited for,
+     * without holding the locks on their names, which are held only while the names are claimed and the
+     * users submitted.
+     *
+     * @return the result documents for every entry added since the last call, in order
+     * @throws RejectedExecutionException if the password hashing queue cannot take the first part of the batch,
+     * when not waiting for capacity; later parts always wait for the earlier ones to make room
+     */
+    List<Map<String, Object>> apply() throws IOException
+    {
+        long start = System.nanoTime();
+        if ( store != null )
+        {
+            createInStore();
+        } else
+        {
+            createThroughAuthManager();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        for ( Map<String, Object> result : results )
+        {
+            if ( CREATED.equals( result.get( STATUS ) ) )
+            {
+                audit.record( UserManagementMetrics.USERADD_BATCH, actor, (String) result.get( USERNAME ),
+                        CREATED, elapsed );
+            }
+        }
+
+        List<Map<String, Object>> completed = new ArrayList<>( results );
+        results.clear();
+        accepted.clear();
+        seen.clear();
+        return completed;
+    }
+
+    /**
+     * Hash every password, reserving capacity a part at a time as the hashing of earlier parts makes room,
+     * then create the whole batch in a single write.
+     */
+    private void createInStore() throws IOException
+    {
+        // The store only checks names as users are created one at a time, so check them before hashing
+        for ( Iterator<Map<String, Object>> it = accepted.iterator(); it.hasNext(); )
+        {
+            Map<String, Object> result = it.next();
+            String username = (String) result.get( USERNAME );
+            if ( !store.isValidName( username ) )
+            {
+                result.remove( PASSWORD );
+                reject( result, INVALID, "'" + username + "' is not a valid user name." );
+                it.remove();
+            }
+        }
+
+        int capacity = writes.capacity();
+        List<Future<Credential>> hashed = new ArrayList<>( accepted.size() );
+        for ( int from = 0; from < accepted.size(); from += capacity )
+        {
+            List<Map<String, Object>> part = accepted.subList( from, Math.min( accepted.size(), from + capacity ) );
+            if ( !reserve( from, part.size() ) )
+            {
+                break;
+            }
+            for ( Map<String, Object> result : part )
+            {
+                hashed.add( writes.submitHash( (String) result.remove( PASSWORD ) ) );
+            }
+        }
+
+        List<User> hashedUsers = new ArrayList<>( hashed.size() );
+        List<Map<String, Object>> hashedResults = new ArrayList<>( hashed.size() );
+        for ( int i = 0; i < hashed.size(); i++ )
+        {
+            Map<String, Object> result = accepted.get( i );
+            try
+            {
+                hashedUsers.add( new User( (String) result.get( USERNAME ), writes.awaitWrite( hashed.get( i ) ), true ) );
+                hashedResults.add( result );
+            } catch ( IOException e )
+            {
+                reject( result, FAILED, e.getMessage() );
+            }
+        }
+
+        final List<UserStore.Write> creates = new ArrayList<>( hashedUsers.size() );
+        List<Map<String, Object>> creating = new ArrayList<>( hashedUsers.size() );
+        Future<boolean[]> pending;
+        try ( UserLocks.Held ignored = locks.lockAll( usernames( hashedResults ) ) )
+        {
+            // Claim the names only once their stripes are locked, so that a sync cannot clear a claim meanwhile
+            for ( int i = 0; i < hashedUsers.size(); i++ )
+            {
+                if ( users.reserve( hashedUsers.get( i ).name() ) )
+                {
+                    creates.add( UserStore.Write.create( hashedUsers.get( i ) ) );
+                    creating.add( hashedResults.get( i ) );
+                } else
+                {
+                    reject( hashedResults.get( i ), EXISTS, "The specified user already exists" );
+                }
+            }
+            if ( creates.isEmpty() )
+            {
+                return;
+            }
+            pending = writes.submitWrite( new Callable<boolean[]>()
+            {
+                @Override
+                public boolean[] call() throws Exception
+                {
+                    return store.write( creates );
+                }
+            }, false );
+        }
+
+        boolean[] created;
+        try
+        {
+            created = writes.awaitWrite( pending );
+        } catch ( UserWriteTimeoutException e )
+        {
+            // The users may yet be created, so the names stay claimed until the write is settled
+            writes.whenDone( pending, UserSync.settleWrites( users, changes, creates, pending ) );
+            for ( Map<String, Object> result : creating )
+            {
+                reject( result, FAILED, e.getMessage() );
+            }
+            return;
+        } catch ( IOException e )
+        {
+            for ( Map<String, Object> result : creating )
+            {
+                reject( result, FAILED, e.getMessage() );
+                users.release( (String) result.get( USERNAME ) );
+            }
+            return;
+        }
+
+        UserSync.recordWrites( users, changes, creates, created );
+        for ( int i = 0; i < creating.size(); i++ )
+        {
+            if ( created[i] )
+            {
+                creating.get( i ).put( STATUS, CREATED );
+            } else
+            {
+                reject( creating.get( i ), EXISTS, "The specified user already exists" );
+            }
+        }
+    }
+
+    /**
+     * Queue every user before waiting on any, reserving hashing capacity a part at a time as the hashing
+     * of earlier parts makes room.
+     */
+    private void createThroughAuthManager() throws IOException
+    {
+        int capacity = writes.capacity();
+        List<Map<String, Object>> submitted = new ArrayList<>( accepted.size() );
+        List<Future<User>> pending = new ArrayList<>( accepted.size() );
+        for ( int from = 0; from < accepted.size(); from += capacity )
+        {
+            List<Map<String, Object>> part = accepted.subList( from, Math.min( accepted.size(), from + capacity ) );
+            if ( !reserve( from, part.size() ) )
+            {
+                break;
+            }
+            try ( UserLocks.Held ignored = locks.lockAll( usernames( part ) ) )
+            {
+                // Claim the names only once their stripes are locked, so that a sync cannot clear a claim meanwhile
+                for ( Map<String, Object> result : part )
+                {
+                    String username = (String) result.get( USERNAME );
+                    String password = (String) result.remove( PASSWORD );
+                    if ( !users.reserve( username ) )
+                    {
+                        writes.release( 1 );
+                        reject( result, EXISTS, "The specified user already exists" );
+                        continue;
+                    }
+                    submitted.add( result );
+                    pending.add( writes.submitNewUser( authManager, username, password, true ) );
+                }
+            }
+        }
+
+        for ( int i = 0; i < pending.size(); i++ )
+        {
+            Map<String, Object> result = submitted.get( i );
+            String username = (String) result.get( USERNAME );
+            try
+            {
+                User newUser = writes.awaitUser( pending.get( i ) );
+                result.put( STATUS, newUser == null ? FAILED : CREATED );
+                if ( newUser == null )
+                {
+                    users.release( username );
+                } else
+                {
+                    users.created( username, newUser.passwordChangeRequired() );
+                    changes.added( newUser );
+                }
+            } catch ( UserWriteTimeoutException e )
+            {
+                // The user may yet be created, so the name stays claimed until the write is settled
+                writes.whenDone( pending.get( i ), UserAddService.settleNewUser( users, changes, username, pending.get( i ) ) );
+                reject( result, FAILED, e.getMessage() );
+            } catch ( IOException | IllegalUsernameException e )
+            {
+                reject( result, FAILED, e.getMessage() );
+                users.release( username );
+            }
+        }
+    }
+
+    /**
+     * Reserve hashing capacity for the part of the batch starting at <code>from</code>. Only the first part
+     * may be refused when not waiting for capacity, failing the whole batch; a later part always waits
+     * for the earlier ones to make room, and if it cannot, it and the parts after it fail.
+     *
+     * @return whether capacity was reserved
+     */
+    private boolean reserve( int from, int count ) throws IOException
+    {
+        try
+        {
+            writes.reserve( count, waitForCapacity || from > 0 );
+            return true;
+        } catch ( IOException | RuntimeException e )
+        {
+            if ( from == 0 )
+            {
+                throw e;
+            }
+            for ( Map<String, Object> result : accepted.subList( from, accepted.size() ) )
+            {
+                result.remove( PASSWORD );
+                reject( result, FAILED, e.getMessage() );
+            }
+            return false;
+        }
+    }
+
+    private static List<String> usernames( List<Map<String, Object>> results )
+    {
+        List<String> usernames = new ArrayList<>( results.size() );
+        for ( Map<String, Object> result : results )
+        {
+            usernames.add( (String) result.get( USERNAME ) );
+        }
+        return usernames;
+    }
+
+    private static Map<String, Object> reject( Map<String, Object> result, String status, String message )
+    {
+        result.put( STATUS, status );
+        result.put( MESSAGE, message );
+        return result;
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.neo4j.server.security.auth.User;
+
+/**
+ * A bounded, in-memory log of the users added, updated and deleted through the extension, each given the
+ * next sequence number, so that consumers can catch up on what changed since the last sequence they saw.
+ * Once the log is full the oldest changes are discarded, and a consumer that has fallen that far behind
+ * must list the users again.
+ * <p>
+ * Sequence numbers start again from 1 when the server restarts; the epoch tells consumers when it has.
+ * <p>
+ * A change made here keeps the added or updated user, credentials and all, so it can be replicated to peers.
+ * Changes replicated from peers are logged too, but marked as not local so that they are not sent back.
+ *
+ * @author Robin Bramley
+ */
+class UserChangeLog
+{
+    public static final String ADDED = "added";
+    public static final String UPDATED = "updated";
+    public static final String DELETED = "deleted";
+
+    private final long epoch = System.currentTimeMillis();
+
+    // Guarded by this
+    private final Change[] changes;
+    private long last;
+
+    UserChangeLog( int capacity )
+    {
+        this.changes = new Change[Math.max( 1, capacity )];
+    }
+
+    void added( User user )
+    {
+        append( ADDED, user.name(), user, true );
+    }
+
+    void updated( User user )
+    {
+        append( UPDATED, user.name(), user, true );
+    }
+
+    void deleted( String username )
+    {
+        append( DELETED, username, null, true );
+    }
+
+    /**
+     * Log a user added by replication from a peer.
+     */
+    void replicatedAdd( User user )
+    {
+        append( ADDED, user.name(), user, false );
+    }
+
+    /**
+     * Log a user updated by replication from a peer.
+     */
+    void replicatedUpdate( User user )
+    {
+        append( UPDATED, user.name(), user, false );
+    }
+
+    /**
+     * Log a user deleted by replication from a peer.
+     */
+    void replicatedDelete( String username )
+    {
+        append( DELETED, username, null, false );
+    }
+
+    private synchronized void append( String type, String username, User user, boolean local )
+    {
+        last++;
+        changes[(int) (last % changes.length)] = new Change( last, type, username, user, local );
+        notifyAll();
+    }
+
+    /**
+     * @param since the last sequence number the caller has seen, or 0 for none
+     * @param waitMillis how long to wait for a change if there are none after <code>since</code>
+     * @return up to <code>limit</code> changes after <code>since</code>, in order, which is empty if none
+     * arrived in time, or null if changes after <code>since</code> have already been discarded
+     */
+    synchronized List<Change> since( long since, int limit, long waitMillis ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while ( last <= since )
+        {
+            long remaining = deadline - System.currentTimeMillis();
+            if ( remaining <= 0 )
+            {
+                return Collections.emptyList();
+            }
+            wait( remaining );
+        }
+
+        long first = Math.max( 1, last - changes.length + 1 );
+        if ( since + 1 < first )
+        {
+            return null;
+        }
+        long end = Math.min( last, since + limit );
+        List<Change> result = new ArrayList<>( (int) (end - since) );
+        for ( long sequence = since + 1; sequence <= end; sequence++ )
+        {
+            result.add( changes[(int) (sequence % changes.length)] );
+        }
+        return result;
+    }
+
+    synchronized long last()
+    {
+        return last;
+    }
+
+    long epoch()
+    {
+        return epoch;
+    }
+
+    /**
+     * @return the change with the sequence number, or null if it has not been made or has been discarded
+     */
+    synchronized Change get( long sequence )
+    {
+        return sequence > last || sequence < first() ? null : changes[(int) (sequence % changes.length)];
+    }
+
+    /**
+     * @return the first sequence number still held, which is 1 more than the last if none are
+     */
+    synchronized long first()
+    {
+        return Math.max( 1, last - changes.length + 1 );
+    }
+
+    static class Change
+    {
+        final long sequence;
+        final String type;
+        final String username;
+        final User user;
+        final boolean local;
+        final long timeMillis = System.currentTimeMillis();
+
+        Change( long sequence, String type, String username, User user, boolean local )
+        {
+            this.sequence = sequence;
+            this.type = type;
+            this.username = username;
+            this.user = user;
+            this.local = local;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import org.neo4j.kernel.api.exceptions.Status;
+import org.neo4j.server.rest.repr.ExceptionRepresentation;
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.transactional.error.Neo4jError;
+
+import static javax.ws.rs.core.Response.Status.GONE;
+import static org.neo4j.server.rest.web.CustomStatusType.UNPROCESSABLE;
+
+/**
+ * Enable consumers to follow the users added and deleted through the extension.
+ * <p>
+ * A request for the changes after the last sequence number seen is held open until there is
+ * at least one, or the timeout passes, and then answered with the changes in order and the
+ * sequence number to ask from next. If the changes have already been discarded the response
+ * is 410, and the consumer should list the users again. So is a request for changes after a
+ * sequence number not yet reached, as sequence numbers start again when the server restarts.
+ *
+ * @author Robin Bramley
+ */
+@Path( "/userchanges" )
+public class UserChangesService
+{
+    public static final String NEO4J_USER = "neo4j";
+    public static final String EPOCH = "epoch";
+    public static final String CHANGES = "changes";
+    public static final String SEQUENCE = "sequence";
+    public static final String TYPE = "type";
+    public static final String LAST = "last";
+    public static final int MAX_LIMIT = 10000;
+    public static final long MAX_TIMEOUT_MILLIS = 60000;
+
+    private static final JsonFactory factory = new JsonFactory();
+
+    private final OutputFormat output;
+    private final UserManagementContext context;
+
+    public UserChangesService( @Context OutputFormat output, @Context UserManagementContext context )
+    {
+        this.output = output;
+        this.context = context;
+    }
+
+    @GET
+    public Response changes( @QueryParam("since") @DefaultValue("0") final long since,
+            @QueryParam("limit") @DefaultValue("1000") int limit,
+            @QueryParam("timeout") @DefaultValue("30000") long timeout, @Context HttpServletRequest req )
+    {
+        Principal principal = req.getUserPrincipal();
+        if ( principal == null || !principal.getName().equals( NEO4J_USER ) )
+        {
+            return output.notFound();
+        }
+
+        if ( since < 0 )
+        {
+            return output.response( UNPROCESSABLE, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.Invalid, "Expected 'since' not to be negative." ) ) );
+        }
+        if ( limit < 1 || limit > MAX_LIMIT )
+        {
+            return output.response( UNPROCESSABLE, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.Invalid, String.format( "Expected 'limit' to be between 1 and %d.", MAX_LIMIT ) ) ) );
+        }
+
+        final UserChangeLog log = context.changes();
+        if ( since > log.last() )
+        {
+            return output.response( GONE, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.Invalid, "The changes requested are from before the server restarted, list the users again." ) ) );
+        }
+        List<UserChangeLog.Change> found;
+        try
+        {
+            found = log.since( since, limit, Math.max( 0, Math.min( timeout, MAX_TIMEOUT_MILLIS ) ) );
+        } catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            found = Collections.emptyList();
+        }
+        if ( found == null )
+        {
+            return output.response( GONE, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.Invalid, "The changes requested have been discarded, list the users again." ) ) );
+        }
+
+        final List<UserChangeLog.Change> changes = found;
+        StreamingOutput page = new StreamingOutput()
+        {
+            @Override
+            public void write( OutputStream out ) throws IOException, WebApplicationException
+            {
+                JsonGenerator generator = factory.createJsonGenerator( out, JsonEncoding.UTF8 );
+                generator.writeStartObject();
+                generator.writeNumberField( EPOCH, log.epoch() );
+                generator.writeArrayFieldStart( CHANGES );
+                for ( UserChangeLog.Change change : changes )
+                {
+                    generator.writeStartObject();
+                    generator.writeNumberField( SEQUENCE, change.sequence );
+                    generator.writeStringField( TYPE, change.type );
+                    generator.writeStringField( UserAddService.USERNAME, change.username );
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+                generator.writeNumberField( LAST, changes.isEmpty() ? since : changes.get( changes.size() - 1 ).sequence );
+                generator.writeEndObject();
+                generator.close();
+            }
+        };
+        return Response.ok( page, MediaType.APPLICATION_JSON_TYPE ).build();
+    }
+}
@@ -20,6 +20,10 @@ package org.neo4j.extension.server.unmanaged;
 
 import java.io.IOException;
 import java.security.Principal;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.GET;
@@ -29,6 +33,7 @@ import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
 
 import org.neo4j.kernel.api.exceptions.Status;
+import org.neo4j.server.rest.repr.ExceptionRepresentation;
 import org.neo4j.server.rest.repr.OutputFormat;
 import org.neo4j.server.rest.transactional.error.Neo4jError;
 import org.neo4j.server.security.auth.AuthManager;
@@ -38,6 +43,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
 import static org.neo4j.server.rest.web.CustomStatusType.UNPROCESSABLE;
 
 /**
@@ -52,30 +58,100 @@ public class UserDeleteService
 
     private final AuthManager authManager;
     private final OutputFormat output;
+    private final UserManagementContext context;
     public static final String NEO4J_USER = "neo4j";
 
     public UserDeleteService( @Context AuthManager authManager,
         @Context OutputFormat output )
     {
-        this.authManager = authManager;
+        this( authManager, output, UserManagementContext.shared() );
+    }
+
+    public UserDeleteService( @Context AuthManager authManager,
+        @Context OutputFormat output, @Context UserManagementContext context )
+    {
+        this.authManager = context.authManager( authManager );
         this.output = output;
+        this.context = context;
     }
 
     @GET
     @Path("/{username}")
-    public Response deleteUser( final @PathParam("username") String username, @Context HttpServletRequest req )
+    public Response deleteUser( final @PathParam("username") String username, final @Context HttpServletRequest req )
+    {
+        long start = System.nanoTime();
+        Response refused = UserAddService.refuse( req, output, context.admission() );
+        Response response = refused != null ? refused
+            : context.idempotency().execute( "userdel", username, req, null, output,
+                new IdempotencyCache.Action()
+        {
+            @Override
+            public Response run( IdempotencyCache.Settlement settlement )
+            {
+                return delete( username, req, settlement );
+            }
+        } );
+        long elapsed = System.nanoTime() - start;
+        context.metrics().completed( UserManagementMetrics.USERDEL, response.getStatus(), elapsed );
+        if ( AuditLog.mutated( response.getStatus() ) )
+        {
+            context.audit().record( UserManagementMetrics.USERDEL, AuditLog.actor( req ), username,
+                String.valueOf( response.getStatus() ), elapsed );
+        }
+        return response;
+    }
+
+    private Response delete( String username, HttpServletRequest req, IdempotencyCache.Settlement settlement )
     {
-        Principal principal = req.getUserPrincipal();
-        if ( principal == null || !principal.getName().equals( NEO4J_USER ) )
+        // Operations on the same user are applied one at a time
+        try ( UserLocks.Held ignored = context.locks().lock( username ) )
+        {
+            return write( username, req.getUserPrincipal(), settlement );
+        }
+    }
+
+    private Response write( String username, Principal principal, IdempotencyCache.Settlement settlement )
+    {
+        if ( context.users().isUnknown( username ) )
         {
             return output.notFound();
         }
 
         final boolean deleted;
+        Future<Boolean> pending = null;
+        long writeStart = System.nanoTime();
         try
         {
-            deleted = authManager.deleteUser( username );
+            UserWriteCoalescer writes = context.writes();
+            pending = writes.submitDeleteUser( authManager, username );
+            deleted = writes.awaitDeleted( pending );
             logger.info("User {} was deleted by {}: {}", username, principal.getName(), deleted);
+            context.metrics().record( UserManagementMetrics.USERDEL, UserManagementMetrics.WRITE, System.nanoTime() - writeStart );
+        } catch ( UserWriteTimeoutException e )
+        {
+            // The user may yet be deleted, so update the index and change log once the write is settled
+            final Runnable settle = settleDeletion( context.users(), context.changes(), username, pending );
+            final Future<Boolean> deletion = pending;
+            FutureTask<Response> settled = new FutureTask<>( new Callable<Response>()
+            {
+                @Override
+                public Response call()
+                {
+                    settle.run();
+                    try
+                    {
+                        return deletion.get() ? output.ok() : output.notFound();
+                    } catch ( InterruptedException | ExecutionException e )
+                    {
+                        return output.serverErrorWithoutLegacyStacktrace( e.getCause() == null ? e : e.getCause() );
+                    }
+                }
+            } );
+            settlement.settleWith( settled );
+            context.writes().whenDone( pending, settled );
+            return Response.fromResponse( output.response( SERVICE_UNAVAILABLE, new ExceptionRepresentation(
+                new Neo4jError( Status.General.UnknownFailure, e.getMessage() ) ) ) )
+                .header( UserAddService.RETRY_AFTER, context.writes().retryAfterSeconds() ).build();
         } catch ( IOException e )
         {
             return output.serverErrorWithoutLegacyStacktrace( e );
@@ -83,9 +159,37 @@ public class UserDeleteService
 
         if (deleted)
         {
+            context.users().removed( username );
+            context.changes().deleted( username );
             return output.ok();
         } else {
             return output.notFound();
         }
     }
+
+    /**
+     * @return a callback that completes the bookkeeping of a deletion whose caller stopped waiting for it
+     */
+    static Runnable settleDeletion( final UsernameIndex users, final UserChangeLog changes, final String username,
+            final Future<Boolean> pending )
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    if ( pending.get() )
+                    {
+                        users.removed( username );
+                        changes.deleted( username );
+                    }
+                } catch ( InterruptedException | ExecutionException e )
+                {
+                    // Not deleted
+                }
+            }
+        };
+    }
 }
@@ -0,0 +1,147 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.Principal;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import org.neo4j.kernel.api.exceptions.Status;
+import org.neo4j.server.rest.repr.BadInputException;
+import org.neo4j.server.rest.repr.ExceptionRepresentation;
+import org.neo4j.server.rest.repr.InputFormat;
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.transactional.error.Neo4jError;
+
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+import static org.neo4j.server.rest.web.CustomStatusType.UNPROCESSABLE;
+
+/**
+ * Enable many users to be looked up at once, given a JSON list of usernames.
+ * <p>
+ * Each user's existence, and whether it must change its password, is streamed straight
+ * from the username index to the response, in the order the usernames were given.
+ *
+ * @author Robin Bramley
+ */
+@Path( "/userexists" )
+public class UserExistsService
+{
+    public static final String NEO4J_USER = "neo4j";
+    public static final String USERS = "users";
+    public static final String EXISTS = "exists";
+
+    private static final JsonFactory factory = new JsonFactory();
+
+    private final InputFormat input;
+    private final OutputFormat output;
+    private final UserManagementContext context;
+
+    public UserExistsService( @Context InputFormat input, @Context OutputFormat output,
+            @Context UserManagementContext context )
+    {
+        this.input = input;
+        this.output = output;
+        this.context = context;
+    }
+
+    @POST
+    public Response lookupUsers( @Context HttpServletRequest req, String payload )
+    {
+        Principal principal = req.getUserPrincipal();
+        if ( principal == null || !principal.getName().equals( NEO4J_USER ) )
+        {
+            return output.notFound();
+        }
+
+        final UsernameIndex users = context.users();
+        if ( !users.isLoaded() )
+        {
+            return output.response( SERVICE_UNAVAILABLE, new ExceptionRepresentation(
+            new Neo4jError( Status.General.UnknownFailure, "The user index is not available." ) ) );
+        }
+
+        final Object deserialized;
+        try
+        {
+            deserialized = UserAddService.readJson( payload );
+        } catch ( BadInputException e )
+        {
+            return output.response( BAD_REQUEST, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.InvalidFormat, e.getMessage() ) ) );
+        }
+
+        if ( !( deserialized instanceof List ) )
+        {
+            return output.response( UNPROCESSABLE, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.InvalidFormat, "Expected a list of usernames." ) ) );
+        }
+        final List<?> usernames = (List<?>) deserialized;
+        for ( Object username : usernames )
+        {
+            if ( !( username instanceof String ) )
+            {
+                return output.response( UNPROCESSABLE, new ExceptionRepresentation(
+                new Neo4jError( Status.Request.InvalidFormat, "Expected every username to be a string." ) ) );
+            }
+        }
+
+        StreamingOutput found = new StreamingOutput()
+        {
+            @Override
+            public void write( OutputStream out ) throws IOException, WebApplicationException
+            {
+                JsonGenerator generator = factory.createJsonGenerator( out, JsonEncoding.UTF8 );
+                generator.writeStartObject();
+                generator.writeArrayFieldStart( USERS );
+                for ( Object username : usernames )
+                {
+                    Boolean passwordChangeRequired = users.passwordChangeRequired( (String) username );
+                    generator.writeStartObject();
+                    generator.writeStringField( UserAddService.USERNAME, (String) username );
+                    generator.writeBooleanField( EXISTS, passwordChangeRequired != null );
+                    if ( passwordChangeRequired != null )
+                    {
+                        generator.writeBooleanField( UsernameIndex.PASSWORD_CHANGE_REQUIRED, passwordChangeRequired );
+                    }
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+                generator.close();
+            }
+        };
+        return Response.ok( found, MediaType.APPLICATION_JSON_TYPE ).build();
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Streams users from newline delimited JSON, one <code>{username, password}</code> map per line,
+ * creating them in bounded chunks and writing one result line per input line as each chunk completes.
+ * Only a single chunk is ever held in memory, however large the import is, and with the extension's own
+ * store each chunk is made durable at once, so an import that breaks off keeps the chunks written before.
+ * As the results are already streaming, a chunk waits for its admission tokens rather than being refused,
+ * and a line longer than {@link #MAX_LINE_LENGTH} is reported invalid, without being held, rather than
+ * failing the import.
+ *
+ * @author Robin Bramley
+ */
+class UserImport implements StreamingOutput
+{
+    public static final String LINE = "line";
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+    public static final int MAX_LINE_LENGTH = 8192;
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final JsonFactory factory = mapper.getJsonFactory();
+
+    private final UserBatch batch;
+    private final InputStream in;
+    private final int chunkSize;
+    private final UserManagementMetrics metrics;
+    private final AdmissionControl admission;
+    private final HttpServletRequest req;
+
+    UserImport( UserBatch batch, InputStream in, int chunkSize, UserManagementMetrics metrics,
+            AdmissionControl admission, HttpServletRequest req )
+    {
+        this.batch = batch;
+        this.in = in;
+        this.chunkSize = chunkSize;
+        this.metrics = metrics;
+        this.admission = admission;
+        this.req = req;
+    }
+
+    @Override
+    public void write( OutputStream out ) throws IOException, WebApplicationException
+    {
+        BufferedReader reader = new BufferedReader( new InputStreamReader( in, UTF8 ) );
+        JsonGenerator generator = factory.createJsonGenerator( out, JsonEncoding.UTF8 );
+        try
+        {
+            long lineNumber = 0;
+            StringBuilder line = new StringBuilder();
+            long length;
+            while ( (length = readLine( reader, line )) >= 0 )
+            {
+                lineNumber++;
+                if ( line.toString().trim().length() == 0 )
+                {
+                    continue;
+                }
+
+                Map<String, Object> result;
+                if ( length > MAX_LINE_LENGTH )
+                {
+                    result = batch.invalid( String.format( "The line is longer than %d characters.", MAX_LINE_LENGTH ) );
+                } else
+                {
+                    try
+                    {
+                        result = batch.add( mapper.readValue( line.toString(), Map.class ) );
+                    } catch ( IOException e )
+                    {
+                        result = batch.invalid( "Unable to parse line as JSON." );
+                    }
+                }
+                result.put( LINE, lineNumber );
+
+                if ( batch.size() >= chunkSize )
+                {
+                    writeResults( generator );
+                }
+            }
+            writeResults( generator );
+        } finally
+        {
+            generator.close();
+            reader.close();
+        }
+    }
+
+    /**
+     * Read the next line into <code>line</code>, keeping no more than {@link #MAX_LINE_LENGTH} characters of it
+     * and skipping the rest, so that a client cannot make the server hold an unbounded line.
+     *
+     * @return the length of the whole line, or -1 at the end of the input
+     */
+    private static long readLine( Reader reader, StringBuilder line ) throws IOException
+    {
+        line.setLength( 0 );
+        long length = 0;
+        int c;
+        while ( (c = reader.read()) >= 0 && c != '\n' )
+        {
+            if ( length++ < MAX_LINE_LENGTH + 1 )
+            {
+                line.append( (char) c );
+            }
+        }
+        if ( c < 0 && length == 0 )
+        {
+            return -1;
+        }
+        if ( length <= MAX_LINE_LENGTH + 1 && line.length() > 0 && line.charAt( line.length() - 1 ) == '\r' )
+        {
+            line.setLength( line.length() - 1 );
+            length--;
+        }
+        return length;
+    }
+
+    private void writeResults( JsonGenerator generator ) throws IOException
+    {
+        try
+        {
+            admission.await( req, batch.size() );
+        } catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while waiting for admission", e );
+        }
+        long writeStart = System.nanoTime();
+        List<Map<String, Object>> results = batch.apply();
+        metrics.record( UserManagementMetrics.USERADD_IMPORT, UserManagementMetrics.WRITE, System.nanoTime() - writeStart );
+        for ( Map<String, Object> result : results )
+        {
+            generator.writeStartObject();
+            for ( Map.Entry<String, Object> field : result.entrySet() )
+            {
+                generator.writeObjectField( field.getKey(), field.getValue() );
+            }
+            generator.writeEndObject();
+            generator.writeRaw( '\n' );
+        }
+        generator.flush();
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.Principal;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import org.neo4j.kernel.api.exceptions.Status;
+import org.neo4j.server.rest.repr.ExceptionRepresentation;
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.transactional.error.Neo4jError;
+
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+import static org.neo4j.server.rest.web.CustomStatusType.UNPROCESSABLE;
+
+/**
+ * Enable users to be listed, a page at a time.
+ * <p>
+ * Each page is streamed straight from the username index to the response, ending with the
+ * cursor to pass as <code>after</code> for the next page when there is one.
+ *
+ * @author Robin Bramley
+ */
+@Path( "/userlist" )
+public class UserListService
+{
+    public static final String NEO4J_USER = "neo4j";
+    public static final String USERS = "users";
+    public static final String NEXT = "next";
+    public static final int MAX_LIMIT = 10000;
+
+    private static final JsonFactory factory = new JsonFactory();
+
+    private final OutputFormat output;
+    private final UserManagementContext context;
+
+    public UserListService( @Context OutputFormat output, @Context UserManagementContext context )
+    {
+        this.output = output;
+        this.context = context;
+    }
+
+    @GET
+    public Response listUsers( @QueryParam("after") final String after, @QueryParam("prefix") final String prefix,
+            @QueryParam("limit") @DefaultValue("1000") final int limit, @Context HttpServletRequest req )
+    {
+        Principal principal = req.getUserPrincipal();
+        if ( principal == null || !principal.getName().equals( NEO4J_USER ) )
+        {
+            return output.notFound();
+        }
+
+        if ( limit < 1 || limit > MAX_LIMIT )
+        {
+            return output.response( UNPROCESSABLE, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.Invalid, String.format( "Expected 'limit' to be between 1 and %d.", MAX_LIMIT ) ) ) );
+        }
+
+        final UsernameIndex users = context.users();
+        if ( !users.isLoaded() )
+        {
+            return output.response( SERVICE_UNAVAILABLE, new ExceptionRepresentation(
+            new Neo4jError( Status.General.UnknownFailure, "The user index is not available." ) ) );
+        }
+
+        StreamingOutput page = new StreamingOutput()
+        {
+            @Override
+            public void write( OutputStream out ) throws IOException, WebApplicationException
+            {
+                JsonGenerator generator = factory.createJsonGenerator( out, JsonEncoding.UTF8 );
+                generator.writeStartObject();
+                generator.writeArrayFieldStart( USERS );
+                Iterator<Map.Entry<String, Boolean>> entries = users.list( after, prefix ).iterator();
+                String last = null;
+                for ( int i = 0; i < limit && entries.hasNext(); i++ )
+                {
+                    Map.Entry<String, Boolean> user = entries.next();
+                    last = user.getKey();
+                    generator.writeStartObject();
+                    generator.writeStringField( UserAddService.USERNAME, last );
+                    generator.writeBooleanField( UsernameIndex.PASSWORD_CHANGE_REQUIRED, user.getValue() );
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+                if ( last != null && entries.hasNext() )
+                {
+                    generator.writeStringField( NEXT, last );
+                }
+                generator.writeEndObject();
+                generator.close();
+            }
+        };
+        return Response.ok( page, MediaType.APPLICATION_JSON_TYPE ).build();
+    }
+}
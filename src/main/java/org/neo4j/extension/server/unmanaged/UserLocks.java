@@ -0,0 +1,125 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks keyed by username, so that mutations of the same user are applied one at a time
+ * while mutations of different users proceed in parallel, meeting only at the group commit.
+ * <p>
+ * Operations on several users take the stripes they need in ascending order, so they cannot deadlock
+ * with each other or with single user operations.
+ *
+ * @author Robin Bramley
+ */
+class UserLocks
+{
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    /**
+     * @param stripes the number of locks, rounded up to a power of two
+     */
+    UserLocks( int stripes )
+    {
+        int count = Integer.highestOneBit( Math.max( 2, stripes ) - 1 ) << 1;
+        this.stripes = new ReentrantLock[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.mask = count - 1;
+    }
+
+    /**
+     * Lock the stripe for a user.
+     *
+     * @return the held lock, to be closed when the operation is complete
+     */
+    Held lock( String username )
+    {
+        BitSet held = new BitSet( stripes.length );
+        held.set( stripe( username ) );
+        return lock( held );
+    }
+
+    /**
+     * Lock the stripes for several users.
+     *
+     * @return the held locks, to be closed when the operation is complete
+     */
+    Held lockAll( Iterable<String> usernames )
+    {
+        BitSet held = new BitSet( stripes.length );
+        for ( String username : usernames )
+        {
+            held.set( stripe( username ) );
+        }
+        return lock( held );
+    }
+
+    /**
+     * Lock every stripe, for an operation that may touch any user.
+     *
+     * @return the held locks, to be closed when the operation is complete
+     */
+    Held lockEverything()
+    {
+        BitSet held = new BitSet( stripes.length );
+        held.set( 0, stripes.length );
+        return lock( held );
+    }
+
+    private Held lock( BitSet held )
+    {
+        for ( int i = held.nextSetBit( 0 ); i >= 0; i = held.nextSetBit( i + 1 ) )
+        {
+            stripes[i].lock();
+        }
+        return new Held( held );
+    }
+
+    private int stripe( String username )
+    {
+        int h = username.hashCode();
+        // Spread the high bits down, as the low bits of similar names differ little
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    class Held implements AutoCloseable
+    {
+        private final BitSet held;
+
+        private Held( BitSet held )
+        {
+            this.held = held;
+        }
+
+        @Override
+        public void close()
+        {
+            for ( int i = held.nextSetBit( 0 ); i >= 0; i = held.nextSetBit( i + 1 ) )
+            {
+                stripes[i].unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.List;
+
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.server.security.auth.UserRepository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The state shared by the user management resources for the lifetime of the server.
+ * It is created by {@link UserManagementLifecycle} and injected into each resource.
+ * <p>
+ * If a store is configured, it is put in place of the server's user repository as the server starts, after
+ * its AuthManager has loaded the auth file and before its web server can take a request, so that the server
+ * authenticates against the users kept in the store from its first request on and no change can reach the
+ * auth file in between. Only a context created without the server, as by a resource built on its own, waits
+ * for the server's AuthManager to be injected.
+ * Should the AuthManager of the Neo4j release in use not hold its repository as expected, the extension
+ * refuses to start rather than leave the server authenticating against anything but the configured store.
+ * Otherwise the server's AuthManager is left alone. Changes the server makes to the store itself, such as
+ * a password change through its own endpoint, are indexed and logged like the extension's own.
+ *
+ * @author Robin Bramley
+ */
+public class UserManagementContext
+{
+    private static final Logger logger = LoggerFactory.getLogger( UserManagementContext.class );
+
+    static final int DEFAULT_IDEMPOTENCY_ENTRIES = 10000;
+    static final long DEFAULT_IDEMPOTENCY_TTL_MILLIS = 60 * 60 * 1000;
+    static final int DEFAULT_CHANGELOG_CAPACITY = 100000;
+    static final int DEFAULT_LOCK_STRIPES = 1024;
+    static final int DEFAULT_REPLICATION_BATCH_SIZE = 500;
+    static final long DEFAULT_REPLICATION_RETRY_MILLIS = 1000;
+    static final int DEFAULT_REPLICATION_TIMEOUT_MILLIS = 10000;
+
+    private final UserWriteCoalescer writes;
+    private final UsernameIndex users;
+    private final UserManagementMetrics metrics = new UserManagementMetrics();
+    private final UserStore store;
+    private final IdempotencyCache idempotency;
+    private final AdmissionControl admission;
+    private final AuditLog audit;
+    private final UserChangeLog changes;
+    private final UserLocks locks;
+    private final UserReplicator replicator;
+    private volatile File authStore;
+    // Whether the store has been put behind the server's AuthManager
+    private volatile boolean installed;
+
+    UserManagementContext( UserWriteCoalescer writes, UsernameIndex users )
+    {
+        this( writes, users, null );
+    }
+
+    UserManagementContext( UserWriteCoalescer writes, UsernameIndex users, UserStore store )
+    {
+        this( writes, users, store, new IdempotencyCache( DEFAULT_IDEMPOTENCY_ENTRIES, DEFAULT_IDEMPOTENCY_TTL_MILLIS ),
+                AdmissionControl.unlimited(), AuditLog.disabled(), new UserChangeLog( DEFAULT_CHANGELOG_CAPACITY ),
+                new UserLocks( DEFAULT_LOCK_STRIPES ), UserReplicator.disabled() );
+    }
+
+    /**
+     * @param store a store for the extension to manage users in itself, or null to have them managed
+     * one at a time through the server's AuthManager
+     */
+    UserManagementContext( UserWriteCoalescer writes, UsernameIndex users, UserStore store,
+            IdempotencyCache idempotency, AdmissionControl admission, AuditLog audit, UserChangeLog changes,
+            UserLocks locks, UserReplicator replicator )
+    {
+        this.writes = writes;
+        this.users = users;
+        this.store = store;
+        this.idempotency = idempotency;
+        this.admission = admission;
+        this.audit = audit;
+        this.changes = changes;
+        this.locks = locks;
+        this.replicator = replicator;
+        writes.measure( metrics );
+        if ( store != null )
+        {
+            writes.attach( store );
+            store.listen( indexAndLog() );
+        }
+    }
+
+    /**
+     * @return a listener that indexes and logs the changes the server makes to the store itself
+     */
+    private UserStore.Listener indexAndLog()
+    {
+        return new UserStore.Listener()
+        {
+            @Override
+            public void created( User user )
+            {
+                users.restored( user.name(), user.passwordChangeRequired() );
+                changes.added( user );
+            }
+
+            @Override
+            public void updated( User user )
+            {
+                users.updated( user.name(), user.passwordChangeRequired() );
+                changes.updated( user );
+            }
+
+            @Override
+            public void deleted( String username )
+            {
+                users.removed( username );
+                changes.deleted( username );
+            }
+        };
+    }
+
+    /**
+     * @return a context that does all of its work on the calling thread, for embedding and testing
+     */
+    public static UserManagementContext inline()
+    {
+        return new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex() );
+    }
+
+    /**
+     * @return the context shared by every resource created without one, such as when the resources are
+     * embedded without {@link UserManagementLifecycle}, so that they still share one index, idempotency
+     * cache and set of metrics. It is created the first time it is asked for.
+     */
+    static UserManagementContext shared()
+    {
+        return Shared.CONTEXT;
+    }
+
+    static UserManagementContext create( UserManagementSettings settings )
+    {
+        PasswordHashingExecutor hashing = PasswordHashingExecutor.bounded(
+                settings.hashingThreads, settings.hashingQueueSize, settings.hashingRetryAfterSeconds );
+        UserStore store = null;
+        if ( "auth".equals( settings.store ) )
+        {
+            store = new AuthFileUserStore( settings.authStore );
+        } else if ( "journal".equals( settings.store ) )
+        {
+            store = new JournalUserRepository( settings.storeDirectory, settings.journalCompactAfter );
+        } else if ( "mapped".equals( settings.store ) )
+        {
+            store = new MappedUserStore( settings.storeDirectory, settings.mappedInitialCapacity );
+        } else if ( settings.store != null )
+        {
+            logger.error( "Unknown user store '{}' in {}, users will be managed through the server's AuthManager",
+                    settings.store, UserManagementSettings.STORE );
+        }
+        UserChangeLog changes = new UserChangeLog( settings.changelogCapacity );
+        return new UserManagementContext(
+                UserWriteCoalescer.grouping( settings.groupCommitWindowMillis, settings.groupCommitMaxSize, hashing,
+                        settings.writeTimeoutMillis ), new UsernameIndex(), store,
+                new IdempotencyCache( settings.idempotencyMaxEntries, settings.idempotencyTtlMillis ),
+                new AdmissionControl( settings.principalRate, settings.principalBurst,
+                        settings.addressRate, settings.addressBurst, settings.admissionMaxBuckets ),
+                settings.auditEnabled
+                        ? new AuditLog( settings.auditDirectory, settings.auditBufferSize, settings.auditBlockWhenFull,
+                                settings.auditMaxFileBytes, settings.auditMaxFiles, settings.auditCompress )
+                        : AuditLog.disabled(),
+                changes, new UserLocks( settings.lockStripes ),
+                new UserReplicator( changes, settings.replicationPeers, settings.replicationAuthorization,
+                        settings.replicationSecret, settings.replicationBatchSize, settings.replicationRetryMillis,
+                        settings.replicationTimeoutMillis ) );
+    }
+
+    /**
+     * @return the server's AuthManager, once the extension's own store, if it has one, is behind it
+     */
+    AuthManager authManager( AuthManager server )
+    {
+        if ( store != null && !installed )
+        {
+            install( server );
+        }
+        return server;
+    }
+
+    /**
+     * Put the store in place of the server's user repository. AuthManager offers no way to do this,
+     * so the field holding its repository is replaced reflectively. A store still empty by then, for want
+     * of an auth file to seed it from, is given the server's <code>neo4j</code> user.
+     *
+     * @throws IllegalStateException if the store cannot be installed, as the server would otherwise go on
+     * authenticating against users the extension no longer manages
+     */
+    private synchronized void install( AuthManager server )
+    {
+        if ( installed )
+        {
+            return;
+        }
+        try
+        {
+            Field field = repositoryField( AuthManager.class );
+            UserRepository previous = (UserRepository) field.get( server );
+            if ( previous != store )
+            {
+                if ( store instanceof AuthFileUserStore )
+                {
+                    // The server may have changed the file since the store read it
+                    ((AuthFileUserStore) store).reload();
+                    users.reset();
+                    users.load( store.usernames() );
+                }
+                if ( store.numberOfUsers() == 0 && previous != null
+                        && previous.findByName( UserAddService.NEO4J_USER ) != null )
+                {
+                    User neo4j = previous.findByName( UserAddService.NEO4J_USER );
+                    store.putAll( Collections.singletonList( neo4j ) );
+                    users.restored( neo4j.name(), neo4j.passwordChangeRequired() );
+                }
+                field.set( server, store );
+            }
+            installed = true;
+            logger.info( "The server now authenticates against the extension's user store" );
+        } catch ( IllegalAccessException | IOException e )
+        {
+            throw new IllegalStateException( "Unable to put the " + store.getClass().getSimpleName() + " configured in "
+                    + UserManagementSettings.STORE + " in place of the server's user repository", e );
+        }
+    }
+
+    /**
+     * Find the field in which AuthManager holds its repository: the single instance field declared as a
+     * {@link UserRepository}, as in the Neo4j release the extension is built against.
+     *
+     * @throws IllegalStateException if there is no such field, or more than one
+     */
+    static Field repositoryField( Class<?> type )
+    {
+        Field found = null;
+        for ( Field field : type.getDeclaredFields() )
+        {
+            if ( field.getType() == UserRepository.class && !Modifier.isStatic( field.getModifiers() ) )
+            {
+                if ( found != null )
+                {
+                    throw new IllegalStateException( type.getName() + " holds more than one user repository, "
+                            + "so the one to put the configured user store in place of is unknown. Unset "
+                            + UserManagementSettings.STORE + " to manage users through the server's AuthManager." );
+                }
+                found = field;
+            }
+        }
+        if ( found == null )
+        {
+            throw new IllegalStateException( type.getName() + " holds no field of type " + UserRepository.class.getName()
+                    + ", so the configured user store cannot be put in its place. Unset "
+                    + UserManagementSettings.STORE + " to manage users through the server's AuthManager." );
+        }
+        found.setAccessible( true );
+        return found;
+    }
+
+    UserWriteCoalescer writes()
+    {
+        return writes;
+    }
+
+    UsernameIndex users()
+    {
+        return users;
+    }
+
+    /**
+     * @return the extension's own store, or null if users are kept in the server's auth file
+     */
+    UserStore store()
+    {
+        return store;
+    }
+
+    UserManagementMetrics metrics()
+    {
+        return metrics;
+    }
+
+    IdempotencyCache idempotency()
+    {
+        return idempotency;
+    }
+
+    AdmissionControl admission()
+    {
+        return admission;
+    }
+
+    AuditLog audit()
+    {
+        return audit;
+    }
+
+    UserChangeLog changes()
+    {
+        return changes;
+    }
+
+    UserLocks locks()
+    {
+        return locks;
+    }
+
+    UserReplicator replicator()
+    {
+        return replicator;
+    }
+
+    /**
+     * @return the server's auth file, or null if it is not known yet
+     */
+    File authStore()
+    {
+        return authStore;
+    }
+
+    /**
+     * Load the username index from the extension's own store, seeding it first if need be, or from the
+     * server's auth file.
+     */
+    void loadIndex( File authStore ) throws IOException
+    {
+        this.authStore = authStore;
+        if ( store() != null )
+        {
+            seed( authStore );
+            users.load( store.usernames() );
+        } else
+        {
+            users.load( authStore );
+        }
+    }
+
+    /**
+     * Fill an empty store with the users in the server's auth file, so that none are lost by switching to it.
+     */
+    private void seed( File authStore ) throws IOException
+    {
+        if ( store.numberOfUsers() > 0 || authStore == null || !authStore.exists() )
+        {
+            return;
+        }
+        List<User> seeded = AuthFileUserStore.read( authStore );
+        store.putAll( seeded );
+        logger.info( "Seeded the extension's user store with {} users from {}", seeded.size(), authStore );
+    }
+
+    void start() throws Throwable
+    {
+        if ( store != null )
+        {
+            // Fail before anything is started, rather than halfway through installing the store
+            repositoryField( AuthManager.class );
+        }
+        audit.start();
+        if ( store != null )
+        {
+            store.start();
+        }
+        writes.start();
+        replicator.start();
+    }
+
+    void stop() throws Throwable
+    {
+        replicator.stop();
+        writes.stop();
+        if ( store != null )
+        {
+            // Once installed the server's AuthManager stops the store too, so it must tolerate being stopped twice
+            store.stop();
+        }
+        audit.stop();
+    }
+
+    /**
+     * Creates the shared context when it is first asked for, as the JVM initialises a class only once.
+     */
+    private static class Shared
+    {
+        private static final UserManagementContext CONTEXT = inline();
+    }
+}
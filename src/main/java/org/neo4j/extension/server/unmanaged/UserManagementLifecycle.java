@@ -0,0 +1,145 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.commons.configuration.Configuration;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.server.NeoServer;
+import org.neo4j.server.plugins.Injectable;
+import org.neo4j.server.plugins.SPIPluginLifecycle;
+import org.neo4j.server.security.auth.AuthManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the shared {@link UserManagementContext} when the server starts and makes it available
+ * to the user management resources through <code>@Context</code> injection.
+ * <p>
+ * The server starts its AuthManager before its extensions and its web server after them, so a configured
+ * store is put behind the AuthManager here, before the server can authenticate or change a single user.
+ *
+ * @author Robin Bramley
+ */
+public class UserManagementLifecycle implements SPIPluginLifecycle
+{
+    private static final Logger logger = LoggerFactory.getLogger( UserManagementLifecycle.class );
+
+    private UserManagementContext context;
+
+    @Override
+    public Collection<Injectable<?>> start( NeoServer neoServer )
+    {
+        return start( neoServer.getConfiguration(), authManager( neoServer ) );
+    }
+
+    @Override
+    public Collection<Injectable<?>> start( GraphDatabaseService graphDatabaseService, Configuration config )
+    {
+        return start( config, null );
+    }
+
+    /**
+     * @param authManager the server's AuthManager, to put a configured store behind at once, or null to do so
+     * the first time it is injected into a resource
+     */
+    private Collection<Injectable<?>> start( Configuration config, AuthManager authManager )
+    {
+        UserManagementSettings settings = new UserManagementSettings( config );
+        context = UserManagementContext.create( settings );
+        try
+        {
+            context.start();
+        } catch ( Throwable e )
+        {
+            throw new IllegalStateException( "Unable to start user management", e );
+        }
+        try
+        {
+            context.loadIndex( settings.authStore );
+            logger.info( "Indexed {} users", context.users().size() );
+        } catch ( IOException e )
+        {
+            logger.warn( "Unable to index users from " + settings.authStore + ", every lookup will go to the auth store", e );
+        }
+        if ( authManager != null )
+        {
+            context.authManager( authManager );
+        }
+        return Collections.<Injectable<?>>singletonList( new Injectable<UserManagementContext>()
+        {
+            @Override
+            public UserManagementContext getValue()
+            {
+                return context;
+            }
+
+            @Override
+            public Class<UserManagementContext> getType()
+            {
+                return UserManagementContext.class;
+            }
+        } );
+    }
+
+    /**
+     * The server offers no way to its AuthManager outside of a request, so it is read from the field that holds it.
+     *
+     * @throws IllegalStateException if the server holds no AuthManager
+     */
+    private static AuthManager authManager( NeoServer neoServer )
+    {
+        for ( Class<?> type = neoServer.getClass(); type != null; type = type.getSuperclass() )
+        {
+            for ( Field field : type.getDeclaredFields() )
+            {
+                if ( field.getType() == AuthManager.class )
+                {
+                    field.setAccessible( true );
+                    try
+                    {
+                        return (AuthManager) field.get( neoServer );
+                    } catch ( IllegalAccessException e )
+                    {
+                        throw new IllegalStateException( "Unable to read the AuthManager of " + type.getName(), e );
+                    }
+                }
+            }
+        }
+        throw new IllegalStateException( neoServer.getClass().getName() + " holds no AuthManager" );
+    }
+
+    @Override
+    public void stop()
+    {
+        try
+        {
+            context.stop();
+        } catch ( Throwable e )
+        {
+            logger.warn( "Unable to stop user management cleanly", e );
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request counts by status and latency histograms by phase for the user management resources.
+ * Counters and histograms are created on first use and updated without locking.
+ * <p>
+ * Group commits are measured on their own, under <code>group_commit</code>, with password hashing and
+ * the write to the store as separate phases, so that a slow write can be told apart from a slow hash.
+ *
+ * @author Robin Bramley
+ */
+class UserManagementMetrics
+{
+    public static final String USERADD = "useradd";
+    public static final String USERADD_BATCH = "useradd_batch";
+    public static final String USERADD_IMPORT = "useradd_import";
+    public static final String USERDEL = "userdel";
+    public static final String USERSYNC = "usersync";
+    public static final String USERROTATE = "userrotate";
+    public static final String USERSNAPSHOT = "usersnapshot";
+    public static final String USERREPLICATE = "userreplicate";
+    public static final String GROUP_COMMIT = "group_commit";
+
+    public static final String PARSE = "parse";
+    public static final String WRITE = "write";
+    public static final String HASH = "hash";
+    public static final String PERSIST = "persist";
+    public static final String TOTAL = "total";
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+    private static final String[] QUANTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+    // Sorted so that the exposition is stable from one scrape to the next
+    private final ConcurrentMap<String, AtomicLong> requests = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentSkipListMap<>();
+
+    void record( String endpoint, String phase, long nanos )
+    {
+        String key = endpoint + ' ' + phase;
+        LatencyHistogram histogram = latencies.get( key );
+        if ( histogram == null )
+        {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = latencies.putIfAbsent( key, created );
+            if ( histogram == null )
+            {
+                histogram = created;
+            }
+        }
+        histogram.record( nanos );
+    }
+
+    void completed( String endpoint, int status, long nanos )
+    {
+        String key = endpoint + ' ' + status;
+        AtomicLong counter = requests.get( key );
+        if ( counter == null )
+        {
+            AtomicLong created = new AtomicLong();
+            counter = requests.putIfAbsent( key, created );
+            if ( counter == null )
+            {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+        record( endpoint, TOTAL, nanos );
+    }
+
+    Map<String, Object> toMap()
+    {
+        List<Map<String, Object>> counts = new ArrayList<>();
+        for ( Map.Entry<String, AtomicLong> entry : requests.entrySet() )
+        {
+            String[] key = entry.getKey().split( " " );
+            Map<String, Object> count = new LinkedHashMap<>();
+            count.put( "endpoint", key[0] );
+            count.put( "status", Integer.valueOf( key[1] ) );
+            count.put( "count", entry.getValue().get() );
+            counts.add( count );
+        }
+
+        List<Map<String, Object>> histograms = new ArrayList<>();
+        for ( Map.Entry<String, LatencyHistogram> entry : latencies.entrySet() )
+        {
+            String[] key = entry.getKey().split( " " );
+            LatencyHistogram histogram = entry.getValue();
+            Map<String, Object> latency = new LinkedHashMap<>();
+            latency.put( "endpoint", key[0] );
+            latency.put( "phase", key[1] );
+            latency.put( "count", histogram.count() );
+            latency.put( "total_micros", histogram.totalNanos() / 1000 );
+            for ( int i = 0; i < QUANTILES.length; i++ )
+            {
+                latency.put( QUANTILE_NAMES[i] + "_micros", histogram.percentileMicros( QUANTILES[i] ) );
+            }
+            histograms.add( latency );
+        }
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put( "requests", counts );
+        metrics.put( "latencies", histograms );
+        return metrics;
+    }
+
+    /**
+     * @return the metrics in the Prometheus text exposition format
+     */
+    String toPrometheus()
+    {
+        StringBuilder text = new StringBuilder();
+        text.append( "# HELP useradd_requests_total User management requests by endpoint and status.\n" );
+        text.append( "# TYPE useradd_requests_total counter\n" );
+        for ( Map.Entry<String, AtomicLong> entry : requests.entrySet() )
+        {
+            String[] key = entry.getKey().split( " " );
+            text.append( "useradd_requests_total{endpoint=\"" ).append( key[0] )
+                .append( "\",status=\"" ).append( key[1] ).append( "\"} " )
+                .append( entry.getValue().get() ).append( '\n' );
+        }
+
+        text.append( "# HELP useradd_latency_seconds User management latency by endpoint and phase.\n" );
+        text.append( "# TYPE useradd_latency_seconds summary\n" );
+        for ( Map.Entry<String, LatencyHistogram> entry : latencies.entrySet() )
+        {
+            String[] key = entry.getKey().split( " " );
+            String labels = "endpoint=\"" + key[0] + "\",phase=\"" + key[1] + "\"";
+            LatencyHistogram histogram = entry.getValue();
+            for ( double quantile : QUANTILES )
+            {
+                text.append( "useradd_latency_seconds{" ).append( labels )
+                    .append( ",quantile=\"" ).append( quantile ).append( "\"} " )
+                    .append( histogram.percentileMicros( quantile ) / 1e6 ).append( '\n' );
+            }
+            text.append( "useradd_latency_seconds_sum{" ).append( labels ).append( "} " )
+                .append( histogram.totalNanos() / 1e9 ).append( '\n' );
+            text.append( "useradd_latency_seconds_count{" ).append( labels ).append( "} " )
+                .append( histogram.count() ).append( '\n' );
+        }
+        return text.toString();
+    }
+}
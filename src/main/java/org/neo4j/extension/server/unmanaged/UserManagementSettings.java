@@ -0,0 +1,207 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.jersey.core.util.Base64;
+
+import org.apache.commons.configuration.Configuration;
+
+/**
+ * Settings for the user management extension, read from neo4j-server.properties.
+ * <p>
+ * By default users are managed one at a time through the server's AuthManager, which the extension leaves
+ * alone: concurrent writes are not grouped, and a batch costs one rewrite of the auth store per user. Setting <code>store</code> to <code>auth</code> has the extension write the server's auth store
+ * itself, so that a group of changes costs a single rewrite. Setting it to <code>journal</code> or
+ * <code>mapped</code> has the extension keep users in its own store under <code>store.directory</code>,
+ * which is seeded from the auth store when empty. In either case the store is put in place of the
+ * server's user repository, and the server then authenticates against it.
+ * <p>
+ * Request rates are unlimited unless <code>admission.principal.rate</code> or
+ * <code>admission.address.rate</code> is set, in requests per second.
+ * <p>
+ * Mutations are audited to <code>audit.directory</code> if <code>audit.enabled</code> is true.
+ * When the audit buffer is full records are dropped, unless <code>audit.when_full</code> is <code>block</code>.
+ * <p>
+ * Every change to a user is replicated to the comma separated base URIs in <code>replication.peers</code>,
+ * authenticating as <code>replication.username</code> with the password in <code>replication.password_file</code>,
+ * or else <code>replication.password</code>. Changes are accepted from peers only if they present the secret in
+ * <code>replication.secret_file</code>, which every server of the group shares; without it none are. Keeping both
+ * in files readable only by the server keeps them out of neo4j-server.properties.
+ *
+ * @author Robin Bramley
+ */
+class UserManagementSettings
+{
+    public static final String AUTH_STORE = "dbms.security.auth_store.location";
+    public static final String PREFIX = "org.neo4j.extension.useradd.";
+    public static final String STORE = PREFIX + "store";
+    public static final String STORE_DIRECTORY = PREFIX + "store.directory";
+    public static final String JOURNAL_COMPACT_AFTER = PREFIX + "journal.compact_after";
+    public static final String MAPPED_INITIAL_CAPACITY = PREFIX + "mapped.initial_capacity";
+    public static final String GROUP_COMMIT_WINDOW_MS = PREFIX + "group_commit.window_ms";
+    public static final String GROUP_COMMIT_MAX_SIZE = PREFIX + "group_commit.max_size";
+    public static final String HASHING_THREADS = PREFIX + "hashing.threads";
+    public static final String HASHING_QUEUE_SIZE = PREFIX + "hashing.queue_size";
+    public static final String HASHING_RETRY_AFTER_SECONDS = PREFIX + "hashing.retry_after_seconds";
+    public static final String WRITE_TIMEOUT_MS = PREFIX + "write.timeout_ms";
+    public static final String IDEMPOTENCY_MAX_ENTRIES = PREFIX + "idempotency.max_entries";
+    public static final String IDEMPOTENCY_TTL_MS = PREFIX + "idempotency.ttl_ms";
+    public static final String PRINCIPAL_RATE = PREFIX + "admission.principal.rate";
+    public static final String PRINCIPAL_BURST = PREFIX + "admission.principal.burst";
+    public static final String ADDRESS_RATE = PREFIX + "admission.address.rate";
+    public static final String ADDRESS_BURST = PREFIX + "admission.address.burst";
+    public static final String ADMISSION_MAX_BUCKETS = PREFIX + "admission.max_buckets";
+    public static final String AUDIT_ENABLED = PREFIX + "audit.enabled";
+    public static final String AUDIT_DIRECTORY = PREFIX + "audit.directory";
+    public static final String AUDIT_BUFFER_SIZE = PREFIX + "audit.buffer_size";
+    public static final String AUDIT_WHEN_FULL = PREFIX + "audit.when_full";
+    public static final String AUDIT_MAX_FILE_BYTES = PREFIX + "audit.max_file_bytes";
+    public static final String AUDIT_MAX_FILES = PREFIX + "audit.max_files";
+    public static final String AUDIT_COMPRESS = PREFIX + "audit.compress";
+    public static final String CHANGELOG_CAPACITY = PREFIX + "changelog.capacity";
+    public static final String LOCK_STRIPES = PREFIX + "lock_stripes";
+    public static final String REPLICATION_PEERS = PREFIX + "replication.peers";
+    public static final String REPLICATION_USERNAME = PREFIX + "replication.username";
+    public static final String REPLICATION_PASSWORD = PREFIX + "replication.password";
+    public static final String REPLICATION_PASSWORD_FILE = PREFIX + "replication.password_file";
+    public static final String REPLICATION_SECRET_FILE = PREFIX + "replication.secret_file";
+    public static final String REPLICATION_BATCH_SIZE = PREFIX + "replication.batch_size";
+    public static final String REPLICATION_RETRY_MS = PREFIX + "replication.retry_ms";
+    public static final String REPLICATION_TIMEOUT_MS = PREFIX + "replication.timeout_ms";
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    final File authStore;
+    final String store;
+    final File storeDirectory;
+    final long journalCompactAfter;
+    final int mappedInitialCapacity;
+    final long groupCommitWindowMillis;
+    final int groupCommitMaxSize;
+    final int hashingThreads;
+    final int hashingQueueSize;
+    final int hashingRetryAfterSeconds;
+    final long writeTimeoutMillis;
+    final int idempotencyMaxEntries;
+    final long idempotencyTtlMillis;
+    final double principalRate;
+    final int principalBurst;
+    final double addressRate;
+    final int addressBurst;
+    final int admissionMaxBuckets;
+    final boolean auditEnabled;
+    final File auditDirectory;
+    final int auditBufferSize;
+    final boolean auditBlockWhenFull;
+    final long auditMaxFileBytes;
+    final int auditMaxFiles;
+    final boolean auditCompress;
+    final int changelogCapacity;
+    final int lockStripes;
+    final List<URI> replicationPeers;
+    final String replicationAuthorization;
+    final String replicationSecret;
+    final int replicationBatchSize;
+    final long replicationRetryMillis;
+    final int replicationTimeoutMillis;
+
+    UserManagementSettings( Configuration config )
+    {
+        this.authStore = new File( config.getString( AUTH_STORE, "data/dbms/auth" ) );
+        this.store = config.getString( STORE, null );
+        this.storeDirectory = new File( config.getString( STORE_DIRECTORY, "data/dbms/useradd" ) );
+        this.journalCompactAfter = config.getLong( JOURNAL_COMPACT_AFTER, 10000 );
+        this.mappedInitialCapacity = config.getInt( MAPPED_INITIAL_CAPACITY, 1 << 16 );
+        this.groupCommitWindowMillis = config.getLong( GROUP_COMMIT_WINDOW_MS, 2 );
+        this.groupCommitMaxSize = config.getInt( GROUP_COMMIT_MAX_SIZE, 256 );
+        this.hashingThreads = config.getInt( HASHING_THREADS, Runtime.getRuntime().availableProcessors() );
+        this.hashingQueueSize = config.getInt( HASHING_QUEUE_SIZE, 1024 );
+        this.hashingRetryAfterSeconds = config.getInt( HASHING_RETRY_AFTER_SECONDS, 1 );
+        this.writeTimeoutMillis = config.getLong( WRITE_TIMEOUT_MS, 30000 );
+        this.idempotencyMaxEntries = config.getInt( IDEMPOTENCY_MAX_ENTRIES,
+                UserManagementContext.DEFAULT_IDEMPOTENCY_ENTRIES );
+        this.idempotencyTtlMillis = config.getLong( IDEMPOTENCY_TTL_MS,
+                UserManagementContext.DEFAULT_IDEMPOTENCY_TTL_MILLIS );
+        this.principalRate = config.getDouble( PRINCIPAL_RATE, 0 );
+        this.principalBurst = config.getInt( PRINCIPAL_BURST, 10 );
+        this.addressRate = config.getDouble( ADDRESS_RATE, 0 );
+        this.addressBurst = config.getInt( ADDRESS_BURST, 10 );
+        this.admissionMaxBuckets = config.getInt( ADMISSION_MAX_BUCKETS, 10000 );
+        this.auditEnabled = config.getBoolean( AUDIT_ENABLED, false );
+        this.auditDirectory = new File( config.getString( AUDIT_DIRECTORY, "data/dbms/useradd/audit" ) );
+        this.auditBufferSize = config.getInt( AUDIT_BUFFER_SIZE, 8192 );
+        this.auditBlockWhenFull = "block".equals( config.getString( AUDIT_WHEN_FULL, "drop" ) );
+        this.auditMaxFileBytes = config.getLong( AUDIT_MAX_FILE_BYTES, 64L * 1024 * 1024 );
+        this.auditMaxFiles = config.getInt( AUDIT_MAX_FILES, 10 );
+        this.auditCompress = config.getBoolean( AUDIT_COMPRESS, false );
+        this.changelogCapacity = config.getInt( CHANGELOG_CAPACITY, UserManagementContext.DEFAULT_CHANGELOG_CAPACITY );
+        this.lockStripes = config.getInt( LOCK_STRIPES, UserManagementContext.DEFAULT_LOCK_STRIPES );
+        this.replicationPeers = new ArrayList<>();
+        // The configuration may or may not have split the list already
+        for ( String peers : config.getStringArray( REPLICATION_PEERS ) )
+        {
+            for ( String peer : peers.split( "," ) )
+            {
+                if ( peer.trim().length() > 0 )
+                {
+                    replicationPeers.add( URI.create( peer.trim() ) );
+                }
+            }
+        }
+        String passwordFile = config.getString( REPLICATION_PASSWORD_FILE, null );
+        String credentials = config.getString( REPLICATION_USERNAME, "neo4j" ) + ":"
+                + (passwordFile != null ? firstLine( REPLICATION_PASSWORD_FILE, passwordFile )
+                        : config.getString( REPLICATION_PASSWORD, "" ));
+        this.replicationAuthorization = "Basic " + new String( Base64.encode( credentials.getBytes( UTF8 ) ), UTF8 );
+        String secretFile = config.getString( REPLICATION_SECRET_FILE, null );
+        this.replicationSecret = secretFile != null ? firstLine( REPLICATION_SECRET_FILE, secretFile ) : null;
+        this.replicationBatchSize = config.getInt( REPLICATION_BATCH_SIZE, UserManagementContext.DEFAULT_REPLICATION_BATCH_SIZE );
+        this.replicationRetryMillis = config.getLong( REPLICATION_RETRY_MS, UserManagementContext.DEFAULT_REPLICATION_RETRY_MILLIS );
+        this.replicationTimeoutMillis = config.getInt( REPLICATION_TIMEOUT_MS,
+                UserManagementContext.DEFAULT_REPLICATION_TIMEOUT_MILLIS );
+    }
+
+    /**
+     * @throws IllegalArgumentException if the file cannot be read, or holds nothing, as the extension would
+     * otherwise replicate with a credential other than the one configured
+     */
+    private static String firstLine( String setting, String file )
+    {
+        try
+        {
+            List<String> lines = Files.readAllLines( new File( file ).toPath(), UTF8 );
+            if ( !lines.isEmpty() && lines.get( 0 ).trim().length() > 0 )
+            {
+                return lines.get( 0 ).trim();
+            }
+        } catch ( IOException e )
+        {
+            throw new IllegalArgumentException( "Unable to read " + file + " given in " + setting, e );
+        }
+        throw new IllegalArgumentException( file + " given in " + setting + " is empty" );
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.security.Principal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.neo4j.server.rest.repr.MapRepresentation;
+import org.neo4j.server.rest.repr.OutputFormat;
+
+/**
+ * Expose request counts and latency percentiles for the user management resources, along with replication
+ * lag and dropped audit records, as JSON or, for <code>text/plain</code>, in the Prometheus text format.
+ *
+ * @author Robin Bramley
+ */
+@Path( "/usermetrics" )
+public class UserMetricsService
+{
+    public static final String NEO4J_USER = "neo4j";
+    public static final String PROMETHEUS = "text/plain; version=0.0.4";
+
+    private final OutputFormat output;
+    private final UserManagementContext context;
+
+    public UserMetricsService( @Context OutputFormat output, @Context UserManagementContext context )
+    {
+        this.output = output;
+        this.context = context;
+    }
+
+    @GET
+    @Produces( MediaType.APPLICATION_JSON )
+    public Response metrics( @Context HttpServletRequest req )
+    {
+        Principal principal = req.getUserPrincipal();
+        if ( principal == null || !principal.getName().equals( NEO4J_USER ) )
+        {
+            return output.notFound();
+        }
+
+        Map<String, Object> metrics = context.metrics().toMap();
+        metrics.put( "replication", context.replicator().toList() );
+        Map<String, Object> audit = new LinkedHashMap<>();
+        audit.put( "dropped", context.audit().dropped() );
+        metrics.put( "audit", audit );
+        return output.ok( new MapRepresentation( metrics ) );
+    }
+
+    @GET
+    @Produces( MediaType.TEXT_PLAIN )
+    public Response prometheusMetrics( @Context HttpServletRequest req )
+    {
+        Principal principal = req.getUserPrincipal();
+        if ( principal == null || !principal.getName().equals( NEO4J_USER ) )
+        {
+            return output.notFound();
+        }
+
+        return Response.ok( context.metrics().toPrometheus() + context.replicator().toPrometheus()
+                + context.audit().toPrometheus(), PROMETHEUS ).build();
+    }
+}
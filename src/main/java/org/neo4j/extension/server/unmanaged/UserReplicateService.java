@@ -0,0 +1,310 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+
+import org.neo4j.kernel.api.exceptions.Status;
+import org.neo4j.server.rest.repr.BadInputException;
+import org.neo4j.server.rest.repr.ExceptionRepresentation;
+import org.neo4j.server.rest.repr.InputFormat;
+import org.neo4j.server.rest.repr.MapRepresentation;
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.transactional.error.Neo4jError;
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.User;
+
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+import static org.neo4j.server.rest.web.CustomStatusType.UNPROCESSABLE;
+
+/**
+ * Apply a batch of user changes replicated from a peer by its {@link UserReplicator}: a JSON map whose
+ * <code>changes</code> list holds, in order, <code>{sequence, type, username}</code> with the salt, hash
+ * and password change flag of each added or updated user.
+ * <p>
+ * Only the last change to each user counts, and a user already as the batch leaves it is left alone,
+ * so a batch sent again changes nothing. The changes are applied in a single write to the store the server
+ * authenticates against, and logged as replicated, so they are not sent on.
+ * Replicated users keep their credentials, so this is refused should that store not be behind the server.
+ * <p>
+ * Whoever can call this can set any user's password hash, so a caller must both authenticate as
+ * <code>neo4j</code> and present the secret the group of servers shares, as described by {@link UserReplicator};
+ * to anyone else the endpoint does not exist. Changes to <code>neo4j</code> itself are ignored, as each server
+ * keeps its own. A batch takes a single admission token, as its credentials arrive already hashed, and a batch
+ * sent again with the same <code>Idempotency-Key</code> is answered as it was the first time.
+ *
+ * @author Robin Bramley
+ */
+@Path( "/userreplicate" )
+public class UserReplicateService
+{
+    public static final String NEO4J_USER = "neo4j";
+    public static final String APPLIED = "applied";
+    public static final String UNCHANGED = "unchanged";
+    public static final String CREATED = "created";
+    public static final String REPLACED = "replaced";
+
+    private final InputFormat input;
+    private final OutputFormat output;
+    private final UserManagementContext context;
+
+    public UserReplicateService( @Context AuthManager authManager, @Context InputFormat input,
+            @Context OutputFormat output, @Context UserManagementContext context )
+    {
+        // Puts the extension's store behind the server, so that replicated users can authenticate
+        context.authManager( authManager );
+        this.input = input;
+        this.output = output;
+        this.context = context;
+    }
+
+    @POST
+    public Response replicate( @Context HttpServletRequest req, String payload )
+    {
+        long start = System.nanoTime();
+        Response response = apply( req, payload );
+        context.metrics().completed( UserManagementMetrics.USERREPLICATE, response.getStatus(), System.nanoTime() - start );
+        return response;
+    }
+
+    private Response apply( HttpServletRequest req, final String payload )
+    {
+        final Principal principal = req.getUserPrincipal();
+        if ( principal == null || !principal.getName().equals( NEO4J_USER ) || !context.replicator().trusts( req ) )
+        {
+            return output.notFound();
+        }
+        Response refused = UserAddService.refuse( req, output, context.admission() );
+        if ( refused != null )
+        {
+            return refused;
+        }
+
+        final UserStore store = context.store();
+        if ( store == null )
+        {
+            return output.response( UNPROCESSABLE, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.Invalid, "Replication needs the extension's user store, "
+                    + "which is either not configured or could not be put behind the server's AuthManager." ) ) );
+        }
+
+        return context.idempotency().execute( "userreplicate", "", req, payload, output, new IdempotencyCache.Action()
+        {
+            @Override
+            public Response run( IdempotencyCache.Settlement settlement )
+            {
+                return apply( principal, store, payload );
+            }
+        } );
+    }
+
+    private Response apply( Principal principal, final UserStore store, String payload )
+    {
+        final Map<String, Object> deserialized;
+        long parseStart = System.nanoTime();
+        try
+        {
+            deserialized = input.readMap( payload );
+        } catch ( BadInputException e )
+        {
+            return output.response( BAD_REQUEST, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.InvalidFormat, e.getMessage() ) ) );
+        } finally
+        {
+            context.metrics().record( UserManagementMetrics.USERREPLICATE, UserManagementMetrics.PARSE, System.nanoTime() - parseStart );
+        }
+
+        Object changes = deserialized.get( UserChangesService.CHANGES );
+        if ( !( changes instanceof List ) )
+        {
+            return invalid( String.format( "Expected '%s' to be a list of changes.", UserChangesService.CHANGES ) );
+        }
+
+        // The last change to each user, in the order they were last changed, with null for a deletion
+        final Map<String, User> latest = new LinkedHashMap<>();
+        long last = 0;
+        // Changes to neo4j are ignored, but reported among the users left unchanged
+        boolean neo4jChanged = false;
+        for ( Object entry : (List<?>) changes )
+        {
+            Map<?, ?> change = entry instanceof Map ? (Map<?, ?>) entry : null;
+            Object sequence = change == null ? null : change.get( UserChangesService.SEQUENCE );
+            Object type = change == null ? null : change.get( UserChangesService.TYPE );
+            Object username = change == null ? null : change.get( UserAddService.USERNAME );
+            if ( !( sequence instanceof Number ) || !( username instanceof String ) || !store.isValidName( (String) username ) )
+            {
+                return invalid( "Expected each change to have a sequence number and a valid username." );
+            }
+            last = Math.max( last, ((Number) sequence).longValue() );
+            if ( NEO4J_USER.equals( username ) )
+            {
+                neo4jChanged = true;
+                continue;
+            }
+            latest.remove( username );
+            if ( UserChangeLog.ADDED.equals( type ) || UserChangeLog.UPDATED.equals( type ) )
+            {
+                User user = UserSnapshotService.parse( change );
+                if ( user == null )
+                {
+                    return invalid( String.format( "The change to '%s' has no valid credentials.", username ) );
+                }
+                latest.put( (String) username, user );
+            } else if ( UserChangeLog.DELETED.equals( type ) )
+            {
+                latest.put( (String) username, null );
+            } else
+            {
+                return invalid( String.format( "Unknown change type '%s'.", type ) );
+            }
+        }
+
+        final Applied applied;
+        long writeStart = System.nanoTime();
+        try ( UserLocks.Held ignored = context.locks().lockAll( latest.keySet() ) )
+        {
+            UserWriteCoalescer writes = context.writes();
+            applied = writes.awaitWrite( writes.submitWrite( new Callable<Applied>()
+            {
+                @Override
+                public Applied call() throws Exception
+                {
+                    return write( store, latest );
+                }
+            }, false ) );
+            context.metrics().record( UserManagementMetrics.USERREPLICATE, UserManagementMetrics.WRITE, System.nanoTime() - writeStart );
+        } catch ( RejectedExecutionException | UserWriteTimeoutException e )
+        {
+            return Response.fromResponse( output.response( SERVICE_UNAVAILABLE, new ExceptionRepresentation(
+                new Neo4jError( Status.General.UnknownFailure, e.getMessage() ) ) ) )
+                .header( UserAddService.RETRY_AFTER, context.writes().retryAfterSeconds() ).build();
+        } catch ( IOException e )
+        {
+            return output.serverErrorWithoutLegacyStacktrace( e );
+        }
+
+        long elapsed = System.nanoTime() - writeStart;
+        for ( User user : applied.put )
+        {
+            context.users().restored( user.name(), user.passwordChangeRequired() );
+            boolean created = applied.created.contains( user.name() );
+            if ( created )
+            {
+                context.changes().replicatedAdd( user );
+            } else
+            {
+                context.changes().replicatedUpdate( user );
+            }
+            context.audit().record( UserManagementMetrics.USERREPLICATE, principal.getName(), user.name(),
+                    created ? CREATED : REPLACED, elapsed );
+        }
+        for ( String username : applied.deleted )
+        {
+            context.users().removed( username );
+            context.changes().replicatedDelete( username );
+            context.audit().record( UserManagementMetrics.USERREPLICATE, principal.getName(), username,
+                    UserChangeLog.DELETED, elapsed );
+        }
+
+        int changed = applied.put.size() + applied.deleted.size();
+        Map<String, Object> document = new LinkedHashMap<>();
+        document.put( APPLIED, changed );
+        document.put( UNCHANGED, latest.size() - changed + (neo4jChanged ? 1 : 0) );
+        document.put( UserChangesService.LAST, last );
+        return output.ok( new MapRepresentation( document ) );
+    }
+
+    /**
+     * Bring each user to its latest state in a single write to the store, writing only those that are not
+     * already there.
+     */
+    private static Applied write( UserStore store, Map<String, User> latest ) throws IOException
+    {
+        List<UserStore.Write> writes = new ArrayList<>();
+        for ( Map.Entry<String, User> change : latest.entrySet() )
+        {
+            User existing = store.findByName( change.getKey() );
+            User wanted = change.getValue();
+            if ( wanted != null && (existing == null || !sameAs( existing, wanted )) )
+            {
+                writes.add( UserStore.Write.put( wanted ) );
+            } else if ( wanted == null && existing != null )
+            {
+                writes.add( UserStore.Write.delete( existing.name() ) );
+            }
+        }
+
+        Applied applied = new Applied();
+        boolean[] expected = writes.isEmpty() ? new boolean[0] : store.write( writes );
+        for ( int i = 0; i < writes.size(); i++ )
+        {
+            UserStore.Write write = writes.get( i );
+            if ( write.type() == UserStore.Write.Type.PUT )
+            {
+                applied.put.add( write.user() );
+                if ( expected[i] )
+                {
+                    // A put is expected where the user did not exist
+                    applied.created.add( write.username() );
+                }
+            } else if ( expected[i] )
+            {
+                applied.deleted.add( write.username() );
+            }
+        }
+        return applied;
+    }
+
+    private static boolean sameAs( User existing, User wanted )
+    {
+        return existing.passwordChangeRequired() == wanted.passwordChangeRequired()
+                && Arrays.equals( existing.credentials().salt(), wanted.credentials().salt() )
+                && Arrays.equals( existing.credentials().passwordHash(), wanted.credentials().passwordHash() );
+    }
+
+    private Response invalid( String message )
+    {
+        return output.response( UNPROCESSABLE, new ExceptionRepresentation(
+        new Neo4jError( Status.Request.InvalidFormat, message ) ) );
+    }
+
+    private static class Applied
+    {
+        private final List<User> put = new ArrayList<>();
+        private final List<String> deleted = new ArrayList<>();
+        private final Set<String> created = new HashSet<>();
+    }
+}
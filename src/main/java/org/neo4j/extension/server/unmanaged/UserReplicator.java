@@ -0,0 +1,450 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import org.neo4j.kernel.impl.util.Codecs;
+import org.neo4j.server.security.auth.User;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ships the users added, updated and deleted on this server to its peers, so that a group of servers behind a
+ * load balancer agree on who their users are. Each peer has a thread of its own that follows the
+ * {@link UserChangeLog}, sending the local changes in batches to the peer's <code>/userreplicate</code>
+ * over a kept-alive connection. While one batch is on the wire the next is read and encoded, and a batch
+ * is sent again until the peer accepts it, which it can do any number of times to the same effect.
+ * <p>
+ * Only changes made on this server are sent, so every server lists every other as a peer. A peer that
+ * falls so far behind that the changes it needs have been discarded must be restored from a snapshot.
+ * <p>
+ * Replicated users keep the credentials they arrive with, so a peer is trusted only if it presents the
+ * shared secret in <code>X-Replication-Secret</code>, on top of authenticating as <code>neo4j</code>.
+ * Without a secret configured, no replicated change is accepted. The <code>neo4j</code> user itself is
+ * never replicated, so that a peer cannot take over another server's administrator.
+ *
+ * @author Robin Bramley
+ */
+class UserReplicator
+{
+    private static final Logger logger = LoggerFactory.getLogger( UserReplicator.class );
+
+    public static final String PATH = "/userreplicate";
+    public static final String SECRET_HEADER = "X-Replication-Secret";
+
+    private static final JsonFactory factory = new JsonFactory();
+    private static final long POLL_MILLIS = 1000;
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private final UserChangeLog changes;
+    private final List<Peer> peers = new ArrayList<>();
+    private final int batchSize;
+    private final long retryMillis;
+    private final int timeoutMillis;
+    private final String secret;
+    // Identifies the batches sent by this server since it started, as sequence numbers start over with it
+    private final String origin = UUID.randomUUID().toString();
+    private volatile boolean running;
+
+    /**
+     * @param peers the base URI each peer mounts the extension at
+     * @param authorization the Authorization header to present to the peers
+     * @param secret the secret shared with the peers, or null to accept no replicated changes
+     * @param batchSize the most changes to send in one request
+     * @param retryMillis how long to wait before sending a batch again after it failed
+     * @param timeoutMillis how long to wait to connect to a peer, and then for its response
+     */
+    UserReplicator( UserChangeLog changes, List<URI> peers, String authorization, String secret, int batchSize,
+            long retryMillis, int timeoutMillis )
+    {
+        this.changes = changes;
+        this.secret = secret;
+        this.batchSize = Math.max( 1, batchSize );
+        this.retryMillis = retryMillis;
+        this.timeoutMillis = timeoutMillis;
+        for ( URI peer : peers )
+        {
+            this.peers.add( new Peer( peer, authorization ) );
+        }
+    }
+
+    static UserReplicator disabled()
+    {
+        return new UserReplicator( null, Collections.<URI>emptyList(), null, null, 0, 0, 0 );
+    }
+
+    /**
+     * @return whether a request presents the secret shared with the peers, compared in constant time
+     */
+    boolean trusts( HttpServletRequest req )
+    {
+        String presented = req.getHeader( SECRET_HEADER );
+        return secret != null && presented != null
+                && MessageDigest.isEqual( secret.getBytes( UTF8 ), presented.getBytes( UTF8 ) );
+    }
+
+    synchronized void start()
+    {
+        if ( running )
+        {
+            return;
+        }
+        running = true;
+        for ( Peer peer : peers )
+        {
+            peer.start();
+        }
+    }
+
+    synchronized void stop() throws InterruptedException
+    {
+        running = false;
+        for ( Peer peer : peers )
+        {
+            peer.stop();
+        }
+    }
+
+    /**
+     * @return the progress of each peer, in the order they were configured
+     */
+    List<Map<String, Object>> toList()
+    {
+        List<Map<String, Object>> progress = new ArrayList<>();
+        for ( Peer peer : peers )
+        {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put( "peer", peer.uri.toString() );
+            status.put( "acknowledged", peer.acknowledged );
+            status.put( "lag_changes", peer.lagChanges() );
+            status.put( "lag_millis", peer.lagMillis() );
+            status.put( "batches", peer.batches.get() );
+            status.put( "events", peer.events.get() );
+            status.put( "failures", peer.failures.get() );
+            status.put( "missed", peer.missed.get() );
+            status.put( "last_error", peer.lastError );
+            progress.add( status );
+        }
+        return progress;
+    }
+
+    /**
+     * @return the progress of each peer in the Prometheus text exposition format
+     */
+    String toPrometheus()
+    {
+        if ( peers.isEmpty() )
+        {
+            return "";
+        }
+        StringBuilder text = new StringBuilder();
+        text.append( "# HELP useradd_replication_lag_changes Local user changes not yet acknowledged by each peer.\n" );
+        text.append( "# TYPE useradd_replication_lag_changes gauge\n" );
+        for ( Peer peer : peers )
+        {
+            text.append( "useradd_replication_lag_changes{peer=\"" ).append( peer.uri ).append( "\"} " )
+                .append( peer.lagChanges() ).append( '\n' );
+        }
+        text.append( "# HELP useradd_replication_lag_seconds Age of the oldest change not yet acknowledged by each peer.\n" );
+        text.append( "# TYPE useradd_replication_lag_seconds gauge\n" );
+        for ( Peer peer : peers )
+        {
+            text.append( "useradd_replication_lag_seconds{peer=\"" ).append( peer.uri ).append( "\"} " )
+                .append( peer.lagMillis() / 1e3 ).append( '\n' );
+        }
+        text.append( "# HELP useradd_replication_failures_total Batches a peer failed to accept.\n" );
+        text.append( "# TYPE useradd_replication_failures_total counter\n" );
+        for ( Peer peer : peers )
+        {
+            text.append( "useradd_replication_failures_total{peer=\"" ).append( peer.uri ).append( "\"} " )
+                .append( peer.failures.get() ).append( '\n' );
+        }
+        return text.toString();
+    }
+
+    /**
+     * The local changes in a range of sequence numbers, encoded for a peer.
+     */
+    private static class Batch
+    {
+        private final long last;
+        private final int events;
+        private final byte[] body;
+
+        Batch( long last, int events, byte[] body )
+        {
+            this.last = last;
+            this.events = events;
+            this.body = body;
+        }
+    }
+
+    private class Peer implements Runnable
+    {
+        private final URI uri;
+        private final URI target;
+        private final String authorization;
+        private final AtomicLong batches = new AtomicLong();
+        private final AtomicLong events = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong missed = new AtomicLong();
+        private volatile long acknowledged;
+        private volatile String lastError;
+        private ExecutorService sender;
+        private Thread follower;
+
+        Peer( URI uri, String authorization )
+        {
+            this.uri = uri;
+            this.target = URI.create( uri.toString().replaceAll( "/+$", "" ) + PATH );
+            this.authorization = authorization;
+        }
+
+        void start()
+        {
+            final String name = "useradd-replication-" + uri.getHost() + ":" + uri.getPort();
+            sender = Executors.newSingleThreadExecutor( new ThreadFactory()
+            {
+                @Override
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable, name + "-sender" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+            follower = new Thread( this, name );
+            follower.setDaemon( true );
+            follower.start();
+        }
+
+        void stop() throws InterruptedException
+        {
+            if ( follower != null )
+            {
+                follower.interrupt();
+                follower.join();
+                sender.shutdownNow();
+            }
+        }
+
+        long lagChanges()
+        {
+            return Math.max( 0, changes.last() - acknowledged );
+        }
+
+        long lagMillis()
+        {
+            UserChangeLog.Change oldest = lagChanges() > 0 ? changes.get( acknowledged + 1 ) : null;
+            return oldest == null ? 0 : Math.max( 0, System.currentTimeMillis() - oldest.timeMillis );
+        }
+
+        @Override
+        public void run()
+        {
+            Batch sending = null;
+            Batch next = null;
+            try
+            {
+                while ( running )
+                {
+                    if ( sending == null )
+                    {
+                        sending = prepare( acknowledged, POLL_MILLIS );
+                        if ( sending == null )
+                        {
+                            continue;
+                        }
+                    }
+                    Future<?> inFlight = send( sending );
+                    if ( next == null )
+                    {
+                        next = prepare( sending.last, 0 );
+                    }
+                    try
+                    {
+                        inFlight.get();
+                        batches.incrementAndGet();
+                        events.addAndGet( sending.events );
+                        acknowledged = sending.last;
+                        sending = next;
+                        next = null;
+                    } catch ( ExecutionException e )
+                    {
+                        failures.incrementAndGet();
+                        lastError = String.valueOf( e.getCause().getMessage() );
+                        logger.debug( "Unable to replicate users to " + uri + ", retrying", e.getCause() );
+                        Thread.sleep( retryMillis );
+                    }
+                }
+            } catch ( InterruptedException e )
+            {
+                // Stopped
+            }
+        }
+
+        /**
+         * @return the local changes after a sequence number, or null if none arrived in time
+         */
+        private Batch prepare( long after, long waitMillis ) throws InterruptedException
+        {
+            List<UserChangeLog.Change> batch = changes.since( after, batchSize, waitMillis );
+            if ( batch == null )
+            {
+                long first = changes.first();
+                missed.addAndGet( first - after - 1 );
+                logger.warn( "{} has missed {} user changes, which have been discarded; restore it from a snapshot",
+                        uri, first - after - 1 );
+                batch = changes.since( first - 1, batchSize, waitMillis );
+            }
+            if ( batch == null || batch.isEmpty() )
+            {
+                return null;
+            }
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            int local = 0;
+            try
+            {
+                JsonGenerator generator = factory.createJsonGenerator( body, JsonEncoding.UTF8 );
+                generator.writeStartObject();
+                generator.writeArrayFieldStart( UserChangesService.CHANGES );
+                for ( UserChangeLog.Change change : batch )
+                {
+                    if ( !change.local || UserAddService.NEO4J_USER.equals( change.username ) )
+                    {
+                        continue;
+                    }
+                    local++;
+                    generator.writeStartObject();
+                    generator.writeNumberField( UserChangesService.SEQUENCE, change.sequence );
+                    generator.writeStringField( UserChangesService.TYPE, change.type );
+                    generator.writeStringField( UserAddService.USERNAME, change.username );
+                    User user = change.user;
+                    if ( user != null )
+                    {
+                        generator.writeStringField( UserSnapshotService.SALT, Codecs.encodeHexString( user.credentials().salt() ) );
+                        generator.writeStringField( UserSnapshotService.HASH,
+                                Codecs.encodeHexString( user.credentials().passwordHash() ) );
+                        generator.writeBooleanField( UsernameIndex.PASSWORD_CHANGE_REQUIRED, user.passwordChangeRequired() );
+                    }
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+                generator.close();
+            } catch ( IOException e )
+            {
+                throw new IllegalStateException( e );
+            }
+            return new Batch( batch.get( batch.size() - 1 ).sequence, local, body.toByteArray() );
+        }
+
+        private Future<?> send( final Batch batch )
+        {
+            return sender.submit( new Callable<Void>()
+            {
+                @Override
+                public Void call() throws IOException
+                {
+                    if ( batch.events > 0 )
+                    {
+                        post( batch );
+                    }
+                    return null;
+                }
+            } );
+        }
+
+        /**
+         * Post a batch, reading the whole response so that the connection is kept alive for the next.
+         */
+        private void post( Batch batch ) throws IOException
+        {
+            byte[] body = batch.body;
+            HttpURLConnection connection = (HttpURLConnection) target.toURL().openConnection();
+            connection.setConnectTimeout( timeoutMillis );
+            connection.setReadTimeout( timeoutMillis );
+            connection.setRequestMethod( "POST" );
+            connection.setDoOutput( true );
+            connection.setFixedLengthStreamingMode( body.length );
+            connection.setRequestProperty( "Content-Type", "application/json" );
+            connection.setRequestProperty( "Accept", "application/json" );
+            if ( authorization != null )
+            {
+                connection.setRequestProperty( "Authorization", authorization );
+            }
+            if ( secret != null )
+            {
+                connection.setRequestProperty( SECRET_HEADER, secret );
+            }
+            // A batch sent again is answered as it was the first time, rather than applied twice
+            connection.setRequestProperty( IdempotencyCache.IDEMPOTENCY_KEY, origin + ":" + batch.last );
+            try ( OutputStream out = connection.getOutputStream() )
+            {
+                out.write( body );
+            }
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if ( in != null )
+            {
+                try ( InputStream response = in )
+                {
+                    byte[] buffer = new byte[8192];
+                    while ( response.read( buffer ) >= 0 )
+                    {
+                        // Discard it
+                    }
+                }
+            }
+            if ( status != 200 )
+            {
+                throw new IOException( "The peer responded with status " + status );
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+
+import org.neo4j.kernel.api.exceptions.Status;
+import org.neo4j.server.rest.repr.BadInputException;
+import org.neo4j.server.rest.repr.ExceptionRepresentation;
+import org.neo4j.server.rest.repr.InputFormat;
+import org.neo4j.server.rest.repr.MapRepresentation;
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.transactional.error.Neo4jError;
+import org.neo4j.server.security.auth.AuthManager;
+
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+import static org.neo4j.server.rest.web.CustomStatusType.UNPROCESSABLE;
+
+/**
+ * Enable the passwords of many users to be rotated at once, from a JSON list of
+ * <code>{username, newPassword, requirePasswordChange}</code> maps. A result is reported per entry, and
+ * the request takes an admission token for each entry.
+ *
+ * @author Robin Bramley
+ */
+@Path( "/userrotate" )
+public class UserRotateService
+{
+    public static final String NEO4J_USER = "neo4j";
+
+    private final AuthManager authManager;
+    private final InputFormat input;
+    private final OutputFormat output;
+    private final UserManagementContext context;
+
+    public UserRotateService( @Context AuthManager authManager,
+        @Context InputFormat input, @Context OutputFormat output, @Context UserManagementContext context )
+    {
+        this.authManager = context.authManager( authManager );
+        this.input = input;
+        this.output = output;
+        this.context = context;
+    }
+
+    @POST
+    public Response rotatePasswords( @Context HttpServletRequest req, String payload )
+    {
+        long start = System.nanoTime();
+        Response response = rotate( req, payload );
+        context.metrics().completed( UserManagementMetrics.USERROTATE, response.getStatus(), System.nanoTime() - start );
+        return response;
+    }
+
+    private Response rotate( HttpServletRequest req, String payload )
+    {
+        Principal principal = req.getUserPrincipal();
+        if ( principal == null || !principal.getName().equals( NEO4J_USER ) )
+        {
+            return output.notFound();
+        }
+
+        final Object deserialized;
+        long parseStart = System.nanoTime();
+        try
+        {
+            deserialized = UserAddService.readJson( payload );
+        } catch ( BadInputException e )
+        {
+            return output.response( BAD_REQUEST, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.InvalidFormat, e.getMessage() ) ) );
+        } finally
+        {
+            context.metrics().record( UserManagementMetrics.USERROTATE, UserManagementMetrics.PARSE, System.nanoTime() - parseStart );
+        }
+
+        if ( !( deserialized instanceof List ) )
+        {
+            return output.response( UNPROCESSABLE, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.InvalidFormat, "Expected a list of password rotations." ) ) );
+        }
+
+        Response refused = UserAddService.refuse( req, output, context.admission(), ((List<?>) deserialized).size() );
+        if ( refused != null )
+        {
+            return refused;
+        }
+
+        UserRotation rotation = new UserRotation( authManager, context, principal.getName() );
+        for ( Object entry : (List<?>) deserialized )
+        {
+            rotation.add( entry );
+        }
+
+        Map<String, Object> document = new LinkedHashMap<>();
+        long writeStart = System.nanoTime();
+        try
+        {
+            document.put( UserAddService.RESULTS, rotation.apply() );
+            context.metrics().record( UserManagementMetrics.USERROTATE, UserManagementMetrics.WRITE, System.nanoTime() - writeStart );
+        } catch ( RejectedExecutionException | UserWriteTimeoutException e )
+        {
+            return Response.fromResponse( output.response( SERVICE_UNAVAILABLE, new ExceptionRepresentation(
+                new Neo4jError( Status.General.UnknownFailure, e.getMessage() ) ) ) )
+                .header( UserAddService.RETRY_AFTER, context.writes().retryAfterSeconds() ).build();
+        } catch ( IOException e )
+        {
+            return output.serverErrorWithoutLegacyStacktrace( e );
+        }
+        return output.ok( new MapRepresentation( document ) );
+    }
+}
@@ -0,0 +1,410 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.server.security.auth.exception.IllegalUsernameException;
+
+import static org.neo4j.extension.server.unmanaged.UserAddService.MESSAGE;
+import static org.neo4j.extension.server.unmanaged.UserAddService.STATUS;
+import static org.neo4j.extension.server.unmanaged.UserAddService.USERNAME;
+
+/**
+ * Collects a batch of <code>{username, newPassword, requirePasswordChange}</code> entries, validating
+ * each as it is added, and then replaces the credentials of the accepted users.
+ * <p>
+ * With the extension's own store, the new passwords are hashed in parallel a hashing capacity at a time,
+ * and every user is then replaced in a single write, flag and all. Should that write fail or time out,
+ * each entry reports it rather than the whole batch failing. Without the store the batch goes through
+ * the server's AuthManager a hashing capacity at a time, which can only clear the password change flag,
+ * so a rotation that requires a password change fails rather than re-create the user.
+ * Every rotation is logged as an update to the user.
+ *
+ * @author Robin Bramley
+ */
+class UserRotation
+{
+    public static final String NEW_PASSWORD = "newPassword";
+    public static final String REQUIRE_PASSWORD_CHANGE = "requirePasswordChange";
+
+    public static final String ROTATED = "rotated";
+    public static final String INVALID = "invalid";
+    public static final String DUPLICATE = "duplicate";
+    public static final String UNKNOWN = "unknown";
+    public static final String FAILED = "failed";
+
+    private final AuthManager authManager;
+    private final UserWriteCoalescer writes;
+    private final UsernameIndex users;
+    private final UserStore store;
+    private final AuditLog audit;
+    private final UserChangeLog changes;
+    private final UserLocks locks;
+    private final String actor;
+    private final List<Map<String, Object>> results = new ArrayList<>();
+    private final List<Rotation> accepted = new ArrayList<>();
+    private final Set<String> seen = new HashSet<>();
+
+    /**
+     * @param actor the principal rotating the passwords, for the audit log
+     */
+    UserRotation( AuthManager authManager, UserManagementContext context, String actor )
+    {
+        this.authManager = authManager;
+        this.writes = context.writes();
+        this.users = context.users();
+        this.store = context.store();
+        this.audit = context.audit();
+        this.changes = context.changes();
+        this.locks = context.locks();
+        this.actor = actor;
+    }
+
+    /**
+     * Validate an entry and queue it for rotation.
+     *
+     * @return the result document for the entry, completed by {@link #apply()}
+     */
+    Map<String, Object> add( Object entry )
+    {
+        Map<String, Object> result = new LinkedHashMap<>();
+        results.add( result );
+        if ( !( entry instanceof Map ) )
+        {
+            return reject( result, INVALID, String.format( "Expected a map with '%s' and '%s'.", USERNAME, NEW_PASSWORD ) );
+        }
+        Map<?, ?> rotation = (Map<?, ?>) entry;
+        Object username = rotation.get( USERNAME );
+        if ( !( username instanceof String ) || ((String) username).length() == 0 )
+        {
+            return reject( result, INVALID, String.format( "Expected '%s' to be a non-empty string.", USERNAME ) );
+        }
+        result.put( USERNAME, username );
+        Object password = rotation.get( NEW_PASSWORD );
+        if ( !( password instanceof String ) || ((String) password).length() == 0 )
+        {
+            return reject( result, INVALID, String.format( "Expected '%s' to be a non-empty string.", NEW_PASSWORD ) );
+        }
+        Object requirePasswordChange = rotation.get( REQUIRE_PASSWORD_CHANGE );
+        if ( requirePasswordChange != null && !( requirePasswordChange instanceof Boolean ) )
+        {
+            return reject( result, INVALID, String.format( "Expected '%s' to be a boolean.", REQUIRE_PASSWORD_CHANGE ) );
+        }
+        if ( !seen.add( (String) username ) )
+        {
+            return reject( result, DUPLICATE, "The specified user appears more than once in the batch" );
+        }
+        if ( users.isUnknown( (String) username ) )
+        {
+            return reject( result, UNKNOWN, "The specified user does not exist" );
+        }
+        accepted.add( new Rotation( result, (String) username, (String) password,
+                Boolean.TRUE.equals( requirePasswordChange ) ) );
+        return result;
+    }
+
+    /**
+     * Rotate the accepted users and reset the batch. New passwords are hashed, and rotations waited for,
+     * without holding the locks on the users, which are held only while the users are checked and submitted.
+     *
+     * @return the result documents for every entry added since the last call, in order
+     */
+    List<Map<String, Object>> apply() throws IOException
+    {
+        long start = System.nanoTime();
+        if ( store != null )
+        {
+            replaceInStore( accepted );
+        } else
+        {
+            int capacity = writes.capacity();
+            for ( int from = 0; from < accepted.size(); from += capacity )
+            {
+                replaceThroughAuthManager( accepted.subList( from, Math.min( accepted.size(), from + capacity ) ) );
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        for ( Map<String, Object> result : results )
+        {
+            if ( ROTATED.equals( result.get( STATUS ) ) )
+            {
+                audit.record( UserManagementMetrics.USERROTATE, actor, (String) result.get( USERNAME ),
+                        ROTATED, elapsed );
+            }
+        }
+
+        List<Map<String, Object>> completed = new ArrayList<>( results );
+        results.clear();
+        accepted.clear();
+        seen.clear();
+        return completed;
+    }
+
+    private void replaceInStore( List<Rotation> rotations )
+    {
+        List<Future<Credential>> hashed = new ArrayList<>( rotations.size() );
+        IOException refused = null;
+        int capacity = writes.capacity();
+        for ( int from = 0; from < rotations.size(); from += capacity )
+        {
+            int to = Math.min( rotations.size(), from + capacity );
+            try
+            {
+                writes.reserve( to - from, true );
+            } catch ( IOException e )
+            {
+                refused = e;
+                break;
+            }
+            for ( int i = from; i < to; i++ )
+            {
+                hashed.add( writes.submitHash( rotations.get( i ).password ) );
+            }
+        }
+
+        List<Rotation> hashedRotations = new ArrayList<>( rotations.size() );
+        List<User> hashedUsers = new ArrayList<>( rotations.size() );
+        for ( int i = 0; i < rotations.size(); i++ )
+        {
+            Rotation rotation = rotations.get( i );
+            if ( i >= hashed.size() )
+            {
+                reject( rotation.result, FAILED, refused.getMessage() );
+                continue;
+            }
+            try
+            {
+                hashedUsers.add( new User( rotation.username, writes.awaitWrite( hashed.get( i ) ),
+                        rotation.requirePasswordChange ) );
+                hashedRotations.add( rotation );
+            } catch ( IOException e )
+            {
+                reject( rotation.result, FAILED, e.getMessage() );
+            }
+        }
+
+        List<Rotation> replacing = new ArrayList<>( hashedRotations.size() );
+        final List<User> updated = new ArrayList<>( hashedUsers.size() );
+        Future<Set<String>> pending;
+        try ( UserLocks.Held ignored = locks.lockAll( usernames( hashedRotations ) ) )
+        {
+            for ( int i = 0; i < hashedRotations.size(); i++ )
+            {
+                if ( users.isUnknown( hashedRotations.get( i ).username ) )
+                {
+                    reject( hashedRotations.get( i ).result, UNKNOWN, "The specified user does not exist" );
+                } else
+                {
+                    replacing.add( hashedRotations.get( i ) );
+                    updated.add( hashedUsers.get( i ) );
+                }
+            }
+            if ( updated.isEmpty() )
+            {
+                return;
+            }
+            pending = writes.submitWrite( new Callable<Set<String>>()
+            {
+                @Override
+                public Set<String> call() throws Exception
+                {
+                    return store.replaceAll( updated );
+                }
+            }, false );
+        }
+
+        Set<String> missing;
+        try
+        {
+            missing = writes.awaitWrite( pending );
+        } catch ( UserWriteTimeoutException e )
+        {
+            // The users may yet be replaced, so update the index and change log once the write is settled
+            writes.whenDone( pending, settleReplaced( users, changes, updated, pending ) );
+            for ( Rotation rotation : replacing )
+            {
+                reject( rotation.result, FAILED, e.getMessage() );
+            }
+            return;
+        } catch ( IOException e )
+        {
+            for ( Rotation rotation : replacing )
+            {
+                reject( rotation.result, FAILED, e.getMessage() );
+            }
+            return;
+        }
+
+        for ( int i = 0; i < replacing.size(); i++ )
+        {
+            Rotation rotation = replacing.get( i );
+            if ( missing.contains( rotation.username ) )
+            {
+                reject( rotation.result, UNKNOWN, "The specified user does not exist" );
+            } else
+            {
+                rotated( rotation, updated.get( i ) );
+            }
+        }
+    }
+
+    /**
+     * @return a callback that completes the bookkeeping of a replacement whose caller stopped waiting for it
+     */
+    private static Runnable settleReplaced( final UsernameIndex users, final UserChangeLog changes,
+            final List<User> updated, final Future<Set<String>> pending )
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Set<String> missing;
+                try
+                {
+                    missing = pending.get();
+                } catch ( InterruptedException | ExecutionException e )
+                {
+                    // Nothing was replaced
+                    return;
+                }
+                for ( User user : updated )
+                {
+                    if ( !missing.contains( user.name() ) )
+                    {
+                        users.updated( user.name(), user.passwordChangeRequired() );
+                        changes.updated( user );
+                    }
+                }
+            }
+        };
+    }
+
+    private void replaceThroughAuthManager( List<Rotation> part ) throws IOException
+    {
+        List<Rotation> rotating = new ArrayList<>( part.size() );
+        for ( Rotation rotation : part )
+        {
+            if ( rotation.requirePasswordChange )
+            {
+                reject( rotation.result, FAILED,
+                        "A password change can only be required of users in the extension's own store" );
+            } else
+            {
+                rotating.add( rotation );
+            }
+        }
+
+        // Queue every user before waiting on any, so they are committed together
+        writes.reserve( rotating.size(), true );
+        List<Rotation> submitted = new ArrayList<>( rotating.size() );
+        List<Future<User>> pending = new ArrayList<>( rotating.size() );
+        try ( UserLocks.Held ignored = locks.lockAll( usernames( rotating ) ) )
+        {
+            for ( Rotation rotation : rotating )
+            {
+                if ( users.isUnknown( rotation.username ) )
+                {
+                    writes.release( 1 );
+                    reject( rotation.result, UNKNOWN, "The specified user does not exist" );
+                    continue;
+                }
+                submitted.add( rotation );
+                pending.add( writes.submitSetPassword( authManager, rotation.username, rotation.password ) );
+            }
+        }
+
+        for ( int i = 0; i < pending.size(); i++ )
+        {
+            Rotation rotation = submitted.get( i );
+            try
+            {
+                User user = writes.awaitUser( pending.get( i ) );
+                if ( user == null )
+                {
+                    reject( rotation.result, UNKNOWN, "The specified user does not exist" );
+                } else
+                {
+                    rotated( rotation, user );
+                }
+            } catch ( UserWriteTimeoutException e )
+            {
+                writes.whenDone( pending.get( i ), UserSync.settleUpdate( users, changes, pending.get( i ) ) );
+                reject( rotation.result, FAILED, e.getMessage() );
+            } catch ( IOException | IllegalUsernameException e )
+            {
+                reject( rotation.result, FAILED, e.getMessage() );
+            }
+        }
+    }
+
+    private void rotated( Rotation rotation, User user )
+    {
+        rotation.result.put( STATUS, ROTATED );
+        users.updated( rotation.username, user.passwordChangeRequired() );
+        changes.updated( user );
+    }
+
+    private static List<String> usernames( List<Rotation> rotations )
+    {
+        List<String> usernames = new ArrayList<>( rotations.size() );
+        for ( Rotation rotation : rotations )
+        {
+            usernames.add( rotation.username );
+        }
+        return usernames;
+    }
+
+    private static Map<String, Object> reject( Map<String, Object> result, String status, String message )
+    {
+        result.put( STATUS, status );
+        result.put( MESSAGE, message );
+        return result;
+    }
+
+    private static class Rotation
+    {
+        private final Map<String, Object> result;
+        private final String username;
+        private final String password;
+        private final boolean requirePasswordChange;
+
+        Rotation( Map<String, Object> result, String username, String password, boolean requirePasswordChange )
+        {
+            this.result = result;
+            this.username = username;
+            this.password = password;
+            this.requirePasswordChange = requirePasswordChange;
+        }
+    }
+}
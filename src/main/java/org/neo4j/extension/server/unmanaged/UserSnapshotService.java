@@ -0,0 +1,304 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import org.neo4j.kernel.api.exceptions.Status;
+import org.neo4j.kernel.impl.util.Codecs;
+import org.neo4j.server.rest.repr.ExceptionRepresentation;
+import org.neo4j.server.rest.repr.MapRepresentation;
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.transactional.error.Neo4jError;
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.User;
+
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+import static org.neo4j.server.rest.web.CustomStatusType.UNPROCESSABLE;
+
+/**
+ * Enable the users to be backed up and restored, as gzipped newline delimited JSON with one
+ * <code>{username, salt, hash, password_change_required}</code> map per line.
+ * <p>
+ * An export streams a point in time snapshot of the users, which writers are held up for only
+ * as long as it takes to copy. A restore creates or replaces every user in the snapshot in a single write
+ * to the store the server authenticates against, which by default is the server's auth file, written by
+ * the extension itself.
+ * <p>
+ * Should that store not have been put behind the server's AuthManager, an export simply reads the
+ * server's auth file, which the server replaces rather than rewrites, but a restore is refused, as the
+ * AuthManager takes passwords rather than credentials.
+ *
+ * @author Robin Bramley
+ */
+@Path( "/usersnapshot" )
+public class UserSnapshotService
+{
+    public static final String NEO4J_USER = "neo4j";
+    public static final String GZIP = "application/gzip";
+    public static final String SALT = "salt";
+    public static final String HASH = "hash";
+    public static final String RESTORED = "restored";
+    public static final String CREATED = "created";
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final JsonFactory factory = mapper.getJsonFactory();
+
+    private final OutputFormat output;
+    private final UserManagementContext context;
+
+    public UserSnapshotService( @Context AuthManager authManager, @Context OutputFormat output,
+            @Context UserManagementContext context )
+    {
+        // Puts the extension's store behind the server, so that restored users can authenticate
+        context.authManager( authManager );
+        this.output = output;
+        this.context = context;
+    }
+
+    @GET
+    public Response exportUsers( @Context HttpServletRequest req )
+    {
+        Principal principal = req.getUserPrincipal();
+        if ( principal == null || !principal.getName().equals( NEO4J_USER ) )
+        {
+            return output.notFound();
+        }
+
+        final Iterable<User> snapshot;
+        UserStore store = context.store();
+        if ( store != null )
+        {
+            snapshot = store.snapshot();
+        } else
+        {
+            File authStore = context.authStore();
+            if ( authStore == null )
+            {
+                return output.response( SERVICE_UNAVAILABLE, new ExceptionRepresentation(
+                new Neo4jError( Status.General.UnknownFailure, "The auth store location is not known." ) ) );
+            }
+            try
+            {
+                snapshot = AuthFileUserStore.read( authStore );
+            } catch ( IOException e )
+            {
+                return output.serverErrorWithoutLegacyStacktrace( e );
+            }
+        }
+
+        StreamingOutput export = new StreamingOutput()
+        {
+            @Override
+            public void write( OutputStream out ) throws IOException, WebApplicationException
+            {
+                GZIPOutputStream gzip = new GZIPOutputStream( out, 1 << 16 );
+                JsonGenerator generator = factory.createJsonGenerator( gzip, JsonEncoding.UTF8 );
+                Iterator<User> users = snapshot.iterator();
+                try
+                {
+                    while ( users.hasNext() )
+                    {
+                        User user = users.next();
+                        generator.writeStartObject();
+                        generator.writeStringField( UserAddService.USERNAME, user.name() );
+                        generator.writeStringField( SALT, Codecs.encodeHexString( user.credentials().salt() ) );
+                        generator.writeStringField( HASH, Codecs.encodeHexString( user.credentials().passwordHash() ) );
+                        generator.writeBooleanField( UsernameIndex.PASSWORD_CHANGE_REQUIRED, user.passwordChangeRequired() );
+                        generator.writeEndObject();
+                        generator.writeRaw( '\n' );
+                    }
+                } finally
+                {
+                    // A client that goes away part way through leaves the export unfinished
+                    if ( users instanceof Closeable )
+                    {
+                        ((Closeable) users).close();
+                    }
+                }
+                generator.flush();
+                gzip.finish();
+            }
+        };
+        return Response.ok( export, GZIP )
+                .header( "Content-Disposition", "attachment; filename=\"users.ndjson.gz\"" ).build();
+    }
+
+    @PUT
+    @Consumes( GZIP )
+    public Response restoreUsers( @Context HttpServletRequest req, InputStream payload )
+    {
+        long start = System.nanoTime();
+        Response response = restore( req, payload );
+        context.metrics().completed( UserManagementMetrics.USERSNAPSHOT, response.getStatus(), System.nanoTime() - start );
+        return response;
+    }
+
+    private Response restore( HttpServletRequest req, InputStream payload )
+    {
+        Principal principal = req.getUserPrincipal();
+        if ( principal == null || !principal.getName().equals( NEO4J_USER ) )
+        {
+            return output.notFound();
+        }
+
+        final UserStore store = context.store();
+        if ( store == null )
+        {
+            return output.response( UNPROCESSABLE, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.Invalid, "Restoring a snapshot needs the extension's user store, "
+                    + "which is either not configured or could not be put behind the server's AuthManager." ) ) );
+        }
+
+        // Read the whole snapshot before writing anything, so that a bad one changes nothing
+        final List<User> restored = new ArrayList<>();
+        long parseStart = System.nanoTime();
+        try ( BufferedReader reader = new BufferedReader( new InputStreamReader( new GZIPInputStream( payload ), UTF8 ) ) )
+        {
+            long lineNumber = 0;
+            String line;
+            while ( (line = reader.readLine()) != null )
+            {
+                lineNumber++;
+                if ( line.trim().length() == 0 )
+                {
+                    continue;
+                }
+                User user = parse( mapper.readValue( line, Map.class ) );
+                if ( user == null || !store.isValidName( user.name() ) )
+                {
+                    return output.response( UNPROCESSABLE, new ExceptionRepresentation( new Neo4jError(
+                    Status.Request.InvalidFormat, String.format( "Line %d is not a valid user.", lineNumber ) ) ) );
+                }
+                restored.add( user );
+            }
+        } catch ( IOException e )
+        {
+            return output.response( BAD_REQUEST, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.InvalidFormat, e.getMessage() ) ) );
+        } finally
+        {
+            context.metrics().record( UserManagementMetrics.USERSNAPSHOT, UserManagementMetrics.PARSE, System.nanoTime() - parseStart );
+        }
+
+        final Set<String> created;
+        long writeStart = System.nanoTime();
+        try ( UserLocks.Held ignored = context.locks().lockEverything() )
+        {
+            UserWriteCoalescer writes = context.writes();
+            created = writes.awaitWrite( writes.submitWrite( new Callable<Set<String>>()
+            {
+                @Override
+                public Set<String> call() throws Exception
+                {
+                    return store.putAll( restored );
+                }
+            }, false ) );
+            context.metrics().record( UserManagementMetrics.USERSNAPSHOT, UserManagementMetrics.WRITE, System.nanoTime() - writeStart );
+        } catch ( RejectedExecutionException | UserWriteTimeoutException e )
+        {
+            return Response.fromResponse( output.response( SERVICE_UNAVAILABLE, new ExceptionRepresentation(
+                new Neo4jError( Status.General.UnknownFailure, e.getMessage() ) ) ) )
+                .header( UserAddService.RETRY_AFTER, context.writes().retryAfterSeconds() ).build();
+        } catch ( IOException e )
+        {
+            return output.serverErrorWithoutLegacyStacktrace( e );
+        }
+
+        long elapsed = System.nanoTime() - writeStart;
+        for ( User user : restored )
+        {
+            context.users().restored( user.name(), user.passwordChangeRequired() );
+            boolean isNew = created.contains( user.name() );
+            if ( isNew )
+            {
+                context.changes().added( user );
+            } else
+            {
+                context.changes().updated( user );
+            }
+            context.audit().record( UserManagementMetrics.USERSNAPSHOT, principal.getName(), user.name(),
+                    isNew ? CREATED : RESTORED, elapsed );
+        }
+
+        Map<String, Object> document = new LinkedHashMap<>();
+        document.put( RESTORED, restored.size() );
+        document.put( CREATED, created.size() );
+        return output.ok( new MapRepresentation( document ) );
+    }
+
+    /**
+     * @return the user described by an exported line or replicated change, or null if it does not describe one
+     */
+    static User parse( Map<?, ?> line )
+    {
+        Object username = line.get( UserAddService.USERNAME );
+        Object salt = line.get( SALT );
+        Object hash = line.get( HASH );
+        Object passwordChangeRequired = line.get( UsernameIndex.PASSWORD_CHANGE_REQUIRED );
+        if ( !( username instanceof String ) || !isHex( salt ) || !isHex( hash )
+                || !( passwordChangeRequired instanceof Boolean ) )
+        {
+            return null;
+        }
+        return new User( (String) username, new Credential( Codecs.decodeHexString( (String) salt ), Codecs.decodeHexString( (String) hash ) ),
+                (Boolean) passwordChangeRequired );
+    }
+
+    private static boolean isHex( Object value )
+    {
+        return value instanceof String && ((String) value).matches( "([0-9A-Fa-f]{2})+" );
+    }
+}
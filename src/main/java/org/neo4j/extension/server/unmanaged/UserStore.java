@@ -0,0 +1,195 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.neo4j.kernel.lifecycle.Lifecycle;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.server.security.auth.UserRepository;
+
+/**
+ * A user repository the extension puts behind the server's {@link org.neo4j.server.security.auth.AuthManager}
+ * in place of the auth file, so that the server authenticates against the users the extension manages.
+ * Both the extension and the AuthManager stop it, so stopping it twice must be harmless.
+ *
+ * @author Robin Bramley
+ */
+interface UserStore extends UserRepository, Lifecycle
+{
+    /**
+     * @return every user in the store
+     */
+    Iterable<User> users();
+
+    /**
+     * @return every username in the store with whether the user must change their password, for building
+     * the username index, which may be known before the credentials are loaded
+     */
+    Map<String, Boolean> usernames();
+
+    /**
+     * Replace the users with the same names as these, forcing them to disk together rather than one by one.
+     *
+     * @return the names of the users that were not in the store, and so were not replaced
+     */
+    Set<String> replaceAll( Collection<User> updated ) throws IOException;
+
+    /**
+     * Create or replace each of these users, forcing them to disk together rather than one by one.
+     *
+     * @return the names of the users that were created rather than replaced
+     */
+    Set<String> putAll( Collection<User> restored ) throws IOException;
+
+    /**
+     * Apply a group of writes in order, making them durable together with a single force or rewrite.
+     * A create that finds the user already there, and a replace or delete that does not find it, is skipped.
+     *
+     * @return for each write whether it found the store as it expected: without the user for a create
+     * or put, so that a put reports whether it created the user, and with it for a replace or delete
+     */
+    boolean[] write( List<Write> writes ) throws IOException;
+
+    /**
+     * @return every user as they were when the iteration began, for an export. An iterator that is
+     * {@link java.io.Closeable} should be closed if the export is given up before its end
+     */
+    Iterable<User> snapshot();
+
+    /**
+     * Have the listener told of every user created, updated or deleted one at a time through
+     * {@link UserRepository}, as the server's AuthManager does when it changes a password, so that
+     * changes the extension did not make itself still reach the username index and the change log.
+     * Writes through {@link #write(List)}, {@link #replaceAll(Collection)} and {@link #putAll(Collection)}
+     * are left to their callers.
+     */
+    void listen( Listener listener );
+
+    /**
+     * Told of each change while the store still holds its lock, so that the changes to a user are
+     * reported in the order they were made.
+     */
+    interface Listener
+    {
+        Listener NONE = new Listener()
+        {
+            @Override
+            public void created( User user )
+            {
+            }
+
+            @Override
+            public void updated( User user )
+            {
+            }
+
+            @Override
+            public void deleted( String username )
+            {
+            }
+        };
+
+        void created( User user );
+
+        void updated( User user );
+
+        void deleted( String username );
+    }
+
+    /**
+     * One of a group of writes applied together by {@link UserStore#write(List)}.
+     */
+    final class Write
+    {
+        enum Type
+        {
+            CREATE, REPLACE, PUT, DELETE
+        }
+
+        private final Type type;
+        private final String username;
+        private final User user;
+
+        private Write( Type type, String username, User user )
+        {
+            this.type = type;
+            this.username = username;
+            this.user = user;
+        }
+
+        static Write create( User user )
+        {
+            return new Write( Type.CREATE, user.name(), user );
+        }
+
+        static Write replace( User user )
+        {
+            return new Write( Type.REPLACE, user.name(), user );
+        }
+
+        static Write put( User user )
+        {
+            return new Write( Type.PUT, user.name(), user );
+        }
+
+        static Write delete( String username )
+        {
+            return new Write( Type.DELETE, username, null );
+        }
+
+        Type type()
+        {
+            return type;
+        }
+
+        String username()
+        {
+            return username;
+        }
+
+        /**
+         * @return the user to store, or null for a delete
+         */
+        User user()
+        {
+            return user;
+        }
+
+        /**
+         * @return whether the store is as the write expects, given whether it holds the user
+         */
+        boolean expected( boolean exists )
+        {
+            return exists == (type == Type.REPLACE || type == Type.DELETE);
+        }
+
+        /**
+         * @return whether the write takes effect, given whether the store holds the user
+         */
+        boolean applies( boolean exists )
+        {
+            return type == Type.PUT || expected( exists );
+        }
+    }
+}
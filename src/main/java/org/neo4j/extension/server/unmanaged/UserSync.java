@@ -0,0 +1,785 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.neo4j.kernel.api.exceptions.Status;
+import org.neo4j.server.rest.transactional.error.Neo4jError;
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.server.security.auth.exception.IllegalUsernameException;
+
+import static org.neo4j.extension.server.unmanaged.UserAddService.MESSAGE;
+import static org.neo4j.extension.server.unmanaged.UserAddService.NEO4J_USER;
+import static org.neo4j.extension.server.unmanaged.UserAddService.PASSWORD;
+import static org.neo4j.extension.server.unmanaged.UserAddService.USERNAME;
+
+/**
+ * Brings the users in the store into line with a desired set of <code>{username, password}</code> entries.
+ * <p>
+ * The desired set is walked in order alongside the username index, so that users to create, users whose
+ * password has changed and users to delete are found in a single pass. The passwords of existing users are
+ * checked in parallel on the password hashing executor before anything is locked, and a user counts as
+ * unchanged only if it has not been written since. Passwords are only hashed for users that are created or
+ * changed, and never while a lock is held. With a store of its own the difference is then taken again with
+ * every user locked and applied in a single write, so that it is durable at once; otherwise every write is
+ * queued, a part at a time under the locks of its users, before any is awaited.
+ * <p>
+ * The <code>neo4j</code> user is managed by the server, so it may not appear in the desired set and is never deleted.
+ *
+ * @author Robin Bramley
+ */
+class UserSync
+{
+    public static final String CREATED = "created";
+    public static final String UPDATED = "updated";
+    public static final String DELETED = "deleted";
+    public static final String UNCHANGED = "unchanged";
+    public static final String FAILED = "failed";
+
+    private final AuthManager authManager;
+    private final UserWriteCoalescer writes;
+    private final UserStore store;
+    private final UsernameIndex users;
+    private final AuditLog audit;
+    private final UserChangeLog changes;
+    private final UserLocks locks;
+    private final String actor;
+    private final NavigableMap<String, String> desired = new TreeMap<>();
+
+    /**
+     * @param actor the principal making the changes, for the audit log
+     */
+    UserSync( AuthManager authManager, UserManagementContext context, String actor )
+    {
+        this.authManager = authManager;
+        this.writes = context.writes();
+        this.store = context.store();
+        this.users = context.users();
+        this.audit = context.audit();
+        this.changes = context.changes();
+        this.locks = context.locks();
+        this.actor = actor;
+    }
+
+    /**
+     * Add an entry to the desired set.
+     *
+     * @return the error describing why the entry is unacceptable, or null if it was added
+     */
+    Neo4jError add( Object entry )
+    {
+        if ( !( entry instanceof Map ) )
+        {
+            return new Neo4jError( Status.Request.InvalidFormat,
+                    String.format( "Expected a map with '%s' and '%s'.", USERNAME, PASSWORD ) );
+        }
+        Map<?, ?> user = (Map<?, ?>) entry;
+        Object username = user.get( USERNAME );
+        if ( !( username instanceof String ) || ((String) username).length() == 0 )
+        {
+            return new Neo4jError( Status.Request.InvalidFormat,
+                    String.format( "Expected '%s' to be a non-empty string.", USERNAME ) );
+        }
+        if ( NEO4J_USER.equals( username ) )
+        {
+            return new Neo4jError( Status.Request.Invalid,
+                    String.format( "The '%s' user is managed by the server and cannot be synced.", NEO4J_USER ) );
+        }
+        Neo4jError invalid = UserAddService.validatePassword( user.get( PASSWORD ) );
+        if ( invalid != null )
+        {
+            return invalid;
+        }
+        if ( desired.put( (String) username, (String) user.get( PASSWORD ) ) != null )
+        {
+            return new Neo4jError( Status.Request.Invalid,
+                    String.format( "The user '%s' appears more than once.", username ) );
+        }
+        return null;
+    }
+
+    int size()
+    {
+        return desired.size();
+    }
+
+    /**
+     * Apply the difference between the desired set and the store.
+     *
+     * @return a report of the users created, updated and deleted, the number unchanged, and any failures
+     */
+    Map<String, Object> apply() throws IOException
+    {
+        long start = System.nanoTime();
+        Map<String, User> matching = matching();
+        List<Map<String, Object>> failed = new ArrayList<>();
+        Map<String, Object> report = new LinkedHashMap<>();
+        int unchanged;
+        if ( store != null )
+        {
+            unchanged = writeTogether( matching, report, failed );
+        } else
+        {
+            unchanged = writeOneByOne( matching, report, failed );
+        }
+        report.put( UNCHANGED, unchanged );
+        report.put( FAILED, failed );
+        audit( report, start );
+        return report;
+    }
+
+    /**
+     * Check the desired passwords of the users that exist, in parallel and without holding any lock.
+     *
+     * @return the users whose password already matches, as they were when checked
+     */
+    private Map<String, User> matching() throws IOException
+    {
+        List<User> existing = new ArrayList<>();
+        for ( String username : desired.keySet() )
+        {
+            User user = users.isUnknown( username ) ? null : authManager.getUser( username );
+            if ( user != null )
+            {
+                existing.add( user );
+            }
+        }
+
+        int capacity = writes.capacity();
+        List<Future<Boolean>> checks = new ArrayList<>( existing.size() );
+        for ( int from = 0; from < existing.size(); from += capacity )
+        {
+            List<User> part = existing.subList( from, Math.min( existing.size(), from + capacity ) );
+            writes.reserve( part.size(), true );
+            for ( User user : part )
+            {
+                checks.add( writes.submitPasswordCheck( user, desired.get( user.name() ) ) );
+            }
+        }
+
+        Map<String, User> matching = new HashMap<>();
+        for ( int i = 0; i < checks.size(); i++ )
+        {
+            try
+            {
+                if ( checks.get( i ).get() )
+                {
+                    matching.put( existing.get( i ).name(), existing.get( i ) );
+                }
+            } catch ( ExecutionException e )
+            {
+                // Treated as changed, so the password is set again
+            } catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException( "Interrupted while checking passwords", e );
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * Walk the desired set alongside the username index to find the users to create, update and delete.
+     *
+     * @param skipped desired users that have already failed, which are left as they are
+     */
+    private Diff diff( Map<String, User> matching, Set<String> skipped )
+    {
+        Diff diff = new Diff();
+        Iterator<String> wanted = desired.keySet().iterator();
+        Iterator<Map.Entry<String, Boolean>> existing = users.list( null, null ).iterator();
+        String want = wanted.hasNext() ? wanted.next() : null;
+        String have = existing.hasNext() ? existing.next().getKey() : null;
+        while ( want != null || have != null )
+        {
+            int order = want == null ? 1 : have == null ? -1 : want.compareTo( have );
+            if ( order <= 0 && skipped.contains( want ) )
+            {
+                // Left as it is
+            } else if ( order < 0 )
+            {
+                diff.creates.add( want );
+            } else if ( order > 0 )
+            {
+                if ( !NEO4J_USER.equals( have ) )
+                {
+                    diff.deletes.add( have );
+                }
+            } else if ( unchanged( want, matching.get( want ) ) )
+            {
+                diff.unchanged++;
+            } else
+            {
+                diff.updates.add( want );
+            }
+            if ( order <= 0 )
+            {
+                want = wanted.hasNext() ? wanted.next() : null;
+            }
+            if ( order >= 0 )
+            {
+                have = existing.hasNext() ? existing.next().getKey() : null;
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * Hash the passwords of the users to create and update, without holding any lock, then take the diff
+     * again with every user locked and apply it to the store in a single write. A user found to need a
+     * password it was not hashed for, having changed since it was checked, sends the sync back to hash it.
+     *
+     * @return the number of users left unchanged
+     */
+    private int writeTogether( Map<String, User> matching, Map<String, Object> report,
+            List<Map<String, Object>> failed )
+    {
+        List<String> created = new ArrayList<>();
+        List<String> updated = new ArrayList<>();
+        List<String> deleted = new ArrayList<>();
+        report.put( CREATED, created );
+        report.put( UPDATED, updated );
+        report.put( DELETED, deleted );
+
+        Map<String, Credential> credentials = new HashMap<>();
+        Set<String> skipped = new HashSet<>();
+        Diff diff = diff( matching, skipped );
+        final List<UserStore.Write> writing = new ArrayList<>();
+        Future<boolean[]> pending;
+        while ( true )
+        {
+            hash( diff, credentials, skipped, failed );
+            // The diff may touch any user, so nothing else may change while it is taken again and submitted
+            try ( UserLocks.Held ignored = locks.lockEverything() )
+            {
+                diff = diff( matching, skipped );
+                if ( !credentials.keySet().containsAll( diff.creates )
+                        || !credentials.keySet().containsAll( diff.updates ) )
+                {
+                    continue;
+                }
+                // Claim the new names only once everything is locked, and give up any taken meanwhile
+                for ( String username : diff.creates )
+                {
+                    if ( users.reserve( username ) )
+                    {
+                        writing.add( UserStore.Write.create( new User( username, credentials.get( username ), true ) ) );
+                    } else
+                    {
+                        failed.add( failure( username, "The specified user already exists" ) );
+                    }
+                }
+                for ( String username : diff.updates )
+                {
+                    writing.add( UserStore.Write.replace( new User( username, credentials.get( username ), false ) ) );
+                }
+                for ( String username : diff.deletes )
+                {
+                    writing.add( UserStore.Write.delete( username ) );
+                }
+                if ( writing.isEmpty() )
+                {
+                    return diff.unchanged;
+                }
+                final UserStore target = store;
+                pending = writes.submitWrite( new Callable<boolean[]>()
+                {
+                    @Override
+                    public boolean[] call() throws Exception
+                    {
+                        return target.write( writing );
+                    }
+                }, false );
+                break;
+            }
+        }
+
+        boolean[] expected;
+        try
+        {
+            expected = writes.awaitWrite( pending );
+        } catch ( UserWriteTimeoutException e )
+        {
+            // The difference may yet be applied, so the new names stay claimed until the write is settled
+            writes.whenDone( pending, settleWrites( users, changes, writing, pending ) );
+            for ( UserStore.Write write : writing )
+            {
+                failed.add( failure( write.username(), e.getMessage() ) );
+            }
+            return diff.unchanged;
+        } catch ( IOException e )
+        {
+            for ( UserStore.Write write : writing )
+            {
+                if ( write.type() == UserStore.Write.Type.CREATE )
+                {
+                    users.release( write.username() );
+                }
+                failed.add( failure( write.username(), e.getMessage() ) );
+            }
+            return diff.unchanged;
+        }
+
+        recordWrites( users, changes, writing, expected );
+        for ( int i = 0; i < writing.size(); i++ )
+        {
+            UserStore.Write write = writing.get( i );
+            switch ( write.type() )
+            {
+            case CREATE:
+                if ( expected[i] )
+                {
+                    created.add( write.username() );
+                } else
+                {
+                    failed.add( failure( write.username(), "The specified user already exists" ) );
+                }
+                break;
+            case REPLACE:
+                if ( expected[i] )
+                {
+                    updated.add( write.username() );
+                } else
+                {
+                    failed.add( failure( write.username(), "The user no longer exists" ) );
+                }
+                break;
+            default:
+                if ( expected[i] )
+                {
+                    deleted.add( write.username() );
+                }
+            }
+        }
+        return diff.unchanged;
+    }
+
+    /**
+     * Hash the desired passwords of the users to create and update that have not been hashed yet, a hashing
+     * capacity at a time. A user that cannot be hashed, or that the store would not accept, is failed and skipped.
+     */
+    private void hash( Diff diff, Map<String, Credential> credentials, Set<String> skipped,
+            List<Map<String, Object>> failed )
+    {
+        List<String> hashing = new ArrayList<>();
+        for ( String username : diff.creates )
+        {
+            // The store only checks names as users are created one at a time, so check them before hashing
+            if ( !store.isValidName( username ) )
+            {
+                skipped.add( username );
+                failed.add( failure( username, "'" + username + "' is not a valid user name." ) );
+            } else if ( !credentials.containsKey( username ) )
+            {
+                hashing.add( username );
+            }
+        }
+        for ( String username : diff.updates )
+        {
+            if ( !credentials.containsKey( username ) )
+            {
+                hashing.add( username );
+            }
+        }
+
+        List<Future<Credential>> pending = new ArrayList<>( hashing.size() );
+        IOException refused = null;
+        int capacity = writes.capacity();
+        for ( int from = 0; from < hashing.size(); from += capacity )
+        {
+            int to = Math.min( hashing.size(), from + capacity );
+            try
+            {
+                writes.reserve( to - from, true );
+            } catch ( IOException e )
+            {
+                refused = e;
+                break;
+            }
+            for ( int i = from; i < to; i++ )
+            {
+                pending.add( writes.submitHash( desired.get( hashing.get( i ) ) ) );
+            }
+        }
+        for ( int i = 0; i < hashing.size(); i++ )
+        {
+            String username = hashing.get( i );
+            try
+            {
+                if ( i >= pending.size() )
+                {
+                    throw refused;
+                }
+                credentials.put( username, hashed( pending.get( i ) ) );
+            } catch ( IOException e )
+            {
+                skipped.add( username );
+                failed.add( failure( username, e.getMessage() ) );
+            }
+        }
+    }
+
+    private static Credential hashed( Future<Credential> pending ) throws IOException
+    {
+        try
+        {
+            return pending.get();
+        } catch ( ExecutionException e )
+        {
+            throw new IOException( e.getCause().getMessage(), e.getCause() );
+        } catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while hashing passwords", e );
+        }
+    }
+
+    /**
+     * Queue every write before waiting on any, so they are committed together, reserving hashing
+     * capacity a part at a time as the hashing of earlier parts makes room. Each part is checked and
+     * queued with only its own users locked, and nothing is locked while waiting for capacity.
+     *
+     * @return the number of users left unchanged
+     */
+    private int writeOneByOne( Map<String, User> matching, Map<String, Object> report,
+            List<Map<String, Object>> failed )
+    {
+        Diff diff = diff( matching, Collections.<String>emptySet() );
+        List<String> hashed = new ArrayList<>( diff.creates.size() + diff.updates.size() );
+        hashed.addAll( diff.creates );
+        hashed.addAll( diff.updates );
+        List<String> creates = new ArrayList<>( diff.creates.size() );
+        List<Future<User>> created = new ArrayList<>( diff.creates.size() );
+        List<String> updates = new ArrayList<>( diff.updates.size() );
+        List<Future<User>> updated = new ArrayList<>( diff.updates.size() );
+        int capacity = writes.capacity();
+        for ( int from = 0; from < hashed.size(); from += capacity )
+        {
+            List<String> part = hashed.subList( from, Math.min( hashed.size(), from + capacity ) );
+            try
+            {
+                writes.reserve( part.size(), true );
+            } catch ( IOException e )
+            {
+                for ( String username : hashed.subList( from, hashed.size() ) )
+                {
+                    failed.add( failure( username, e.getMessage() ) );
+                }
+                break;
+            }
+            try ( UserLocks.Held ignored = locks.lockAll( part ) )
+            {
+                for ( int i = 0; i < part.size(); i++ )
+                {
+                    String username = part.get( i );
+                    if ( from + i < diff.creates.size() )
+                    {
+                        if ( !users.reserve( username ) )
+                        {
+                            writes.release( 1 );
+                            failed.add( failure( username, "The specified user already exists" ) );
+                            continue;
+                        }
+                        creates.add( username );
+                        created.add( writes.submitNewUser( authManager, username, desired.get( username ), true ) );
+                    } else
+                    {
+                        if ( users.isUnknown( username ) )
+                        {
+                            writes.release( 1 );
+                            failed.add( failure( username, "The user no longer exists" ) );
+                            continue;
+                        }
+                        updates.add( username );
+                        updated.add( writes.submitSetPassword( authManager, username, desired.get( username ) ) );
+                    }
+                }
+            }
+        }
+        List<Future<Boolean>> deleted = new ArrayList<>( diff.deletes.size() );
+        try ( UserLocks.Held ignored = locks.lockAll( diff.deletes ) )
+        {
+            for ( String username : diff.deletes )
+            {
+                deleted.add( writes.submitDeleteUser( authManager, username ) );
+            }
+        }
+
+        report.put( CREATED, awaitCreated( creates, created, failed ) );
+        report.put( UPDATED, awaitUpdated( updates, updated, failed ) );
+        report.put( DELETED, awaitDeleted( diff.deletes, deleted, failed ) );
+        return diff.unchanged;
+    }
+
+    /**
+     * Update the username index and the change log for a group of writes applied to the store, giving up
+     * the claims on the names of users that could not be created.
+     */
+    static void recordWrites( UsernameIndex users, UserChangeLog changes, List<UserStore.Write> applied,
+            boolean[] expected )
+    {
+        for ( int i = 0; i < applied.size(); i++ )
+        {
+            UserStore.Write write = applied.get( i );
+            User user = write.user();
+            switch ( write.type() )
+            {
+            case CREATE:
+                if ( expected[i] )
+                {
+                    users.created( write.username(), user.passwordChangeRequired() );
+                    changes.added( user );
+                } else
+                {
+                    users.release( write.username() );
+                }
+                break;
+            case REPLACE:
+                if ( expected[i] )
+                {
+                    users.updated( write.username(), user.passwordChangeRequired() );
+                    changes.updated( user );
+                }
+                break;
+            case PUT:
+                users.restored( write.username(), user.passwordChangeRequired() );
+                if ( expected[i] )
+                {
+                    changes.added( user );
+                } else
+                {
+                    changes.updated( user );
+                }
+                break;
+            default:
+                users.removed( write.username() );
+                if ( expected[i] )
+                {
+                    changes.deleted( write.username() );
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a callback that completes the bookkeeping of a group of writes whose caller stopped waiting for it
+     */
+    static Runnable settleWrites( final UsernameIndex users, final UserChangeLog changes,
+            final List<UserStore.Write> applied, final Future<boolean[]> pending )
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                boolean[] expected;
+                try
+                {
+                    expected = pending.get();
+                } catch ( InterruptedException | ExecutionException e )
+                {
+                    // Nothing was written
+                    for ( int i = 0; i < applied.size(); i++ )
+                    {
+                        if ( applied.get( i ).type() == UserStore.Write.Type.CREATE )
+                        {
+                            users.release( applied.get( i ).username() );
+                        }
+                    }
+                    return;
+                }
+                recordWrites( users, changes, applied, expected );
+            }
+        };
+    }
+
+    /**
+     * @return a callback that completes the bookkeeping of a password change whose caller stopped waiting for it
+     */
+    static Runnable settleUpdate( final UsernameIndex users, final UserChangeLog changes, final Future<User> pending )
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    User user = pending.get();
+                    if ( user != null )
+                    {
+                        users.updated( user.name(), user.passwordChangeRequired() );
+                        changes.updated( user );
+                    }
+                } catch ( InterruptedException | ExecutionException e )
+                {
+                    // Not updated
+                }
+            }
+        };
+    }
+
+    private void audit( Map<String, Object> report, long start )
+    {
+        long elapsed = System.nanoTime() - start;
+        for ( String outcome : new String[]{ CREATED, UPDATED, DELETED } )
+        {
+            for ( Object username : (List<?>) report.get( outcome ) )
+            {
+                audit.record( UserManagementMetrics.USERSYNC, actor, (String) username, outcome, elapsed );
+            }
+        }
+    }
+
+    /**
+     * @return whether a user whose password was found to match is still as it was when checked
+     */
+    private boolean unchanged( String username, User checked )
+    {
+        return checked != null && checked.equals( authManager.getUser( username ) );
+    }
+
+    private List<String> awaitCreated( List<String> usernames, List<Future<User>> pending,
+            List<Map<String, Object>> failed )
+    {
+        List<String> created = new ArrayList<>();
+        for ( int i = 0; i < usernames.size(); i++ )
+        {
+            String username = usernames.get( i );
+            try
+            {
+                User newUser = writes.awaitUser( pending.get( i ) );
+                if ( newUser != null )
+                {
+                    created.add( username );
+                    users.created( username, newUser.passwordChangeRequired() );
+                    changes.added( newUser );
+                } else
+                {
+                    users.release( username );
+                    failed.add( failure( username, "The user could not be created" ) );
+                }
+            } catch ( UserWriteTimeoutException e )
+            {
+                // The user may yet be created, so the name stays claimed until the write is settled
+                writes.whenDone( pending.get( i ), UserAddService.settleNewUser( users, changes, username, pending.get( i ) ) );
+                failed.add( failure( username, e.getMessage() ) );
+            } catch ( IOException | IllegalUsernameException e )
+            {
+                users.release( username );
+                failed.add( failure( username, e.getMessage() ) );
+            }
+        }
+        return created;
+    }
+
+    private List<String> awaitUpdated( List<String> usernames, List<Future<User>> pending,
+            List<Map<String, Object>> failed )
+    {
+        List<String> updated = new ArrayList<>();
+        for ( int i = 0; i < usernames.size(); i++ )
+        {
+            String username = usernames.get( i );
+            try
+            {
+                User user = writes.awaitUser( pending.get( i ) );
+                if ( user != null )
+                {
+                    users.updated( username, user.passwordChangeRequired() );
+                    updated.add( username );
+                    changes.updated( user );
+                } else
+                {
+                    failed.add( failure( username, "The user no longer exists" ) );
+                }
+            } catch ( UserWriteTimeoutException e )
+            {
+                writes.whenDone( pending.get( i ), settleUpdate( users, changes, pending.get( i ) ) );
+                failed.add( failure( username, e.getMessage() ) );
+            } catch ( IOException | IllegalUsernameException e )
+            {
+                failed.add( failure( username, e.getMessage() ) );
+            }
+        }
+        return updated;
+    }
+
+    private List<String> awaitDeleted( List<String> usernames, List<Future<Boolean>> pending,
+            List<Map<String, Object>> failed )
+    {
+        List<String> deleted = new ArrayList<>();
+        for ( int i = 0; i < usernames.size(); i++ )
+        {
+            String username = usernames.get( i );
+            try
+            {
+                if ( writes.awaitDeleted( pending.get( i ) ) )
+                {
+                    deleted.add( username );
+                    changes.deleted( username );
+                }
+                users.removed( username );
+            } catch ( UserWriteTimeoutException e )
+            {
+                writes.whenDone( pending.get( i ), UserDeleteService.settleDeletion( users, changes, username, pending.get( i ) ) );
+                failed.add( failure( username, e.getMessage() ) );
+            } catch ( IOException e )
+            {
+                failed.add( failure( username, e.getMessage() ) );
+            }
+        }
+        return deleted;
+    }
+
+    private static Map<String, Object> failure( String username, String message )
+    {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put( USERNAME, username );
+        result.put( MESSAGE, message );
+        return result;
+    }
+
+    /**
+     * The users to create, update and delete to bring the store into line with the desired set.
+     */
+    private static class Diff
+    {
+        private final List<String> creates = new ArrayList<>();
+        private final List<String> updates = new ArrayList<>();
+        private final List<String> deletes = new ArrayList<>();
+        private int unchanged;
+    }
+}
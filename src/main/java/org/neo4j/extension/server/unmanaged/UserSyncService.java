@@ -0,0 +1,240 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import org.neo4j.kernel.api.exceptions.Status;
+import org.neo4j.server.rest.repr.BadInputException;
+import org.neo4j.server.rest.repr.ExceptionRepresentation;
+import org.neo4j.server.rest.repr.InputFormat;
+import org.neo4j.server.rest.repr.MapRepresentation;
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.transactional.error.Neo4jError;
+import org.neo4j.server.security.auth.AuthManager;
+
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+import static org.neo4j.server.rest.web.CustomStatusType.UNPROCESSABLE;
+
+/**
+ * Enable the users to be set to a desired state, given as a JSON list, or streamed as newline
+ * delimited JSON, of <code>{username, password}</code> maps. Users not in the list are deleted,
+ * and the response reports what changed.
+ * <p>
+ * Every entry is validated before anything is written, so an invalid list changes nothing. Once the
+ * list is read the request takes an admission token for each of its entries. An empty list, which would
+ * delete every user but <code>neo4j</code>, is refused unless <code>allow_empty=true</code> is given too.
+ *
+ * @author Robin Bramley
+ */
+@Path( "/usersync" )
+public class UserSyncService
+{
+    public static final String NEO4J_USER = "neo4j";
+    public static final String ALLOW_EMPTY = "allow_empty";
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final AuthManager authManager;
+    private final InputFormat input;
+    private final OutputFormat output;
+    private final UserManagementContext context;
+
+    public UserSyncService( @Context AuthManager authManager,
+        @Context InputFormat input, @Context OutputFormat output, @Context UserManagementContext context )
+    {
+        this.authManager = context.authManager( authManager );
+        this.input = input;
+        this.output = output;
+        this.context = context;
+    }
+
+    @PUT
+    public Response syncUsers( @QueryParam(ALLOW_EMPTY) @DefaultValue("false") boolean allowEmpty,
+            @Context HttpServletRequest req, String payload )
+    {
+        long start = System.nanoTime();
+        Response response = syncList( allowEmpty, req, payload );
+        context.metrics().completed( UserManagementMetrics.USERSYNC, response.getStatus(), System.nanoTime() - start );
+        return response;
+    }
+
+    @PUT
+    @Consumes( UserAddService.NDJSON )
+    public Response syncUsersStreamed( @QueryParam(ALLOW_EMPTY) @DefaultValue("false") boolean allowEmpty,
+            @Context HttpServletRequest req, InputStream payload )
+    {
+        long start = System.nanoTime();
+        Response response = syncStream( allowEmpty, req, payload );
+        context.metrics().completed( UserManagementMetrics.USERSYNC, response.getStatus(), System.nanoTime() - start );
+        return response;
+    }
+
+    private Response syncList( boolean allowEmpty, HttpServletRequest req, String payload )
+    {
+        Response refused = refuse( req );
+        if ( refused != null )
+        {
+            return refused;
+        }
+
+        final Object deserialized;
+        long parseStart = System.nanoTime();
+        try
+        {
+            deserialized = UserAddService.readJson( payload );
+        } catch ( BadInputException e )
+        {
+            return output.response( BAD_REQUEST, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.InvalidFormat, e.getMessage() ) ) );
+        } finally
+        {
+            context.metrics().record( UserManagementMetrics.USERSYNC, UserManagementMetrics.PARSE, System.nanoTime() - parseStart );
+        }
+
+        if ( !( deserialized instanceof List ) )
+        {
+            return output.response( UNPROCESSABLE, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.InvalidFormat, "Expected a list of users." ) ) );
+        }
+
+        UserSync sync = new UserSync( authManager, context, req.getUserPrincipal().getName() );
+        for ( Object entry : (List<?>) deserialized )
+        {
+            Neo4jError invalid = sync.add( entry );
+            if ( invalid != null )
+            {
+                return output.response( UNPROCESSABLE, new ExceptionRepresentation( invalid ) );
+            }
+        }
+        return apply( allowEmpty, req, sync );
+    }
+
+    private Response syncStream( boolean allowEmpty, HttpServletRequest req, InputStream payload )
+    {
+        Response refused = refuse( req );
+        if ( refused != null )
+        {
+            return refused;
+        }
+
+        UserSync sync = new UserSync( authManager, context, req.getUserPrincipal().getName() );
+        long parseStart = System.nanoTime();
+        try ( BufferedReader reader = new BufferedReader( new InputStreamReader( payload, UTF8 ) ) )
+        {
+            String line;
+            while ( (line = reader.readLine()) != null )
+            {
+                if ( line.trim().length() == 0 )
+                {
+                    continue;
+                }
+                Neo4jError invalid = sync.add( mapper.readValue( line, Map.class ) );
+                if ( invalid != null )
+                {
+                    return output.response( UNPROCESSABLE, new ExceptionRepresentation( invalid ) );
+                }
+            }
+        } catch ( IOException e )
+        {
+            return output.response( BAD_REQUEST, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.InvalidFormat, e.getMessage() ) ) );
+        } finally
+        {
+            context.metrics().record( UserManagementMetrics.USERSYNC, UserManagementMetrics.PARSE, System.nanoTime() - parseStart );
+        }
+        return apply( allowEmpty, req, sync );
+    }
+
+    /**
+     * @return the response refusing the request, or null if it may proceed
+     */
+    private Response refuse( HttpServletRequest req )
+    {
+        Principal principal = req.getUserPrincipal();
+        if ( principal == null || !principal.getName().equals( NEO4J_USER ) )
+        {
+            return output.notFound();
+        }
+
+        // Without the index there is no way to find the users to delete
+        if ( !context.users().isLoaded() )
+        {
+            return output.response( SERVICE_UNAVAILABLE, new ExceptionRepresentation(
+            new Neo4jError( Status.General.UnknownFailure, "The user index is not available." ) ) );
+        }
+        return null;
+    }
+
+    /**
+     * Admit the sync once the whole desired set is read, taking an admission token for each of its entries.
+     */
+    private Response apply( boolean allowEmpty, HttpServletRequest req, UserSync sync )
+    {
+        if ( sync.size() == 0 && !allowEmpty )
+        {
+            return output.response( UNPROCESSABLE, new ExceptionRepresentation(
+            new Neo4jError( Status.Request.Invalid, String.format( "An empty list would delete every user but %s; "
+                    + "give %s=true to do so.", NEO4J_USER, ALLOW_EMPTY ) ) ) );
+        }
+        Response refused = UserAddService.refuse( req, output, context.admission(), sync.size() );
+        if ( refused != null )
+        {
+            return refused;
+        }
+
+        final Map<String, Object> report;
+        long writeStart = System.nanoTime();
+        try
+        {
+            report = sync.apply();
+            context.metrics().record( UserManagementMetrics.USERSYNC, UserManagementMetrics.WRITE, System.nanoTime() - writeStart );
+        } catch ( RejectedExecutionException | UserWriteTimeoutException e )
+        {
+            return Response.fromResponse( output.response( SERVICE_UNAVAILABLE, new ExceptionRepresentation(
+                new Neo4jError( Status.General.UnknownFailure, e.getMessage() ) ) ) )
+                .header( UserAddService.RETRY_AFTER, context.writes().retryAfterSeconds() ).build();
+        } catch ( IOException e )
+        {
+            return output.serverErrorWithoutLegacyStacktrace( e );
+        }
+        return output.ok( new MapRepresentation( report ) );
+    }
+}
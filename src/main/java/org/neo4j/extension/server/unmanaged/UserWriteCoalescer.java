@@ -0,0 +1,733 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.server.security.auth.exception.IllegalUsernameException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces user mutations arriving from concurrent requests into groups, which a single writer
+ * thread applies to the {@link UserStore} in one write before completing each caller. A group is closed
+ * when the commit window elapses or the maximum group size is reached, whichever comes first. Passwords
+ * are hashed in parallel on the {@link PasswordHashingExecutor} as they are submitted, and the writer
+ * waits only for those of its own group.
+ * <p>
+ * Grouping needs a store, and so a configured {@link UserManagementSettings#STORE}. Without one, the default,
+ * nothing is grouped: each mutation goes through the AuthManager on its own and the server's repository rewrites
+ * its auth file for every one of them. An inline coalescer applies each mutation on the calling thread.
+ * <p>
+ * Should the writer thread stop unexpectedly, the writes it was applying and every write queued behind it
+ * fail, and so does every write submitted afterwards, rather than being left waiting for a writer that is gone.
+ *
+ * @author Robin Bramley
+ */
+class UserWriteCoalescer implements Runnable
+{
+    private static final Logger logger = LoggerFactory.getLogger( UserWriteCoalescer.class );
+
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final long windowMillis;
+    private final int maxGroupSize;
+    private final boolean inline;
+    private final PasswordHashingExecutor hashing;
+    private final long timeoutMillis;
+    private volatile UserStore store;
+    private volatile UserManagementMetrics metrics;
+    private volatile boolean running;
+    private volatile boolean abandoned;
+    private Thread writer;
+
+    private UserWriteCoalescer( long windowMillis, int maxGroupSize, boolean inline, PasswordHashingExecutor hashing,
+            long timeoutMillis )
+    {
+        this.windowMillis = windowMillis;
+        this.maxGroupSize = maxGroupSize;
+        this.inline = inline;
+        this.hashing = hashing;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    static UserWriteCoalescer inline()
+    {
+        return new UserWriteCoalescer( 0, 1, true, PasswordHashingExecutor.inline(), 0 );
+    }
+
+    /**
+     * @param timeoutMillis how long a caller waits for its mutation to be applied, or 0 to wait indefinitely
+     */
+    static UserWriteCoalescer grouping( long windowMillis, int maxGroupSize, PasswordHashingExecutor hashing,
+            long timeoutMillis )
+    {
+        return new UserWriteCoalescer( windowMillis, Math.max( 1, maxGroupSize ), false, hashing, timeoutMillis );
+    }
+
+    /**
+     * Apply mutations to a store in groups rather than through the AuthManager, or stop doing so if null.
+     */
+    void attach( UserStore store )
+    {
+        this.store = store;
+    }
+
+    /**
+     * Record how long hashing and writing to the store take, under {@link UserManagementMetrics#GROUP_COMMIT}.
+     */
+    void measure( UserManagementMetrics metrics )
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @throws RejectedExecutionException if the password hashing queue is full
+     */
+    User newUser( AuthManager authManager, String username, String password, boolean requirePasswordChange )
+            throws IOException, IllegalUsernameException
+    {
+        reserve( 1, false );
+        return awaitUser( submitNewUser( authManager, username, password, requirePasswordChange ) );
+    }
+
+    boolean deleteUser( AuthManager authManager, String username ) throws IOException
+    {
+        return awaitDeleted( submitDeleteUser( authManager, username ) );
+    }
+
+    /**
+     * Queue a deletion without waiting, so that it can be applied in the same group as other writes.
+     */
+    Future<Boolean> submitDeleteUser( final AuthManager authManager, final String username )
+    {
+        if ( store == null )
+        {
+            Pending<Boolean> task = new Pending<>( new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call() throws Exception
+                {
+                    return authManager.deleteUser( username );
+                }
+            } );
+            task.run();
+            return task;
+        }
+        return submit( new PendingWrite( UserStore.Write.Type.DELETE, username, null, false ) );
+    }
+
+    /**
+     * @throws UserWriteTimeoutException if the deletion is not applied within the timeout
+     */
+    boolean awaitDeleted( Future<Boolean> pending ) throws IOException
+    {
+        return awaitWrite( pending );
+    }
+
+    /**
+     * Queue an arbitrary write, to be applied in order with the others: the writes queued ahead of it
+     * are applied first, and those behind it wait for it. A write that hashes passwords must have had
+     * capacity {@link #reserve(int, boolean) reserved}, and is run on the password hashing executor.
+     */
+    <T> Future<T> submitWrite( Callable<T> write, boolean hashes )
+    {
+        Pending<T> task = new Pending<>( write );
+        if ( store == null )
+        {
+            apply( task, hashes );
+            return task;
+        }
+        submit( new PendingWrite( task, hashes ) );
+        return task;
+    }
+
+    /**
+     * Hash a password on the password hashing executor, for which capacity has been
+     * {@link #reserve(int, boolean) reserved}, without queueing behind other writes.
+     */
+    Future<Credential> submitHash( final String password )
+    {
+        FutureTask<Credential> task = new FutureTask<>( new Callable<Credential>()
+        {
+            @Override
+            public Credential call() throws Exception
+            {
+                long start = System.nanoTime();
+                Credential credential = Credential.forPassword( password );
+                record( UserManagementMetrics.HASH, start );
+                return credential;
+            }
+        } );
+        hashing.execute( task );
+        return task;
+    }
+
+    /**
+     * Check a password against a user's credentials on the password hashing executor, for which capacity
+     * has been {@link #reserve(int, boolean) reserved}, as checking costs as much as hashing.
+     */
+    Future<Boolean> submitPasswordCheck( final User user, final String password )
+    {
+        FutureTask<Boolean> task = new FutureTask<>( new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call() throws Exception
+            {
+                return user.credentials().matchesPassword( password );
+            }
+        } );
+        hashing.execute( task );
+        return task;
+    }
+
+    /**
+     * @throws UserWriteTimeoutException if the write is not applied within the timeout
+     */
+    <T> T awaitWrite( Future<T> pending ) throws IOException
+    {
+        try
+        {
+            return await( pending );
+        } catch ( ExecutionException e )
+        {
+            throw asIOException( e.getCause() );
+        }
+    }
+
+    /**
+     * Reserve password hashing capacity for users that are about to be submitted, no more than
+     * {@link #capacity()} at a time, as a larger reservation could never be satisfied.
+     *
+     * @param wait whether to block until there is room rather than fail
+     * @throws RejectedExecutionException if there is no room and the caller would not wait
+     */
+    void reserve( int count, boolean wait ) throws IOException
+    {
+        try
+        {
+            hashing.reserve( count, wait );
+        } catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while waiting for password hashing capacity", e );
+        }
+    }
+
+    /**
+     * @return the most users that can be {@link #reserve(int, boolean) reserved} at once
+     */
+    int capacity()
+    {
+        return hashing.capacity();
+    }
+
+    /**
+     * Give back capacity {@link #reserve(int, boolean) reserved} for users that will not be submitted after all.
+     */
+    void release( int count )
+    {
+        hashing.release( count );
+    }
+
+    /**
+     * Queue a new user, for which capacity has been {@link #reserve(int, boolean) reserved}, without
+     * waiting, so that a caller with several users can have them all applied in the same group.
+     */
+    Future<User> submitNewUser( final AuthManager authManager, final String username, final String password,
+            final boolean requirePasswordChange )
+    {
+        UserStore target = store;
+        if ( target == null )
+        {
+            Pending<User> task = new Pending<>( new Callable<User>()
+            {
+                @Override
+                public User call() throws Exception
+                {
+                    return authManager.newUser( username, password, requirePasswordChange );
+                }
+            } );
+            hashing.execute( task );
+            return task;
+        }
+        if ( !target.isValidName( username ) )
+        {
+            // The password is never hashed, so give back the capacity reserved for it
+            hashing.release( 1 );
+            Pending<User> task = new Pending<>( null );
+            task.fail( new IllegalUsernameException( "'" + username + "' is not a valid user name." ) );
+            return task;
+        }
+        return submit( new PendingWrite( UserStore.Write.Type.CREATE, username, submitHash( password ),
+                requirePasswordChange ) );
+    }
+
+    /**
+     * Queue a password change, for which capacity has been {@link #reserve(int, boolean) reserved},
+     * without waiting.
+     */
+    Future<User> submitSetPassword( final AuthManager authManager, final String username, final String password )
+    {
+        if ( store == null )
+        {
+            Pending<User> task = new Pending<>( new Callable<User>()
+            {
+                @Override
+                public User call() throws Exception
+                {
+                    return authManager.setPassword( username, password );
+                }
+            } );
+            hashing.execute( task );
+            return task;
+        }
+        return submit( new PendingWrite( UserStore.Write.Type.REPLACE, username, submitHash( password ), false ) );
+    }
+
+    /**
+     * @throws UserWriteTimeoutException if the user is not applied within the timeout
+     */
+    User awaitUser( Future<User> pending ) throws IOException, IllegalUsernameException
+    {
+        try
+        {
+            return await( pending );
+        } catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof IllegalUsernameException )
+            {
+                throw (IllegalUsernameException) cause;
+            }
+            throw asIOException( cause );
+        }
+    }
+
+    /**
+     * Run a callback once a submitted write has been applied or has failed, or at once if it already has,
+     * so that a caller who gave up waiting can still settle what depends on the outcome.
+     */
+    void whenDone( Future<?> pending, Runnable callback )
+    {
+        ((Pending<?>) pending).whenDone( callback );
+    }
+
+    int retryAfterSeconds()
+    {
+        return hashing.retryAfterSeconds();
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private <T> Future<T> submit( PendingWrite write )
+    {
+        if ( !inline && running )
+        {
+            queue.add( write );
+            if ( running || !queue.remove( write ) )
+            {
+                return (Future<T>) write.task;
+            }
+            // The writer stopped before it could pick this up
+        }
+        if ( abandoned )
+        {
+            fail( Collections.singletonList( write ), new IOException( "The user store writer has stopped" ) );
+            return (Future<T>) write.task;
+        }
+        try
+        {
+            applyGroup( Collections.singletonList( write ) );
+        } catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            fail( Collections.singletonList( write ), new IOException( "Interrupted while writing the user store", e ) );
+        }
+        return (Future<T>) write.task;
+    }
+
+    private void apply( FutureTask<?> task, boolean hashes )
+    {
+        if ( hashes )
+        {
+            hashing.execute( task );
+        } else
+        {
+            task.run();
+        }
+    }
+
+    private void record( String phase, long start )
+    {
+        UserManagementMetrics measured = metrics;
+        if ( measured != null )
+        {
+            measured.record( UserManagementMetrics.GROUP_COMMIT, phase, System.nanoTime() - start );
+        }
+    }
+
+    private <T> T await( Future<T> pending ) throws ExecutionException, IOException
+    {
+        try
+        {
+            return timeoutMillis > 0 ? pending.get( timeoutMillis, TimeUnit.MILLISECONDS ) : pending.get();
+        } catch ( TimeoutException e )
+        {
+            throw new UserWriteTimeoutException( timeoutMillis );
+        } catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while waiting for the user store to be written", e );
+        }
+    }
+
+    private static IOException asIOException( Throwable cause )
+    {
+        if ( cause instanceof IOException )
+        {
+            return (IOException) cause;
+        }
+        if ( cause instanceof RuntimeException )
+        {
+            throw (RuntimeException) cause;
+        }
+        return new IOException( cause );
+    }
+
+    synchronized void start()
+    {
+        if ( inline || running )
+        {
+            return;
+        }
+        running = true;
+        abandoned = false;
+        writer = new Thread( this, "useradd-group-commit" );
+        writer.setDaemon( true );
+        writer.start();
+    }
+
+    synchronized void stop() throws InterruptedException
+    {
+        if ( running )
+        {
+            running = false;
+            writer.join();
+            // Apply anything queued after the writer took its last group
+            List<PendingWrite> remaining = new ArrayList<>();
+            queue.drainTo( remaining );
+            applyGroup( remaining );
+        }
+        hashing.stop();
+    }
+
+    @Override
+    public void run()
+    {
+        List<PendingWrite> group = new ArrayList<>( maxGroupSize );
+        try
+        {
+            while ( running )
+            {
+                group.clear();
+                PendingWrite first = queue.poll( 100, TimeUnit.MILLISECONDS );
+                if ( first == null )
+                {
+                    continue;
+                }
+                group.add( first );
+                long deadline = System.currentTimeMillis() + windowMillis;
+                while ( group.size() < maxGroupSize )
+                {
+                    long remaining = deadline - System.currentTimeMillis();
+                    PendingWrite next = remaining > 0 ? queue.poll( remaining, TimeUnit.MILLISECONDS ) : queue.poll();
+                    if ( next == null )
+                    {
+                        break;
+                    }
+                    group.add( next );
+                }
+                applyGroup( group );
+            }
+        } catch ( InterruptedException | RuntimeException e )
+        {
+            logger.warn( "User write coalescer stopped unexpectedly", e );
+            abandon( group, e );
+        }
+    }
+
+    /**
+     * Fail the group the writer was applying when it stopped, and everything queued behind it, and refuse
+     * any more writes, which would otherwise wait for a writer that is gone.
+     */
+    private void abandon( List<PendingWrite> group, Exception cause )
+    {
+        abandoned = true;
+        running = false;
+        // A write queued from now on is taken back and failed by its submitter
+        queue.drainTo( group );
+        fail( group, new IOException( "The user store writer has stopped", cause ) );
+    }
+
+    /**
+     * Fail writes that were not applied. An arbitrary write that was handed over completes on its own,
+     * and failing a user write that was already completed changes nothing.
+     */
+    private void fail( List<PendingWrite> writes, IOException cause )
+    {
+        for ( PendingWrite write : writes )
+        {
+            if ( write.handedOver )
+            {
+                continue;
+            }
+            if ( write.hashes )
+            {
+                // The write never runs on the hashing executor, so give back the capacity reserved for it
+                hashing.release( 1 );
+            }
+            write.task.fail( cause );
+        }
+    }
+
+    /**
+     * Apply the user writes of a group to the store together, breaking the group only where an
+     * arbitrary write has to be applied in between.
+     */
+    private void applyGroup( List<PendingWrite> group ) throws InterruptedException
+    {
+        List<PendingWrite> batch = new ArrayList<>( group.size() );
+        for ( PendingWrite write : group )
+        {
+            if ( write.type != null )
+            {
+                batch.add( write );
+                continue;
+            }
+            commit( batch );
+            write.handedOver = true;
+            apply( write.task, write.hashes );
+            try
+            {
+                write.task.get();
+            } catch ( ExecutionException e )
+            {
+                // Reported to the caller waiting on this write
+            }
+        }
+        commit( batch );
+    }
+
+    private void commit( List<PendingWrite> batch ) throws InterruptedException
+    {
+        if ( batch.isEmpty() )
+        {
+            return;
+        }
+        List<PendingWrite> included = new ArrayList<>( batch.size() );
+        List<UserStore.Write> writes = new ArrayList<>( batch.size() );
+        for ( PendingWrite write : batch )
+        {
+            try
+            {
+                writes.add( write.toStoreWrite() );
+                included.add( write );
+            } catch ( ExecutionException e )
+            {
+                write.task.fail( e.getCause() );
+            }
+        }
+        batch.clear();
+
+        UserStore target = store;
+        try
+        {
+            if ( target == null )
+            {
+                throw new IOException( "The user store is no longer in use" );
+            }
+            long start = System.nanoTime();
+            boolean[] expected = target.write( writes );
+            record( UserManagementMetrics.PERSIST, start );
+            for ( int i = 0; i < included.size(); i++ )
+            {
+                included.get( i ).complete( writes.get( i ), expected[i] );
+            }
+        } catch ( IOException | RuntimeException e )
+        {
+            for ( PendingWrite write : included )
+            {
+                write.task.fail( e );
+            }
+        }
+    }
+
+    /**
+     * A result that either runs a write of its own or is completed by the writer thread.
+     */
+    private static class Pending<T> extends FutureTask<T>
+    {
+        // Guarded by callbacks
+        private final List<Runnable> callbacks = new ArrayList<>();
+        private boolean finished;
+
+        Pending( Callable<T> write )
+        {
+            super( write == null ? new Callable<T>()
+            {
+                @Override
+                public T call()
+                {
+                    throw new IllegalStateException( "Completed by the writer" );
+                }
+            } : write );
+        }
+
+        @SuppressWarnings( "unchecked" )
+        void complete( Object result )
+        {
+            set( (T) result );
+        }
+
+        void fail( Throwable cause )
+        {
+            setException( cause );
+        }
+
+        void whenDone( Runnable callback )
+        {
+            synchronized ( callbacks )
+            {
+                if ( !finished )
+                {
+                    callbacks.add( callback );
+                    return;
+                }
+            }
+            run( callback );
+        }
+
+        @Override
+        protected void done()
+        {
+            List<Runnable> ready;
+            synchronized ( callbacks )
+            {
+                finished = true;
+                ready = new ArrayList<>( callbacks );
+                callbacks.clear();
+            }
+            for ( Runnable callback : ready )
+            {
+                run( callback );
+            }
+        }
+
+        private static void run( Runnable callback )
+        {
+            try
+            {
+                callback.run();
+            } catch ( RuntimeException e )
+            {
+                // Never let one caller's bookkeeping get in the way of completing the others
+                logger.warn( "Unable to settle a user write", e );
+            }
+        }
+    }
+
+    /**
+     * A queued user write, with the hash of its password still being computed, or an arbitrary write.
+     */
+    private static class PendingWrite
+    {
+        private final Pending<?> task;
+        private final boolean hashes;
+        private final UserStore.Write.Type type;
+        private final String username;
+        private final Future<Credential> credential;
+        private final boolean requirePasswordChange;
+        // Only touched by the thread applying the write
+        private boolean handedOver;
+
+        PendingWrite( Pending<?> task, boolean hashes )
+        {
+            this.task = task;
+            this.hashes = hashes;
+            this.type = null;
+            this.username = null;
+            this.credential = null;
+            this.requirePasswordChange = false;
+        }
+
+        PendingWrite( UserStore.Write.Type type, String username, Future<Credential> credential,
+                boolean requirePasswordChange )
+        {
+            this.task = new Pending<>( null );
+            this.hashes = false;
+            this.type = type;
+            this.username = username;
+            this.credential = credential;
+            this.requirePasswordChange = requirePasswordChange;
+        }
+
+        UserStore.Write toStoreWrite() throws ExecutionException, InterruptedException
+        {
+            if ( type == UserStore.Write.Type.DELETE )
+            {
+                return UserStore.Write.delete( username );
+            }
+            User user = new User( username, credential.get(), requirePasswordChange );
+            return type == UserStore.Write.Type.CREATE ? UserStore.Write.create( user ) : UserStore.Write.replace( user );
+        }
+
+        /**
+         * Complete the caller as the AuthManager would have: a new user, or an exception if the name was
+         * taken; the changed user, or null if there was none; or whether a user was deleted.
+         */
+        void complete( UserStore.Write write, boolean expected )
+        {
+            if ( type == UserStore.Write.Type.DELETE )
+            {
+                task.complete( expected );
+            } else if ( type == UserStore.Write.Type.CREATE && !expected )
+            {
+                task.fail( new IllegalUsernameException( "The specified user already exists" ) );
+            } else
+            {
+                task.complete( expected ? write.user() : null );
+            }
+        }
+    }
+}
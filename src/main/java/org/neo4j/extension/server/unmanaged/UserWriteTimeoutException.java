@@ -0,0 +1,35 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a queued user mutation has not been applied within the configured timeout.
+ * The mutation may still be applied after the caller has given up on it.
+ *
+ * @author Robin Bramley
+ */
+public class UserWriteTimeoutException extends IOException
+{
+    public UserWriteTimeoutException( long timeoutMillis )
+    {
+        super( String.format( "The user store was not written within %d ms.", timeoutMillis ) );
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An in-memory index of the usernames in the auth store, with whether each must change its password.
+ * It is loaded from the auth file when the server starts and kept up to date by the user management
+ * resources, so that duplicate and unknown users can be turned away without touching the store.
+ * Usernames are kept in order so they can be listed page by page. Names claimed for users still being
+ * created are held apart, so that they are neither listed nor found until the user exists.
+ * <p>
+ * Until it has been loaded the index knows nothing, and callers must fall back to the store.
+ *
+ * @author Robin Bramley
+ */
+class UsernameIndex
+{
+    public static final String PASSWORD_CHANGE_REQUIRED = "password_change_required";
+
+    private final ConcurrentNavigableMap<String, Boolean> users = new ConcurrentSkipListMap<>();
+    private final Set<String> reserved = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+    private volatile boolean loaded;
+
+    /**
+     * Load the index from an auth file, in which each line is <code>username:credentials:flags</code>.
+     * The file is parsed in parallel chunks, and only the names and flags are read.
+     */
+    void load( File authFile ) throws IOException
+    {
+        ParallelLoader.lines( authFile, new ParallelLoader.Handler<String>()
+        {
+            @Override
+            public void handle( String line )
+            {
+                int nameEnd = line.indexOf( ':' );
+                if ( nameEnd > 0 )
+                {
+                    users.putIfAbsent( line.substring( 0, nameEnd ), passwordChangeRequiredIn( line ) );
+                }
+            }
+        } );
+        loaded = true;
+    }
+
+    /**
+     * Load the index from the usernames of a store the extension manages itself.
+     */
+    void load( Map<String, Boolean> usernames )
+    {
+        for ( Map.Entry<String, Boolean> user : usernames.entrySet() )
+        {
+            users.putIfAbsent( user.getKey(), user.getValue() );
+        }
+        loaded = true;
+    }
+
+    /**
+     * @return whether the flags at the end of an auth file line require the user to change their password
+     */
+    static boolean passwordChangeRequiredIn( String line )
+    {
+        return line.indexOf( PASSWORD_CHANGE_REQUIRED, line.lastIndexOf( ':' ) + 1 ) >= 0;
+    }
+
+    /**
+     * Forget everything, so that the index can be loaded again from another store.
+     */
+    void reset()
+    {
+        loaded = false;
+        users.clear();
+    }
+
+    boolean isLoaded()
+    {
+        return loaded;
+    }
+
+    /**
+     * @return true if the index has been loaded and holds the user
+     */
+    boolean contains( String username )
+    {
+        return loaded && users.containsKey( username );
+    }
+
+    /**
+     * @return whether the user must change their password, or null if the index does not hold the user
+     */
+    Boolean passwordChangeRequired( String username )
+    {
+        return users.get( username );
+    }
+
+    /**
+     * @return true if the index has been loaded and does not hold the user
+     */
+    boolean isUnknown( String username )
+    {
+        return loaded && !users.containsKey( username );
+    }
+
+    /**
+     * Claim a username for a user that is about to be created.
+     *
+     * @return false if the index has been loaded and already holds or has claimed the user
+     */
+    boolean reserve( String username )
+    {
+        if ( !loaded )
+        {
+            return true;
+        }
+        if ( !reserved.add( username ) )
+        {
+            return false;
+        }
+        if ( users.containsKey( username ) )
+        {
+            reserved.remove( username );
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Give up a claim made by {@link #reserve(String)} for a user that could not be created.
+     */
+    void release( String username )
+    {
+        reserved.remove( username );
+    }
+
+    /**
+     * Record a user created under a claim made by {@link #reserve(String)}.
+     */
+    void created( String username, boolean passwordChangeRequired )
+    {
+        if ( loaded )
+        {
+            // Held before the claim is given up, so that the name cannot be claimed again in between
+            users.put( username, passwordChangeRequired );
+        }
+        reserved.remove( username );
+    }
+
+    /**
+     * Record a change to whether a user must change their password.
+     */
+    void updated( String username, boolean passwordChangeRequired )
+    {
+        if ( loaded )
+        {
+            users.replace( username, passwordChangeRequired );
+        }
+    }
+
+    /**
+     * Record a user created or replaced from a snapshot or a peer.
+     */
+    void restored( String username, boolean passwordChangeRequired )
+    {
+        if ( loaded )
+        {
+            users.put( username, passwordChangeRequired );
+        }
+    }
+
+    void removed( String username )
+    {
+        if ( loaded )
+        {
+            users.remove( username );
+        }
+    }
+
+    /**
+     * @param after the last username already seen, or null to start from the beginning
+     * @param prefix only list usernames starting with this, or null for all
+     * @return a live, ordered view of the users after the cursor matching the prefix,
+     * which callers stop reading at their page size
+     */
+    Iterable<Map.Entry<String, Boolean>> list( String after, String prefix )
+    {
+        ConcurrentNavigableMap<String, Boolean> view = users;
+        if ( prefix != null && prefix.length() > 0 )
+        {
+            String end = end( prefix );
+            if ( after != null && end != null && after.compareTo( end ) >= 0 )
+            {
+                return Collections.emptyList();
+            }
+            boolean resume = after != null && after.compareTo( prefix ) >= 0;
+            if ( end == null )
+            {
+                view = resume ? users.tailMap( after, false ) : users.tailMap( prefix, true );
+            } else
+            {
+                view = resume ? users.subMap( after, false, end, false ) : users.subMap( prefix, true, end, false );
+            }
+        } else if ( after != null )
+        {
+            view = users.tailMap( after, false );
+        }
+        return view.entrySet();
+    }
+
+    /**
+     * @return the least name after every name with the prefix, which is the prefix without its trailing
+     * {@link Character#MAX_VALUE} characters and with its last character incremented, or null if there is none
+     */
+    private static String end( String prefix )
+    {
+        int last = prefix.length() - 1;
+        while ( last >= 0 && prefix.charAt( last ) == Character.MAX_VALUE )
+        {
+            last--;
+        }
+        return last < 0 ? null : prefix.substring( 0, last ) + (char) (prefix.charAt( last ) + 1);
+    }
+
+    int size()
+    {
+        return users.size();
+    }
+}
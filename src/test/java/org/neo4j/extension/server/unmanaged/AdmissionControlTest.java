@@ -0,0 +1,209 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import org.junit.Test;
+
+import java.security.Principal;
+
+import javax.servlet.http.HttpServletRequest;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test the admission control.
+ * @author Robin Bramley
+ */
+public class AdmissionControlTest
+{
+    private static final Principal NEO4J_PRINCIPLE = new Principal()
+    {
+        @Override
+        public String getName()
+        {
+            return "neo4j";
+        }
+    };
+
+    @Test
+    public void shouldAdmitBurstThenRejectPrincipal() throws Exception
+    {
+        // Given
+        AdmissionControl admission = new AdmissionControl( 0.01, 2, 0, 0, 100 );
+        HttpServletRequest req = request( NEO4J_PRINCIPLE, "10.0.0.1" );
+
+        // When
+        int first = admission.admit( req );
+        int second = admission.admit( req );
+        int third = admission.admit( req );
+
+        // Then
+        assertThat( first, equalTo( 0 ) );
+        assertThat( second, equalTo( 0 ) );
+        assertThat( third, greaterThan( 0 ) );
+    }
+
+    @Test
+    public void shouldLimitEachAddressSeparately() throws Exception
+    {
+        // Given
+        AdmissionControl admission = new AdmissionControl( 0, 0, 0.01, 1, 100 );
+
+        // When
+        int first = admission.admit( request( null, "10.0.0.1" ) );
+        int other = admission.admit( request( null, "10.0.0.2" ) );
+        int again = admission.admit( request( null, "10.0.0.1" ) );
+
+        // Then
+        assertThat( first, equalTo( 0 ) );
+        assertThat( other, equalTo( 0 ) );
+        assertThat( again, greaterThan( 0 ) );
+    }
+
+    @Test
+    public void shouldNotTakeAddressTokenWhenPrincipalIsRefused() throws Exception
+    {
+        // Given
+        AdmissionControl admission = new AdmissionControl( 0.01, 1, 0.01, 2, 100 );
+        Principal other = new Principal()
+        {
+            @Override
+            public String getName()
+            {
+                return "other";
+            }
+        };
+
+        // When
+        int first = admission.admit( request( NEO4J_PRINCIPLE, "10.0.0.1" ) );
+        int refused = admission.admit( request( NEO4J_PRINCIPLE, "10.0.0.1" ) );
+        int otherPrincipal = admission.admit( request( other, "10.0.0.1" ) );
+
+        // Then
+        assertThat( first, equalTo( 0 ) );
+        assertThat( refused, greaterThan( 0 ) );
+        assertThat( otherPrincipal, equalTo( 0 ) );
+    }
+
+    @Test
+    public void shouldForgetLeastRecentlyUsedBucket() throws Exception
+    {
+        // Given
+        AdmissionControl admission = new AdmissionControl( 0, 0, 0.01, 1, 2 );
+        admission.admit( request( null, "10.0.0.1" ) );
+        admission.admit( request( null, "10.0.0.2" ) );
+
+        // When
+        int used = admission.admit( request( null, "10.0.0.1" ) );
+        int third = admission.admit( request( null, "10.0.0.3" ) );
+        int kept = admission.admit( request( null, "10.0.0.1" ) );
+        int forgotten = admission.admit( request( null, "10.0.0.2" ) );
+
+        // Then
+        assertThat( used, greaterThan( 0 ) );
+        assertThat( third, equalTo( 0 ) );
+        assertThat( kept, greaterThan( 0 ) );
+        assertThat( forgotten, equalTo( 0 ) );
+    }
+
+    @Test
+    public void shouldTakeATokenForEachEntry() throws Exception
+    {
+        // Given
+        AdmissionControl admission = new AdmissionControl( 0.01, 3, 0.01, 3, 100 );
+        HttpServletRequest req = request( NEO4J_PRINCIPLE, "10.0.0.1" );
+
+        // When
+        int first = admission.admit( req, 2 );
+        int second = admission.admit( req, 2 );
+        int third = admission.admit( req, 1 );
+
+        // Then
+        assertThat( first, equalTo( 0 ) );
+        assertThat( second, greaterThan( 0 ) );
+        assertThat( third, equalTo( 0 ) );
+    }
+
+    @Test
+    public void shouldAdmitNoMoreEntriesThanTheSmallestBurst() throws Exception
+    {
+        // Given
+        AdmissionControl admission = new AdmissionControl( 0.01, 2, 0.01, 3, 100 );
+        HttpServletRequest req = request( NEO4J_PRINCIPLE, "10.0.0.1" );
+
+        try
+        {
+            // When
+            admission.admit( req, 3 );
+            fail( "Expected more entries than the burst to be refused" );
+        } catch ( IllegalArgumentException e )
+        {
+            // Then the buckets are left as they were
+            assertThat( admission.maxEntries(), equalTo( 2 ) );
+            assertThat( admission.admit( req, 2 ), equalTo( 0 ) );
+        }
+    }
+
+    @Test
+    public void shouldAwaitMoreEntriesThanTheBurstABurstAtATime() throws Exception
+    {
+        // Given
+        AdmissionControl admission = new AdmissionControl( 20, 2, 0, 0, 100 );
+        HttpServletRequest req = request( NEO4J_PRINCIPLE, "10.0.0.1" );
+
+        // When
+        admission.await( req, 4 );
+
+        // Then the bucket was never drawn below empty
+        assertThat( admission.admit( req ), greaterThan( 0 ) );
+        Thread.sleep( 120 );
+        assertThat( admission.admit( req, 2 ), equalTo( 0 ) );
+    }
+
+    @Test
+    public void shouldAdmitEverythingWhenUnlimited() throws Exception
+    {
+        // Given
+        AdmissionControl admission = AdmissionControl.unlimited();
+        HttpServletRequest req = request( NEO4J_PRINCIPLE, "10.0.0.1" );
+
+        // When
+        int admitted = 0;
+        for ( int i = 0; i < 1000; i++ )
+        {
+            admitted += admission.admit( req ) == 0 ? 1 : 0;
+        }
+
+        // Then
+        assertThat( admitted, equalTo( 1000 ) );
+    }
+
+    private static HttpServletRequest request( Principal principal, String address )
+    {
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( principal );
+        when( req.getRemoteAddr() ).thenReturn( address );
+        return req;
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test the audit log.
+ * @author Robin Bramley
+ */
+public class AuditLogTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldWriteRecordsToCompressedFile() throws Exception
+    {
+        // Given
+        File directory = folder.newFolder();
+        AuditLog audit = new AuditLog( directory, 16, true, 1 << 20, 10, true );
+        audit.start();
+
+        // When
+        audit.record( "useradd", "neo4j", "foo", "200", 1500000 );
+        audit.record( "userdel", "neo4j", "bar", "404", 2000 );
+        audit.stop();
+
+        // Then
+        List<String> lines = read( new File( directory, "audit.0.log.gz" ) );
+        assertThat( lines.size(), equalTo( 2 ) );
+        assertThat( lines.get( 0 ), containsString( "\"action\":\"useradd\",\"actor\":\"neo4j\",\"target\":\"foo\"" ) );
+        assertThat( lines.get( 0 ), containsString( "\"latency_micros\":1500" ) );
+        assertThat( lines.get( 1 ), containsString( "\"outcome\":\"404\"" ) );
+    }
+
+    @Test
+    public void shouldDropRecordsWhenBufferIsFull() throws Exception
+    {
+        // Given
+        AuditLog audit = new AuditLog( folder.newFolder(), 2, false, 1 << 20, 10, false );
+
+        // When
+        for ( int i = 0; i < 5; i++ )
+        {
+            audit.record( "useradd", "neo4j", "user" + i, "200", 0 );
+        }
+
+        // Then
+        assertThat( audit.dropped(), equalTo( 3L ) );
+    }
+
+    @Test
+    public void shouldWakeParkedWriterForNextRecord() throws Exception
+    {
+        // Given
+        File directory = folder.newFolder();
+        AuditLog audit = new AuditLog( directory, 16, true, 1 << 20, 10, false );
+        audit.start();
+        Thread.sleep( 50 );
+
+        // When
+        audit.record( "useradd", "neo4j", "foo", "200", 0 );
+
+        // Then
+        File file = new File( directory, "audit.0.log" );
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( ( !file.exists() || read( file ).isEmpty() ) && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+        assertThat( read( file ).size(), equalTo( 1 ) );
+        audit.stop();
+    }
+
+    @Test
+    public void shouldKeepOnlyTheMostRecentFiles() throws Exception
+    {
+        // Given
+        File directory = folder.newFolder();
+
+        // When
+        for ( int i = 0; i < 3; i++ )
+        {
+            AuditLog audit = new AuditLog( directory, 16, true, 1 << 20, 2, false );
+            audit.start();
+            audit.record( "useradd", "neo4j", "user" + i, "200", 0 );
+            audit.stop();
+        }
+
+        // Then
+        assertThat( new File( directory, "audit.0.log" ).exists(), equalTo( false ) );
+        assertThat( read( new File( directory, "audit.2.log" ) ).get( 0 ), containsString( "user2" ) );
+        assertThat( directory.list().length, equalTo( 2 ) );
+    }
+
+    private static List<String> read( File file ) throws Exception
+    {
+        List<String> lines = new ArrayList<>();
+        FileInputStream in = new FileInputStream( file );
+        try ( BufferedReader reader = new BufferedReader( new InputStreamReader(
+                file.getName().endsWith( ".gz" ) ? new GZIPInputStream( in ) : in, "UTF-8" ) ) )
+        {
+            String line;
+            while ( (line = reader.readLine()) != null )
+            {
+                lines.add( line );
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.neo4j.helpers.Clock;
+import org.neo4j.kernel.logging.DevNullLoggingService;
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.FileUserRepository;
+import org.neo4j.server.security.auth.User;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the auth file user store.
+ * @author Robin Bramley
+ */
+public class AuthFileUserStoreTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldApplyGroupOfWritesInOneRewriteTheServerCanRead() throws Throwable
+    {
+        // Given
+        File authFile = new File( folder.newFolder(), "auth" );
+        AuthFileUserStore users = new AuthFileUserStore( authFile );
+        users.start();
+        users.create( new User( "foo", Credential.forPassword( "bar" ), false ) );
+
+        // When
+        boolean[] expected = users.write( Arrays.asList(
+                UserStore.Write.create( new User( "baz", Credential.forPassword( "qux" ), true ) ),
+                UserStore.Write.create( new User( "foo", Credential.forPassword( "other" ), false ) ),
+                UserStore.Write.replace( new User( "ghost", Credential.forPassword( "boo" ), false ) ),
+                UserStore.Write.delete( "foo" ) ) );
+
+        // Then
+        assertTrue( expected[0] );
+        assertFalse( expected[1] );
+        assertFalse( expected[2] );
+        assertTrue( expected[3] );
+        FileUserRepository server = new FileUserRepository( authFile.toPath(), new DevNullLoggingService() );
+        server.start();
+        assertThat( server.numberOfUsers(), equalTo( 1 ) );
+        assertThat( server.findByName( "foo" ), nullValue() );
+        assertTrue( server.findByName( "baz" ).credentials().matchesPassword( "qux" ) );
+        assertTrue( server.findByName( "baz" ).passwordChangeRequired() );
+        assertFalse( new File( authFile.getParentFile(), "auth.tmp" ).exists() );
+        server.stop();
+        users.stop();
+    }
+
+    @Test
+    public void shouldIndexAndLogPasswordChangeMadeByTheServer() throws Throwable
+    {
+        // Given
+        File authFile = new File( folder.newFolder(), "auth" );
+        AuthFileUserStore store = new AuthFileUserStore( authFile );
+        UserManagementContext context = new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex(),
+                store );
+        store.start();
+        store.putAll( Arrays.asList( new User( "foo", Credential.forPassword( "bar" ), true ) ) );
+        context.loadIndex( authFile );
+        AuthManager server = new AuthManager( store, Clock.SYSTEM_CLOCK, true );
+
+        // When
+        server.setPassword( "foo", "baz" );
+
+        // Then
+        assertThat( context.users().passwordChangeRequired( "foo" ), equalTo( false ) );
+        List<UserChangeLog.Change> changes = context.changes().since( 0, 10, 0 );
+        assertThat( changes.size(), equalTo( 1 ) );
+        assertThat( changes.get( 0 ).type, equalTo( UserChangeLog.UPDATED ) );
+        assertTrue( changes.get( 0 ).user.credentials().matchesPassword( "baz" ) );
+        store.stop();
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Map;
+
+import org.neo4j.helpers.Clock;
+import org.neo4j.kernel.logging.DevNullLoggingService;
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.FileUserRepository;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.server.security.auth.exception.ConcurrentModificationException;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the journal backed user repository.
+ * @author Robin Bramley
+ */
+public class JournalUserRepositoryTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldRecoverUsersByReplayingJournal() throws Throwable
+    {
+        // Given
+        File directory = folder.newFolder();
+        JournalUserRepository users = new JournalUserRepository( directory, 1000 );
+        users.start();
+        users.create( new User( "foo", Credential.forPassword( "bar" ), true ) );
+        users.create( new User( "baz", Credential.forPassword( "qux" ), false ) );
+        users.delete( users.findByName( "baz" ) );
+        users.stop();
+
+        // When
+        JournalUserRepository recovered = new JournalUserRepository( directory, 1000 );
+        recovered.start();
+
+        // Then
+        assertThat( recovered.numberOfUsers(), equalTo( 1 ) );
+        assertTrue( recovered.findByName( "foo" ).credentials().matchesPassword( "bar" ) );
+        assertTrue( recovered.findByName( "foo" ).passwordChangeRequired() );
+        assertThat( recovered.findByName( "baz" ), nullValue() );
+        recovered.stop();
+    }
+
+    @Test
+    public void shouldRefuseToUpdateAUserChangedSinceItWasRead() throws Throwable
+    {
+        // Given
+        JournalUserRepository users = new JournalUserRepository( folder.newFolder(), 1000 );
+        users.start();
+        users.create( new User( "foo", Credential.forPassword( "bar" ), true ) );
+        User read = users.findByName( "foo" );
+        users.update( read, new User( "foo", Credential.forPassword( "baz" ), false ) );
+
+        try
+        {
+            // When
+            users.update( read, new User( "foo", Credential.forPassword( "qux" ), false ) );
+            fail( "Expected an update of a stale user to be refused" );
+        } catch ( ConcurrentModificationException e )
+        {
+            // Then the server's AuthManager, which retries on this exception, would read the user again
+            assertTrue( users.findByName( "foo" ).credentials().matchesPassword( "baz" ) );
+        }
+        users.stop();
+    }
+
+    @Test
+    public void shouldBeSeededFromAuthFileAndAuthenticatedAgainstByServer() throws Throwable
+    {
+        // Given
+        File authFile = new File( folder.newFolder(), "auth" );
+        AuthManager server = new AuthManager( new FileUserRepository( authFile.toPath(), new DevNullLoggingService() ),
+                Clock.SYSTEM_CLOCK, true );
+        server.start();
+        server.newUser( "foo", "bar", false );
+        JournalUserRepository store = new JournalUserRepository( folder.newFolder(), 1000 );
+        UserManagementContext context = new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex(), store );
+        context.start();
+        context.loadIndex( authFile );
+
+        // When
+        context.authManager( server ).newUser( "baz", "qux", false );
+
+        // Then
+        assertTrue( store.findByName( "foo" ).credentials().matchesPassword( "bar" ) );
+        assertTrue( store.findByName( "baz" ).credentials().matchesPassword( "qux" ) );
+        assertThat( store.numberOfUsers(), equalTo( 3 ) );
+        assertTrue( context.users().contains( "foo" ) );
+        server.stop();
+        context.stop();
+    }
+
+    @Test
+    public void shouldRecoverFromSnapshotAfterCompaction() throws Throwable
+    {
+        // Given
+        File directory = folder.newFolder();
+        JournalUserRepository users = new JournalUserRepository( directory, 1000 );
+        users.start();
+        users.create( new User( "foo", Credential.forPassword( "bar" ), true ) );
+        users.compact();
+        users.create( new User( "baz", Credential.forPassword( "qux" ), false ) );
+        users.stop();
+
+        // When
+        JournalUserRepository recovered = new JournalUserRepository( directory, 1000 );
+        recovered.start();
+
+        // Then
+        assertTrue( new File( directory, JournalUserRepository.SNAPSHOT ).exists() );
+        assertThat( recovered.numberOfUsers(), equalTo( 2 ) );
+        assertTrue( recovered.findByName( "baz" ).credentials().matchesPassword( "qux" ) );
+        recovered.stop();
+    }
+
+    @Test
+    public void shouldIgnoreTornRecordAtEndOfJournal() throws Throwable
+    {
+        // Given
+        File directory = folder.newFolder();
+        JournalUserRepository users = new JournalUserRepository( directory, 1000 );
+        users.start();
+        users.create( new User( "foo", Credential.forPassword( "bar" ), true ) );
+        users.stop();
+        try ( FileOutputStream out = new FileOutputStream( new File( directory, JournalUserRepository.JOURNAL + 0 ), true ) )
+        {
+            out.write( "+baz:SHA-256,AB".getBytes( "UTF-8" ) );
+        }
+
+        // When
+        JournalUserRepository recovered = new JournalUserRepository( directory, 1000 );
+        recovered.start();
+        recovered.create( new User( "qux", Credential.forPassword( "bar" ), true ) );
+        recovered.stop();
+        JournalUserRepository again = new JournalUserRepository( directory, 1000 );
+        again.start();
+
+        // Then
+        assertThat( again.numberOfUsers(), equalTo( 2 ) );
+        assertThat( again.findByName( "baz" ), nullValue() );
+        again.stop();
+    }
+
+    @Test
+    public void shouldRefuseToStartWithCorruptRecordInsideJournal() throws Throwable
+    {
+        // Given
+        File directory = folder.newFolder();
+        JournalUserRepository users = new JournalUserRepository( directory, 1000 );
+        users.start();
+        users.create( new User( "foo", Credential.forPassword( "bar" ), true ) );
+        users.create( new User( "baz", Credential.forPassword( "bar" ), true ) );
+        users.create( new User( "qux", Credential.forPassword( "bar" ), true ) );
+        users.stop();
+        File journal = new File( directory, JournalUserRepository.JOURNAL + 0 );
+        byte[] bytes = Files.readAllBytes( journal.toPath() );
+        int second = new String( bytes, "UTF-8" ).indexOf( "+baz" );
+        bytes[second + 1] = 'B';
+        Files.write( journal.toPath(), bytes );
+
+        try
+        {
+            // When
+            new JournalUserRepository( directory, 1000 ).start();
+            fail( "Expected a journal corrupt before its last record to be refused" );
+        } catch ( IOException e )
+        {
+            // Then
+            assertThat( e.getMessage(), containsString( "Record 2" ) );
+            assertThat( journal.length(), equalTo( (long) bytes.length ) );
+        }
+    }
+
+    @Test
+    public void shouldRefuseRecordWhoseCredentialIsNotHexadecimal() throws Throwable
+    {
+        try
+        {
+            // When
+            JournalUserRepository.deserialize( "foo:SHA-256,XYZ1,AB01:" );
+            fail( "Expected a credential that is not hexadecimal to be refused" );
+        } catch ( IOException e )
+        {
+            // Then
+            assertThat( e.getMessage(), containsString( "foo" ) );
+        }
+    }
+
+    @Test
+    public void shouldKnowUsernamesFromLargeSnapshotAndLoadCredentialsInBackground() throws Throwable
+    {
+        // Given
+        File directory = folder.newFolder();
+        int count = 60000;
+        try ( Writer out = new OutputStreamWriter( new FileOutputStream( new File( directory, JournalUserRepository.SNAPSHOT ) ),
+                "UTF-8" ) )
+        {
+            out.write( "# generation 0\n" );
+            for ( int i = 0; i < count; i++ )
+            {
+                out.write( "user" + i + ":SHA-256,AB,CD:" + (i % 2 == 0 ? "password_change_required" : "") + "\n" );
+            }
+        }
+
+        // When
+        JournalUserRepository users = new JournalUserRepository( directory, 1000000 );
+        users.start();
+        Map<String, Boolean> usernames = users.usernames();
+
+        // Then
+        assertThat( usernames.size(), equalTo( count ) );
+        assertTrue( usernames.get( "user0" ) );
+        assertThat( usernames.get( "user1" ), equalTo( false ) );
+        assertThat( users.findByName( "user59999" ).passwordChangeRequired(), equalTo( false ) );
+        assertThat( users.numberOfUsers(), equalTo( count ) );
+        users.stop();
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.User;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the memory-mapped user store.
+ * @author Robin Bramley
+ */
+public class MappedUserStoreTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldInsertTombstoneAndReopenInPlace() throws Throwable
+    {
+        // Given
+        File directory = folder.newFolder();
+        MappedUserStore users = new MappedUserStore( directory, 16 );
+        users.start();
+
+        // When
+        for ( int i = 0; i < 100; i++ )
+        {
+            users.create( new User( "user" + i, Credential.forPassword( "secret" + i ), i % 2 == 0 ) );
+        }
+        for ( int i = 0; i < 100; i += 3 )
+        {
+            users.delete( users.findByName( "user" + i ) );
+        }
+        users.create( new User( "user0", Credential.forPassword( "again" ), false ) );
+        users.stop();
+
+        MappedUserStore reopened = new MappedUserStore( directory, 16 );
+        reopened.start();
+
+        // Then
+        assertThat( reopened.numberOfUsers(), equalTo( 100 - 34 + 1 ) );
+        assertThat( reopened.findByName( "user3" ), nullValue() );
+        assertTrue( reopened.findByName( "user0" ).credentials().matchesPassword( "again" ) );
+        assertTrue( reopened.findByName( "user4" ).credentials().matchesPassword( "secret4" ) );
+        assertTrue( reopened.findByName( "user4" ).passwordChangeRequired() );
+        int listed = 0;
+        for ( User ignored : reopened.users() )
+        {
+            listed++;
+        }
+        assertThat( listed, equalTo( 67 ) );
+        reopened.stop();
+    }
+
+    @Test
+    public void shouldReplaceExistingUsersTogether() throws Throwable
+    {
+        // Given
+        MappedUserStore users = new MappedUserStore( folder.newFolder(), 16 );
+        users.start();
+        users.create( new User( "foo", Credential.forPassword( "old" ), false ) );
+
+        // When
+        Set<String> missing = users.replaceAll( Arrays.asList(
+                new User( "foo", Credential.forPassword( "new" ), true ),
+                new User( "ghost", Credential.forPassword( "new" ), true ) ) );
+
+        // Then
+        assertThat( missing, equalTo( Collections.singleton( "ghost" ) ) );
+        assertTrue( users.findByName( "foo" ).credentials().matchesPassword( "new" ) );
+        assertTrue( users.findByName( "foo" ).passwordChangeRequired() );
+        assertThat( users.findByName( "ghost" ), nullValue() );
+        users.stop();
+    }
+
+    @Test
+    public void shouldExportEveryUserOnceWhileTableGrows() throws Throwable
+    {
+        // Given
+        MappedUserStore users = new MappedUserStore( folder.newFolder(), 16 );
+        users.start();
+        for ( int i = 0; i < 10; i++ )
+        {
+            users.create( new User( "user" + i, Credential.forPassword( "secret" ), false ) );
+        }
+        Iterator<User> snapshot = users.snapshot().iterator();
+        Set<String> exported = new HashSet<>();
+        exported.add( snapshot.next().name() );
+
+        // When
+        for ( int i = 10; i < 100; i++ )
+        {
+            users.create( new User( "user" + i, Credential.forPassword( "secret" ), false ) );
+        }
+        int count = 1;
+        while ( snapshot.hasNext() )
+        {
+            exported.add( snapshot.next().name() );
+            count++;
+        }
+
+        // Then
+        assertThat( count, equalTo( 10 ) );
+        assertThat( exported.size(), equalTo( 10 ) );
+        users.stop();
+    }
+
+    @Test
+    public void shouldExportUsersAsTheyWereWhenExportBegan() throws Throwable
+    {
+        // Given
+        MappedUserStore users = new MappedUserStore( folder.newFolder(), 64 );
+        users.start();
+        for ( int i = 0; i < 10; i++ )
+        {
+            users.create( new User( "user" + i, Credential.forPassword( "secret" ), false ) );
+        }
+        Iterator<User> snapshot = users.snapshot().iterator();
+
+        // When
+        Map<String, User> exported = new HashMap<>();
+        User first = snapshot.next();
+        exported.put( first.name(), first );
+        for ( int i = 0; i < 10; i++ )
+        {
+            User user = users.findByName( "user" + i );
+            if ( i % 2 == 0 )
+            {
+                users.delete( user );
+            } else
+            {
+                users.update( user, new User( user.name(), Credential.forPassword( "changed" ), true ) );
+            }
+        }
+        users.create( new User( "late", Credential.forPassword( "secret" ), false ) );
+        while ( snapshot.hasNext() )
+        {
+            User user = snapshot.next();
+            exported.put( user.name(), user );
+        }
+
+        // Then
+        assertThat( exported.size(), equalTo( 10 ) );
+        for ( User user : exported.values() )
+        {
+            assertTrue( user.credentials().matchesPassword( "secret" ) );
+            assertThat( user.passwordChangeRequired(), equalTo( false ) );
+        }
+        assertThat( users.numberOfUsers(), equalTo( 6 ) );
+        users.stop();
+    }
+
+    @Test
+    public void shouldRefuseGroupWithNameLongerThanASlot() throws Throwable
+    {
+        // Given
+        MappedUserStore users = new MappedUserStore( folder.newFolder(), 16 );
+        users.start();
+        StringBuilder name = new StringBuilder();
+        for ( int i = 0; i < 200; i++ )
+        {
+            name.append( 'x' );
+        }
+
+        // When
+        try
+        {
+            users.putAll( Arrays.asList( new User( "foo", Credential.forPassword( "bar" ), false ),
+                    new User( name.toString(), Credential.forPassword( "bar" ), false ) ) );
+            fail( "Expected the name to be refused" );
+        } catch ( IOException e )
+        {
+            // Expected
+        }
+
+        // Then
+        assertThat( users.numberOfUsers(), equalTo( 0 ) );
+        assertThat( users.findByName( "foo" ), nullValue() );
+        users.stop();
+    }
+
+    @Test
+    public void shouldRecountUsersOnOpen() throws Throwable
+    {
+        // Given
+        File directory = folder.newFolder();
+        MappedUserStore users = new MappedUserStore( directory, 16 );
+        users.start();
+        for ( int i = 0; i < 10; i++ )
+        {
+            users.create( new User( "user" + i, Credential.forPassword( "secret" ), false ) );
+        }
+        users.stop();
+        try ( RandomAccessFile raf = new RandomAccessFile( new File( directory, MappedUserStore.FILE ), "rw" ) )
+        {
+            // As if the counts had not been written before a crash
+            raf.seek( 8 );
+            raf.writeInt( 0 );
+        }
+
+        // When
+        MappedUserStore reopened = new MappedUserStore( directory, 16 );
+        reopened.start();
+
+        // Then
+        assertThat( reopened.numberOfUsers(), equalTo( 10 ) );
+        for ( int i = 10; i < 20; i++ )
+        {
+            reopened.create( new User( "user" + i, Credential.forPassword( "secret" ), false ) );
+        }
+        assertThat( reopened.numberOfUsers(), equalTo( 20 ) );
+        assertTrue( reopened.findByName( "user19" ).credentials().matchesPassword( "secret" ) );
+        reopened.stop();
+    }
+}
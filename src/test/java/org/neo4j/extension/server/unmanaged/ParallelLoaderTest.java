@@ -0,0 +1,107 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the parallel loader.
+ * @author Robin Bramley
+ */
+public class ParallelLoaderTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldHandEveryLineOnceAcrossChunks() throws Exception
+    {
+        // Given
+        File file = folder.newFile();
+        int count = 0;
+        try ( Writer out = new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" ) )
+        {
+            // Enough lines of varying length for several chunks, with boundaries falling mid-line
+            while ( count * 40L < 3L * ParallelLoader.CHUNK_BYTES )
+            {
+                out.write( "line" + count + ":" + new String( new char[count % 50] ).replace( '\0', 'x' ) + "\n" );
+                count++;
+            }
+            out.write( "last line without a break" );
+        }
+        final Set<String> lines = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+
+        // When
+        ParallelLoader.lines( file, new ParallelLoader.Handler<String>()
+        {
+            @Override
+            public void handle( String line )
+            {
+                assertTrue( lines.add( line ) );
+            }
+        } );
+
+        // Then
+        assertThat( lines.size(), equalTo( count + 1 ) );
+        assertTrue( lines.contains( "line0:" ) );
+        assertTrue( lines.contains( "last line without a break" ) );
+    }
+
+    @Test
+    public void shouldReportFailureOfHandler() throws Exception
+    {
+        try
+        {
+            // When
+            ParallelLoader.each( Arrays.asList( "a", "b", "c" ), new ParallelLoader.Handler<String>()
+            {
+                @Override
+                public void handle( String item ) throws IOException
+                {
+                    if ( item.equals( "b" ) )
+                    {
+                        throw new IOException( "Malformed " + item );
+                    }
+                }
+            } );
+            fail( "Expected the failure to be reported" );
+        } catch ( IOException e )
+        {
+            // Then
+            assertThat( e.getMessage(), equalTo( "Malformed b" ) );
+        }
+    }
+}
@@ -20,11 +20,19 @@ package org.neo4j.extension.server.unmanaged;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.SequenceInputStream;
 import java.net.URI;
 import java.security.Principal;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.neo4j.server.rest.repr.BadInputException;
 import org.neo4j.server.rest.repr.InputFormat;
@@ -38,10 +46,20 @@ import org.neo4j.test.server.EntityOutputFormat;
 
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.anyBoolean;
+import static org.mockito.Mockito.anyList;
 import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
@@ -249,4 +267,557 @@ public class UserAddServiceTest
         assertThat( json, containsString( "\"code\" : \"Neo.ClientError.Request.Invalid\"" ) );
         assertThat( json, containsString( "\"message\" : \"The specified user already exists\"" ) );
     }
+
+    @Test
+    public void shouldCreateBatchOfUsersAndReportPerUserResults() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.newUser( "foo", "bar", true ) ).thenReturn( FOO_USER );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat );
+
+        // When
+        Response response = userAddService.createUsers( req,
+                "[ { \"username\" : \"foo\", \"password\" : \"bar\" }, " +
+                "{ \"username\" : \"baz\", \"password\" : \"\" }, " +
+                "{ \"username\" : \"foo\", \"password\" : \"qux\" } ]" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 200 ) );
+        String json = new String( (byte[]) response.getEntity() );
+        assertThat( json, containsString( "\"status\" : \"created\"" ) );
+        assertThat( json, containsString( "\"status\" : \"invalid\"" ) );
+        assertThat( json, containsString( "\"status\" : \"duplicate\"" ) );
+        verify( authManager ).newUser( "foo", "bar", true );
+        verifyNoMoreInteractions( authManager );
+    }
+
+    @Test
+    public void shouldCreateBatchLargerThanHashingCapacity() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.newUser( anyString(), anyString(), anyBoolean() ) ).thenReturn( FOO_USER );
+
+        UserWriteCoalescer writes = UserWriteCoalescer.grouping( 1, 1, PasswordHashingExecutor.bounded( 1, 1, 1 ), 0 );
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat,
+                new UserManagementContext( writes, new UsernameIndex() ) );
+
+        // When
+        Response response = userAddService.createUsers( req,
+                "[ { \"username\" : \"a\", \"password\" : \"bar\" }, { \"username\" : \"b\", \"password\" : \"bar\" }, " +
+                "{ \"username\" : \"c\", \"password\" : \"bar\" }, { \"username\" : \"d\", \"password\" : \"bar\" }, " +
+                "{ \"username\" : \"e\", \"password\" : \"bar\" } ]" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 200 ) );
+        String json = new String( (byte[]) response.getEntity() );
+        assertThat( json.split( "\"status\" : \"created\"", -1 ).length - 1, equalTo( 5 ) );
+        verify( authManager, times( 5 ) ).newUser( anyString(), anyString(), anyBoolean() );
+        writes.stop();
+    }
+
+    @Test
+    public void shouldReturn422IfBatchIsNotAList() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat );
+
+        // When
+        Response response = userAddService.createUsers( req, "{ \"username\" : \"foo\" }" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 422 ) );
+        verifyZeroInteractions( authManager );
+    }
+
+    @Test
+    public void shouldReturn400IfBatchIsNotJson() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat );
+
+        // When
+        Response response = userAddService.createUsers( req, "[ { \"username\" : " );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 400 ) );
+        verifyZeroInteractions( authManager );
+    }
+
+    @Test
+    public void shouldStreamResultsWhenImportingUsers() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.newUser( "foo", "bar", true ) ).thenReturn( FOO_USER );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat );
+        String ndjson = "{ \"username\" : \"foo\", \"password\" : \"bar\" }\n" +
+                "not json\n";
+
+        // When
+        Response response = userAddService.importUsers( req, new ByteArrayInputStream( ndjson.getBytes( "UTF-8" ) ) );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write( out );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 200 ) );
+        String[] lines = out.toString( "UTF-8" ).split( "\n" );
+        assertThat( lines.length, equalTo( 2 ) );
+        assertThat( lines[0], containsString( "\"status\":\"created\"" ) );
+        assertThat( lines[1], containsString( "\"status\":\"invalid\"" ) );
+        assertThat( lines[1], containsString( "\"line\":2" ) );
+        verify( authManager ).newUser( "foo", "bar", true );
+    }
+
+    @Test
+    public void shouldReportLineTooLongToImportAndCarryOn() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.newUser( "foo", "bar", true ) ).thenReturn( FOO_USER );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat,
+                UserManagementContext.inline() );
+        StringBuilder ndjson = new StringBuilder( "{ \"username\" : \"" );
+        for ( int i = 0; i < UserImport.MAX_LINE_LENGTH; i++ )
+        {
+            ndjson.append( 'x' );
+        }
+        ndjson.append( "\", \"password\" : \"bar\" }\r\n{ \"username\" : \"foo\", \"password\" : \"bar\" }\r\n" );
+
+        // When
+        Response response = userAddService.importUsers( req,
+                new ByteArrayInputStream( ndjson.toString().getBytes( "UTF-8" ) ) );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write( out );
+
+        // Then
+        String[] lines = out.toString( "UTF-8" ).split( "\n" );
+        assertThat( lines.length, equalTo( 2 ) );
+        assertThat( lines[0], containsString( "\"status\":\"invalid\"" ) );
+        assertThat( lines[0], containsString( "longer than" ) );
+        assertThat( lines[1], containsString( "\"status\":\"created\"" ) );
+        assertThat( lines[1], containsString( "\"line\":2" ) );
+        verify( authManager ).newUser( "foo", "bar", true );
+    }
+
+    @Test
+    public void shouldReleaseClaimedNamesWhenImportBreaksOff() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+        UsernameIndex users = new UsernameIndex();
+        users.load( authFile( "neo4j:SHA-256,AB,CD:" ) );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat,
+                new UserManagementContext( UserWriteCoalescer.inline(), users ) );
+        InputStream broken = new SequenceInputStream(
+                new ByteArrayInputStream( "{ \"username\" : \"foo\", \"password\" : \"bar\" }\n".getBytes( "UTF-8" ) ),
+                new InputStream()
+                {
+                    @Override
+                    public int read() throws IOException
+                    {
+                        throw new IOException( "Connection reset" );
+                    }
+                } );
+
+        // When
+        Response response = userAddService.importUsers( req, broken );
+        try
+        {
+            ((StreamingOutput) response.getEntity()).write( new ByteArrayOutputStream() );
+            fail( "Expected the import to break off" );
+        } catch ( IOException e )
+        {
+            // Expected
+        }
+
+        // Then
+        assertFalse( users.contains( "foo" ) );
+        assertTrue( users.reserve( "foo" ) );
+        verifyZeroInteractions( authManager );
+    }
+
+    @Test
+    public void shouldReturn503WithRetryAfterIfHashingQueueIsFull() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+
+        UserWriteCoalescer writes = UserWriteCoalescer.grouping( 1, 1, PasswordHashingExecutor.bounded( 1, 0, 7 ), 0 );
+        writes.reserve( 1, false );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat,
+                new UserManagementContext( writes, new UsernameIndex() ) );
+
+        // When
+        Response response = userAddService.createUser( "foo", req, "{ \"password\" : \"bar\" }" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 503 ) );
+        assertThat( response.getMetadata().getFirst( "Retry-After" ).toString(), equalTo( "7" ) );
+        verifyZeroInteractions( authManager );
+    }
+
+    @Test
+    public void shouldReturn409WithoutHashingIfUserIsIndexed() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+
+        UsernameIndex users = new UsernameIndex();
+        users.load( authFile( "foo:SHA-256,AB,CD:password_change_required" ) );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat,
+                new UserManagementContext( UserWriteCoalescer.inline(), users ) );
+
+        // When
+        Response response = userAddService.createUser( "foo", req, "{ \"password\" : \"bar\" }" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 409 ) );
+        String json = new String( (byte[]) response.getEntity() );
+        assertThat( json, containsString( "\"message\" : \"The specified user already exists\"" ) );
+        verifyZeroInteractions( authManager );
+    }
+
+    @Test
+    public void shouldReturnOriginalResponseWhenRetriedWithSameIdempotencyKey() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+        when( req.getHeader( IdempotencyCache.IDEMPOTENCY_KEY ) ).thenReturn( "retry-1" );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.newUser( "foo", "bar", true ) ).thenReturn( FOO_USER );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat,
+                UserManagementContext.inline() );
+
+        // When
+        Response first = userAddService.createUser( "foo", req, "{ \"password\" : \"bar\" }" );
+        Response retry = userAddService.createUser( "foo", req, "{ \"password\" : \"bar\" }" );
+
+        // Then
+        assertThat( first.getStatus(), equalTo( 200 ) );
+        assertThat( retry.getStatus(), equalTo( 200 ) );
+        verify( authManager ).newUser( "foo", "bar", true );
+        verifyNoMoreInteractions( authManager );
+    }
+
+    @Test
+    public void shouldShareOneContextBetweenResourcesCreatedWithoutOne() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+        when( req.getHeader( IdempotencyCache.IDEMPOTENCY_KEY ) ).thenReturn( "shared-context" );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.newUser( "foo", "bar", true ) ).thenReturn( FOO_USER );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+
+        // When
+        Response first = new UserAddService( authManager, new JsonFormat(), outputFormat )
+                .createUser( "foo", req, "{ \"password\" : \"bar\" }" );
+        Response retry = new UserAddService( authManager, new JsonFormat(), outputFormat )
+                .createUser( "foo", req, "{ \"password\" : \"bar\" }" );
+
+        // Then
+        assertThat( first.getStatus(), equalTo( 200 ) );
+        assertThat( retry.getStatus(), equalTo( 200 ) );
+        verify( authManager ).newUser( "foo", "bar", true );
+        verifyNoMoreInteractions( authManager );
+    }
+
+    @Test
+    public void shouldReturn422WhenIdempotencyKeyIsReusedWithDifferentPayload() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+        when( req.getHeader( IdempotencyCache.IDEMPOTENCY_KEY ) ).thenReturn( "retry-1" );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.newUser( "foo", "bar", true ) ).thenReturn( FOO_USER );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat,
+                UserManagementContext.inline() );
+
+        // When
+        Response first = userAddService.createUser( "foo", req, "{ \"password\" : \"bar\" }" );
+        Response reused = userAddService.createUser( "foo", req, "{ \"password\" : \"baz\" }" );
+        Response retry = userAddService.createUser( "foo", req, "{ \"password\" : \"bar\" }" );
+
+        // Then
+        assertThat( first.getStatus(), equalTo( 200 ) );
+        assertThat( reused.getStatus(), equalTo( 422 ) );
+        assertThat( retry.getStatus(), equalTo( 200 ) );
+        assertThat( retry, not( sameInstance( first ) ) );
+        verify( authManager ).newUser( "foo", "bar", true );
+        verifyNoMoreInteractions( authManager );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void shouldReturnSettledResponseWhenTimedOutCreateIsRetried() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+        when( req.getHeader( IdempotencyCache.IDEMPOTENCY_KEY ) ).thenReturn( "retry-1" );
+
+        AuthManager authManager = mock( AuthManager.class );
+        UserStore store = mock( UserStore.class );
+        when( store.isValidName( anyString() ) ).thenReturn( true );
+        when( store.write( anyList() ) ).thenReturn( new boolean[]{ true } );
+
+        // A group window far longer than the timeout keeps the user queued
+        UserWriteCoalescer writes = UserWriteCoalescer.grouping( 500, 2, PasswordHashingExecutor.inline(), 50 );
+        UserManagementContext context = new UserManagementContext( writes, new UsernameIndex(), store );
+        context.loadIndex( null );
+        writes.start();
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat, context );
+
+        // When
+        Response first = userAddService.createUser( "foo", req, "{ \"password\" : \"bar\" }" );
+        // Until the write is settled a retry gets the original 503 without running again
+        Response retry = first;
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( retry.getStatus() == 503 && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+            retry = userAddService.createUser( "foo", req, "{ \"password\" : \"bar\" }" );
+        }
+
+        // Then
+        assertThat( first.getStatus(), equalTo( 503 ) );
+        assertThat( retry.getStatus(), equalTo( 200 ) );
+        verify( store, times( 1 ) ).write( anyList() );
+        writes.stop();
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void shouldCreateBatchInOneStoreWriteAndAnswerRetryWithOriginalResults() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+        when( req.getHeader( IdempotencyCache.IDEMPOTENCY_KEY ) ).thenReturn( "batch-1" );
+
+        AuthManager authManager = mock( AuthManager.class );
+        UserStore store = mock( UserStore.class );
+        when( store.isValidName( anyString() ) ).thenReturn( true );
+        when( store.write( anyList() ) ).thenReturn( new boolean[]{ true, true, true } );
+
+        // Less hashing capacity than the batch, which is still written all at once
+        UserWriteCoalescer writes = UserWriteCoalescer.grouping( 1, 2, PasswordHashingExecutor.bounded( 1, 1, 1 ), 5000 );
+        UserManagementContext context = new UserManagementContext( writes, new UsernameIndex(), store );
+        context.loadIndex( null );
+        writes.start();
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat, context );
+        String payload = "[ { \"username\" : \"a\", \"password\" : \"bar\" }, " +
+                "{ \"username\" : \"b\", \"password\" : \"bar\" }, { \"username\" : \"c\", \"password\" : \"bar\" } ]";
+
+        // When
+        Response first = userAddService.createUsers( req, payload );
+        Response retry = userAddService.createUsers( req, payload );
+
+        // Then
+        assertThat( first.getStatus(), equalTo( 200 ) );
+        assertThat( retry.getStatus(), equalTo( 200 ) );
+        String json = new String( (byte[]) retry.getEntity() );
+        assertThat( json.split( "\"status\" : \"created\"", -1 ).length - 1, equalTo( 3 ) );
+        verify( store, times( 1 ) ).write( anyList() );
+        verifyZeroInteractions( authManager );
+        writes.stop();
+    }
+
+    @Test
+    public void shouldReturn429WithRetryAfterWithoutHashingWhenRateLimited() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.newUser( "foo", "bar", true ) ).thenReturn( FOO_USER );
+
+        UserManagementContext context = new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex(),
+                null, new IdempotencyCache( 10, 1000 ), new AdmissionControl( 0.01, 1, 0, 0, 10 ),
+                AuditLog.disabled(), new UserChangeLog( 10 ), new UserLocks( 16 ),
+                UserReplicator.disabled() );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat, context );
+
+        // When
+        Response first = userAddService.createUser( "foo", req, "{ \"password\" : \"bar\" }" );
+        Response second = userAddService.createUser( "baz", req, "{ \"password\" : \"bar\" }" );
+
+        // Then
+        assertThat( first.getStatus(), equalTo( 200 ) );
+        assertThat( second.getStatus(), equalTo( 429 ) );
+        assertNotNull( second.getMetadata().getFirst( UserAddService.RETRY_AFTER ) );
+        verify( authManager ).newUser( "foo", "bar", true );
+        verifyNoMoreInteractions( authManager );
+    }
+
+    @Test
+    public void shouldTakeAnAdmissionTokenForEachEntryOfABatch() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.newUser( anyString(), anyString(), anyBoolean() ) ).thenReturn( FOO_USER );
+
+        UserManagementContext context = new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex(),
+                null, new IdempotencyCache( 10, 1000 ), new AdmissionControl( 0.01, 3, 0, 0, 10 ),
+                AuditLog.disabled(), new UserChangeLog( 10 ), new UserLocks( 16 ),
+                UserReplicator.disabled() );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat, context );
+
+        // When
+        Response first = userAddService.createUsers( req, "[ { \"username\" : \"foo\", \"password\" : \"bar\" }, "
+                + "{ \"username\" : \"baz\", \"password\" : \"bar\" } ]" );
+        Response second = userAddService.createUsers( req, "[ { \"username\" : \"qux\", \"password\" : \"bar\" }, "
+                + "{ \"username\" : \"quux\", \"password\" : \"bar\" } ]" );
+        Response single = userAddService.createUser( "corge", req, "{ \"password\" : \"bar\" }" );
+
+        // Then
+        assertThat( first.getStatus(), equalTo( 200 ) );
+        assertThat( second.getStatus(), equalTo( 429 ) );
+        assertThat( single.getStatus(), equalTo( 200 ) );
+        verify( authManager, never() ).newUser( eq( "qux" ), anyString(), anyBoolean() );
+    }
+
+    @Test
+    public void shouldReturn413ForBatchWithMoreEntriesThanTheAdmissionBurst() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.newUser( anyString(), anyString(), anyBoolean() ) ).thenReturn( FOO_USER );
+
+        UserManagementContext context = new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex(),
+                null, new IdempotencyCache( 10, 1000 ), new AdmissionControl( 0.01, 1, 0, 0, 10 ),
+                AuditLog.disabled(), new UserChangeLog( 10 ), new UserLocks( 16 ),
+                UserReplicator.disabled() );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat, context );
+
+        // When
+        Response large = userAddService.createUsers( req, "[ { \"username\" : \"foo\", \"password\" : \"bar\" }, "
+                + "{ \"username\" : \"baz\", \"password\" : \"bar\" } ]" );
+        Response single = userAddService.createUser( "foo", req, "{ \"password\" : \"bar\" }" );
+
+        // Then the bucket was left full for a request that fits it
+        assertThat( large.getStatus(), equalTo( 413 ) );
+        assertThat( single.getStatus(), equalTo( 200 ) );
+        verify( authManager, never() ).newUser( eq( "baz" ), anyString(), anyBoolean() );
+    }
+
+    @Test
+    public void shouldNotTakeAdmissionTokenForUnauthenticatedRequest() throws Exception
+    {
+        // Given
+        HttpServletRequest anonymous = mock( HttpServletRequest.class );
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+        when( anonymous.getRemoteAddr() ).thenReturn( "10.0.0.1" );
+        when( req.getRemoteAddr() ).thenReturn( "10.0.0.1" );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.newUser( "foo", "bar", true ) ).thenReturn( FOO_USER );
+
+        UserManagementContext context = new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex(),
+                null, new IdempotencyCache( 10, 1000 ), new AdmissionControl( 0, 0, 0.01, 1, 10 ),
+                AuditLog.disabled(), new UserChangeLog( 10 ), new UserLocks( 16 ),
+                UserReplicator.disabled() );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat, context );
+
+        // When
+        Response refused = userAddService.createUser( "foo", anonymous, "{ \"password\" : \"bar\" }" );
+        Response created = userAddService.createUser( "foo", req, "{ \"password\" : \"bar\" }" );
+
+        // Then
+        assertThat( refused.getStatus(), equalTo( 404 ) );
+        assertThat( created.getStatus(), equalTo( 200 ) );
+    }
+
+    static File authFile( String... lines ) throws IOException
+    {
+        File file = File.createTempFile( "auth", null );
+        file.deleteOnExit();
+        try ( PrintWriter writer = new PrintWriter( file, "UTF-8" ) )
+        {
+            for ( String line : lines )
+            {
+                writer.println( line );
+            }
+        }
+        return file;
+    }
 }
@@ -0,0 +1,212 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.URI;
+import java.security.Principal;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.neo4j.helpers.Clock;
+import org.neo4j.kernel.logging.DevNullLoggingService;
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.repr.formats.JsonFormat;
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.FileUserRepository;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.test.server.EntityOutputFormat;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test the rest endpoint.
+ * @author Robin Bramley
+ */
+public class UserChangesServiceTest
+{
+    private static final Principal NEO4J_PRINCIPLE = new Principal()
+    {
+        @Override
+        public String getName()
+        {
+            return "neo4j";
+        }
+    };
+
+    @Test
+    public void shouldReturnOnlyChangesAfterSequence() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.newUser( "foo", "bar", true ) ).thenReturn( new User( "foo", Credential.forPassword( "bar" ), true ) );
+        when( authManager.newUser( "baz", "bar", true ) ).thenReturn( new User( "baz", Credential.forPassword( "bar" ), true ) );
+        when( authManager.deleteUser( "foo" ) ).thenReturn( true );
+
+        UserManagementContext context = UserManagementContext.inline();
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat, context );
+        userAddService.createUser( "foo", req, "{ \"password\" : \"bar\" }" );
+        userAddService.createUser( "baz", req, "{ \"password\" : \"bar\" }" );
+        new UserDeleteService( authManager, outputFormat, context ).deleteUser( "foo", req );
+
+        UserChangesService userChangesService = new UserChangesService( outputFormat, context );
+
+        // When
+        Response response = userChangesService.changes( 1, 1000, 0, req );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 200 ) );
+        String json = write( response );
+        assertThat( json, not( containsString( "\"sequence\":1" ) ) );
+        assertThat( json, containsString( "{\"sequence\":2,\"type\":\"added\",\"username\":\"baz\"}" ) );
+        assertThat( json, containsString( "{\"sequence\":3,\"type\":\"deleted\",\"username\":\"foo\"}" ) );
+        assertThat( json, containsString( "\"last\":3" ) );
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldIndexAndLogChangesTheServerMakesToTheInstalledStore() throws Throwable
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager server = new AuthManager( new FileUserRepository( new File( folder.newFolder(), "auth" ).toPath(),
+                new DevNullLoggingService() ), Clock.SYSTEM_CLOCK, true );
+        server.start();
+        JournalUserRepository store = new JournalUserRepository( folder.newFolder(), 1000 );
+        UserManagementContext context = new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex(), store );
+        context.start();
+        context.loadIndex( null );
+        context.authManager( server );
+
+        // When
+        server.newUser( "foo", "bar", true );
+        server.setPassword( "foo", "baz" );
+        server.newUser( "qux", "bar", false );
+        server.deleteUser( "qux" );
+
+        // Then
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        String json = write( new UserChangesService( outputFormat, context ).changes( 0, 1000, 0, req ) );
+        assertThat( json, containsString( "{\"sequence\":1,\"type\":\"added\",\"username\":\"foo\"}" ) );
+        assertThat( json, containsString( "{\"sequence\":2,\"type\":\"updated\",\"username\":\"foo\"}" ) );
+        assertThat( json, containsString( "{\"sequence\":3,\"type\":\"added\",\"username\":\"qux\"}" ) );
+        assertThat( json, containsString( "{\"sequence\":4,\"type\":\"deleted\",\"username\":\"qux\"}" ) );
+        assertThat( json, containsString( "\"last\":4" ) );
+        assertTrue( context.changes().get( 2 ).local );
+        assertThat( context.users().passwordChangeRequired( "foo" ), equalTo( false ) );
+        assertFalse( context.users().contains( "qux" ) );
+        server.stop();
+        context.stop();
+    }
+
+    @Test
+    public void shouldReturnEmptyChangesWhenNoneArriveBeforeTimeout() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserChangesService userChangesService = new UserChangesService( outputFormat, UserManagementContext.inline() );
+
+        // When
+        Response response = userChangesService.changes( 0, 1000, 10, req );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 200 ) );
+        String json = write( response );
+        assertThat( json, containsString( "\"changes\":[]" ) );
+        assertThat( json, containsString( "\"last\":0" ) );
+    }
+
+    @Test
+    public void shouldReturn410WhenChangesHaveBeenDiscarded() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        UserManagementContext context = new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex(), null,
+                new IdempotencyCache( 10, 1000 ), AdmissionControl.unlimited(), AuditLog.disabled(), new UserChangeLog( 2 ),
+                new UserLocks( 16 ), UserReplicator.disabled() );
+        for ( int i = 0; i < 5; i++ )
+        {
+            context.changes().added( new User( "user" + i, Credential.forPassword( "secret" ), false ) );
+        }
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserChangesService userChangesService = new UserChangesService( outputFormat, context );
+
+        // When
+        Response response = userChangesService.changes( 1, 1000, 0, req );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 410 ) );
+    }
+
+    @Test
+    public void shouldReturn410WithoutWaitingWhenSequenceIsAheadOfLog() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserChangesService userChangesService = new UserChangesService( outputFormat, UserManagementContext.inline() );
+
+        // When
+        long start = System.currentTimeMillis();
+        Response response = userChangesService.changes( 42, 1000, 30000, req );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 410 ) );
+        assertThat( System.currentTimeMillis() - start, lessThan( 10000L ) );
+    }
+
+    private static String write( Response response ) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write( out );
+        return out.toString( "UTF-8" );
+    }
+}
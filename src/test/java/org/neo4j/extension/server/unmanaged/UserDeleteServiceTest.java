@@ -18,7 +18,9 @@
  */
 package org.neo4j.extension.server.unmanaged;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.net.URI;
 import java.security.Principal;
@@ -37,7 +39,9 @@ import org.neo4j.test.server.EntityOutputFormat;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -50,6 +54,9 @@ import static org.mockito.Mockito.when;
  */
 public class UserDeleteServiceTest
 {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private static final Principal NEO4J_PRINCIPLE = new Principal()
     {
         @Override
@@ -150,4 +157,91 @@ public class UserDeleteServiceTest
         verify( authManager ).deleteUser( "foo" );
     }
 
+    @Test
+    public void shouldReturn503IfDeletionTimesOutAndSettleOnceApplied() throws Throwable
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+        JournalUserRepository store = new JournalUserRepository( folder.newFolder(), 1000 );
+        store.start();
+        store.create( FOO_USER );
+
+        // A group window far longer than the timeout keeps the deletion queued
+        UserWriteCoalescer writes = UserWriteCoalescer.grouping( 500, 2, PasswordHashingExecutor.inline(), 50 );
+        UserManagementContext context = new UserManagementContext( writes, new UsernameIndex(), store );
+        context.loadIndex( null );
+        writes.start();
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserDeleteService userDeleteService = new UserDeleteService( authManager, outputFormat, context );
+
+        // When
+        Response response = userDeleteService.deleteUser( "foo", req );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 503 ) );
+        assertTrue( context.users().contains( "foo" ) );
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( context.users().contains( "foo" ) && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+        assertFalse( context.users().contains( "foo" ) );
+        assertThat( context.changes().get( context.changes().last() ).type, equalTo( UserChangeLog.DELETED ) );
+        writes.stop();
+        store.stop();
+    }
+
+    @Test
+    public void shouldReturn404WithoutTouchingStoreIfUserIsNotIndexed() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+
+        UsernameIndex users = new UsernameIndex();
+        users.load( UserAddServiceTest.authFile( "neo4j:SHA-256,AB,CD:" ) );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserDeleteService userDeleteService = new UserDeleteService( authManager, outputFormat,
+                new UserManagementContext( UserWriteCoalescer.inline(), users ) );
+
+        // When
+        Response response = userDeleteService.deleteUser( "foo", req );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 404 ) );
+        verifyZeroInteractions( authManager );
+    }
+
+    @Test
+    public void shouldReturnOriginalResponseWhenRetriedWithSameIdempotencyKey() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+        when( req.getHeader( IdempotencyCache.IDEMPOTENCY_KEY ) ).thenReturn( "retry-1" );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.deleteUser( "foo" ) ).thenReturn( true, false );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserDeleteService userDeleteService = new UserDeleteService( authManager, outputFormat,
+                UserManagementContext.inline() );
+
+        // When
+        Response first = userDeleteService.deleteUser( "foo", req );
+        Response retry = userDeleteService.deleteUser( "foo", req );
+
+        // Then
+        assertThat( first.getStatus(), equalTo( 200 ) );
+        assertThat( retry.getStatus(), equalTo( 200 ) );
+        verify( authManager ).deleteUser( "foo" );
+        verifyNoMoreInteractions( authManager );
+    }
 }
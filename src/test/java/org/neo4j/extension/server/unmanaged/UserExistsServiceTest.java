@@ -0,0 +1,119 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.security.Principal;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.repr.formats.JsonFormat;
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.test.server.EntityOutputFormat;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test the rest endpoint.
+ * @author Robin Bramley
+ */
+public class UserExistsServiceTest
+{
+    private static final Principal NEO4J_PRINCIPLE = new Principal()
+    {
+        @Override
+        public String getName()
+        {
+            return "neo4j";
+        }
+    };
+
+    @Test
+    public void shouldReportExistenceAndStatusInOrder() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        UsernameIndex users = new UsernameIndex();
+        users.load( UserAddServiceTest.authFile( "neo4j:SHA-256,AB,CD:", "foo:SHA-256,AB,CD:password_change_required" ) );
+        UserManagementContext context = new UserManagementContext( UserWriteCoalescer.inline(), users );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.newUser( "bar", "baz", true ) ).thenReturn( new User( "bar", Credential.forPassword( "baz" ), true ) );
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserAddService userAddService = new UserAddService( authManager, new JsonFormat(), outputFormat, context );
+        userAddService.createUser( "bar", req, "{ \"password\" : \"baz\" }" );
+
+        UserExistsService userExistsService = new UserExistsService( new JsonFormat(), outputFormat, context );
+
+        // When
+        Response response = userExistsService.lookupUsers( req, "[ \"neo4j\", \"ghost\", \"foo\", \"bar\" ]" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 200 ) );
+        assertThat( write( response ), equalTo( "{\"users\":["
+                + "{\"username\":\"neo4j\",\"exists\":true,\"password_change_required\":false},"
+                + "{\"username\":\"ghost\",\"exists\":false},"
+                + "{\"username\":\"foo\",\"exists\":true,\"password_change_required\":true},"
+                + "{\"username\":\"bar\",\"exists\":true,\"password_change_required\":true}]}" ) );
+    }
+
+    @Test
+    public void shouldReturn422IfAnyUsernameIsNotAString() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        UsernameIndex users = new UsernameIndex();
+        users.load( UserAddServiceTest.authFile( "neo4j:SHA-256,AB,CD:" ) );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserExistsService userExistsService = new UserExistsService( new JsonFormat(), outputFormat,
+                new UserManagementContext( UserWriteCoalescer.inline(), users ) );
+
+        // When
+        Response response = userExistsService.lookupUsers( req, "[ \"neo4j\", 42 ]" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 422 ) );
+        String json = new String( (byte[]) response.getEntity() );
+        assertThat( json, containsString( "Expected every username to be a string." ) );
+    }
+
+    private static String write( Response response ) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write( out );
+        return out.toString( "UTF-8" );
+    }
+}
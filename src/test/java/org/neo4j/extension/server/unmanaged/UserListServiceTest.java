@@ -0,0 +1,134 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.security.Principal;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.repr.formats.JsonFormat;
+import org.neo4j.test.server.EntityOutputFormat;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test the rest endpoint.
+ * @author Robin Bramley
+ */
+public class UserListServiceTest
+{
+    private static final Principal NEO4J_PRINCIPLE = new Principal()
+    {
+        @Override
+        public String getName()
+        {
+            return "neo4j";
+        }
+    };
+
+    @Test
+    public void shouldListPageOfUsersWithPrefixAndCursor() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        UsernameIndex users = new UsernameIndex();
+        users.load( UserAddServiceTest.authFile( "neo4j:SHA-256,AB,CD:", "svc-a:SHA-256,AB,CD:password_change_required",
+                "svc-b:SHA-256,AB,CD:", "svc-c:SHA-256,AB,CD:", "web:SHA-256,AB,CD:" ) );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserListService userListService = new UserListService( outputFormat,
+                new UserManagementContext( UserWriteCoalescer.inline(), users ) );
+
+        // When
+        Response response = userListService.listUsers( "svc-a", "svc-", 1, req );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 200 ) );
+        String json = write( response );
+        assertThat( json, containsString( "{\"username\":\"svc-b\",\"password_change_required\":false}" ) );
+        assertThat( json, not( containsString( "svc-a" ) ) );
+        assertThat( json, not( containsString( "web" ) ) );
+        assertThat( json, containsString( "\"next\":\"svc-b\"" ) );
+    }
+
+    @Test
+    public void shouldListUsersWithPrefixEndingInLastCharacterButNotThoseBeingCreated() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        UsernameIndex users = new UsernameIndex();
+        users.load( UserAddServiceTest.authFile( "x\uFFFFa:SHA-256,AB,CD:", "x\uFFFFb:SHA-256,AB,CD:", "y:SHA-256,AB,CD:" ) );
+        users.reserve( "x\uFFFFc" );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserListService userListService = new UserListService( outputFormat,
+                new UserManagementContext( UserWriteCoalescer.inline(), users ) );
+
+        // When
+        Response response = userListService.listUsers( null, "x\uFFFF", 10, req );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 200 ) );
+        String json = write( response );
+        assertThat( json, containsString( "a\",\"password_change_required\"" ) );
+        assertThat( json, containsString( "b\",\"password_change_required\"" ) );
+        assertThat( json, not( containsString( "c\",\"password_change_required\"" ) ) );
+        assertThat( json, not( containsString( "\"y\"" ) ) );
+    }
+
+    @Test
+    public void shouldReturn404WhenListingUsersIfNotAuthenticated() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( null );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserListService userListService = new UserListService( outputFormat, UserManagementContext.inline() );
+
+        // When
+        Response response = userListService.listUsers( null, null, 1000, req );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 404 ) );
+    }
+
+    private static String write( Response response ) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write( out );
+        return out.toString( "UTF-8" );
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test the striped user locks.
+ * @author Robin Bramley
+ */
+public class UserLocksTest
+{
+    @Test
+    public void shouldSerializeOperationsOnTheSameUser() throws Exception
+    {
+        // Given
+        final UserLocks locks = new UserLocks( 16 );
+        final AtomicBoolean acquired = new AtomicBoolean();
+        final CountDownLatch attempted = new CountDownLatch( 1 );
+        Thread other = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                attempted.countDown();
+                try ( UserLocks.Held ignored = locks.lock( "foo" ) )
+                {
+                    acquired.set( true );
+                }
+            }
+        };
+
+        // When
+        try ( UserLocks.Held ignored = locks.lock( "foo" ) )
+        {
+            other.start();
+            attempted.await();
+            Thread.sleep( 50 );
+
+            // Then
+            assertThat( acquired.get(), equalTo( false ) );
+        }
+        other.join( TimeUnit.SECONDS.toMillis( 10 ) );
+        assertThat( acquired.get(), equalTo( true ) );
+    }
+
+    @Test
+    public void shouldNotDeadlockWhenLockingOverlappingUsersInAnyOrder() throws Exception
+    {
+        // Given
+        final UserLocks locks = new UserLocks( 64 );
+        final CountDownLatch done = new CountDownLatch( 2 );
+        Runnable forwards = lockRepeatedly( locks, done, "alpha", "beta", "gamma" );
+        Runnable backwards = lockRepeatedly( locks, done, "gamma", "beta", "alpha" );
+
+        // When
+        new Thread( forwards ).start();
+        new Thread( backwards ).start();
+
+        // Then
+        assertThat( done.await( 10, TimeUnit.SECONDS ), equalTo( true ) );
+    }
+
+    private static Runnable lockRepeatedly( final UserLocks locks, final CountDownLatch done, final String... usernames )
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for ( int i = 0; i < 10000; i++ )
+                {
+                    try ( UserLocks.Held ignored = locks.lockAll( Arrays.asList( usernames ) ) )
+                    {
+                        Thread.yield();
+                    }
+                }
+                done.countDown();
+            }
+        };
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.Collections;
+
+import org.neo4j.helpers.Clock;
+import org.neo4j.kernel.logging.DevNullLoggingService;
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.AuthenticationResult;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.FileUserRepository;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.server.security.auth.UserRepository;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test putting the extension's store behind the server's AuthManager.
+ * @author Robin Bramley
+ */
+public class UserManagementContextTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldPutTheStoreInPlaceOfTheServersUserRepository() throws Throwable
+    {
+        // Given
+        AuthManager server = new AuthManager( new FileUserRepository( new File( folder.newFolder(), "auth" ).toPath(),
+                new DevNullLoggingService() ), Clock.SYSTEM_CLOCK, true );
+        server.start();
+        JournalUserRepository store = new JournalUserRepository( folder.newFolder(), 1000 );
+        UserManagementContext context = new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex(), store );
+        context.start();
+        context.loadIndex( null );
+
+        // When
+        context.authManager( server );
+        store.putAll( Collections.singletonList( new User( "foo", Credential.forPassword( "bar" ), false ) ) );
+
+        // Then
+        Field repository = UserManagementContext.repositoryField( AuthManager.class );
+        assertThat( repository.get( server ), sameInstance( (Object) store ) );
+        assertThat( store.findByName( UserAddService.NEO4J_USER ), notNullValue() );
+        assertThat( server.authenticate( "foo", "bar" ), equalTo( AuthenticationResult.SUCCESS ) );
+        server.stop();
+        context.stop();
+    }
+
+    @Test
+    public void shouldRefuseAnAuthManagerWithoutARepositoryField() throws Exception
+    {
+        try
+        {
+            // When
+            UserManagementContext.repositoryField( Object.class );
+            fail( "Expected an AuthManager without a repository to be refused" );
+        } catch ( IllegalStateException e )
+        {
+            // Then
+            assertThat( e.getMessage(), containsString( UserManagementSettings.STORE ) );
+        }
+    }
+
+    @Test
+    public void shouldRefuseAnAuthManagerWithMoreThanOneRepositoryField() throws Exception
+    {
+        try
+        {
+            // When
+            UserManagementContext.repositoryField( TwoRepositories.class );
+            fail( "Expected an AuthManager with two repositories to be refused" );
+        } catch ( IllegalStateException e )
+        {
+            // Then
+            assertThat( e.getMessage(), containsString( "more than one" ) );
+        }
+    }
+
+    private static class TwoRepositories
+    {
+        private UserRepository users;
+        private UserRepository others;
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.reflect.Field;
+
+import org.neo4j.helpers.Clock;
+import org.neo4j.kernel.logging.DevNullLoggingService;
+import org.neo4j.server.AbstractNeoServer;
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.FileUserRepository;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test starting the extension with the server.
+ * @author Robin Bramley
+ */
+public class UserManagementLifecycleTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldPutTheStoreBehindTheServersAuthManagerAsTheServerStarts() throws Throwable
+    {
+        // Given
+        File authStore = new File( folder.newFolder(), "auth" );
+        AuthManager authManager = new AuthManager( new FileUserRepository( authStore.toPath(),
+                new DevNullLoggingService() ), Clock.SYSTEM_CLOCK, true );
+        authManager.start();
+        Configuration config = new BaseConfiguration();
+        config.setProperty( UserManagementSettings.AUTH_STORE, authStore.getPath() );
+        config.setProperty( UserManagementSettings.STORE, "journal" );
+        config.setProperty( UserManagementSettings.STORE_DIRECTORY, folder.newFolder().getPath() );
+        AbstractNeoServer server = mock( AbstractNeoServer.class );
+        when( server.getConfiguration() ).thenReturn( config );
+        Field field = AbstractNeoServer.class.getDeclaredField( "authManager" );
+        field.setAccessible( true );
+        field.set( server, authManager );
+        UserManagementLifecycle lifecycle = new UserManagementLifecycle();
+
+        // When
+        lifecycle.start( server );
+
+        // Then
+        assertThat( UserManagementContext.repositoryField( AuthManager.class ).get( authManager ),
+                instanceOf( JournalUserRepository.class ) );
+        lifecycle.stop();
+        authManager.stop();
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.security.Principal;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Response;
+
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.repr.formats.JsonFormat;
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.test.server.EntityOutputFormat;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test the rest endpoint.
+ * @author Robin Bramley
+ */
+public class UserMetricsServiceTest
+{
+    private static final Principal NEO4J_PRINCIPLE = new Principal()
+    {
+        @Override
+        public String getName()
+        {
+            return "neo4j";
+        }
+    };
+    private static final User FOO_USER = new User( "foo", Credential.forPassword( "bar" ), true );
+
+    @Test
+    public void shouldReportRequestsByStatusAndLatencyByPhase() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.newUser( "foo", "bar", true ) ).thenReturn( FOO_USER );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserManagementContext context = UserManagementContext.inline();
+        new UserAddService( authManager, new JsonFormat(), outputFormat, context ).createUser( "foo", req, "{ \"password\" : \"bar\" }" );
+        new UserAddService( authManager, new JsonFormat(), outputFormat, context ).createUser( "foo", req, "{ }" );
+
+        UserMetricsService userMetricsService = new UserMetricsService( outputFormat, context );
+
+        // When
+        Response json = userMetricsService.metrics( req );
+        Response text = userMetricsService.prometheusMetrics( req );
+
+        // Then
+        assertThat( json.getStatus(), equalTo( 200 ) );
+        assertThat( new String( (byte[]) json.getEntity() ), containsString( "\"phase\" : \"parse\"" ) );
+        assertThat( new String( (byte[]) json.getEntity() ), containsString( "\"dropped\" : 0" ) );
+        String prometheus = (String) text.getEntity();
+        assertThat( prometheus, containsString( "useradd_requests_total{endpoint=\"useradd\",status=\"200\"} 1" ) );
+        assertThat( prometheus, containsString( "useradd_requests_total{endpoint=\"useradd\",status=\"422\"} 1" ) );
+        assertThat( prometheus, containsString( "useradd_latency_seconds_count{endpoint=\"useradd\",phase=\"write\"} 1" ) );
+    }
+}
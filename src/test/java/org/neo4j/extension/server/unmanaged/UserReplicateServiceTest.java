@@ -0,0 +1,259 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.URI;
+import java.security.Principal;
+import java.util.Collections;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Response;
+
+import org.neo4j.kernel.impl.util.Codecs;
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.repr.formats.JsonFormat;
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.test.server.EntityOutputFormat;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test the rest endpoint.
+ * @author Robin Bramley
+ */
+public class UserReplicateServiceTest
+{
+    private static final Principal NEO4J_PRINCIPLE = new Principal()
+    {
+        @Override
+        public String getName()
+        {
+            return "neo4j";
+        }
+    };
+
+    private static final String SECRET = "secret";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldApplyReplicatedChangesOnce() throws Throwable
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+        when( req.getHeader( UserReplicator.SECRET_HEADER ) ).thenReturn( SECRET );
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+
+        JournalUserRepository store = new JournalUserRepository( folder.newFolder(), 1000 );
+        UserManagementContext context = context( store );
+        context.start();
+        store.putAll( Collections.singletonList( new User( "baz", Credential.forPassword( "qux" ), false ) ) );
+        context.loadIndex( null );
+
+        Credential credential = Credential.forPassword( "bar" );
+        String payload = "{ \"changes\" : ["
+                + "{ \"sequence\" : 1, \"type\" : \"added\", \"username\" : \"foo\", \"salt\" : \""
+                + Codecs.encodeHexString( credential.salt() ) + "\", \"hash\" : \"" + Codecs.encodeHexString( credential.passwordHash() )
+                + "\", \"password_change_required\" : true },"
+                + "{ \"sequence\" : 2, \"type\" : \"added\", \"username\" : \"bar\", \"salt\" : \"AB\", \"hash\" : \"CD\","
+                + " \"password_change_required\" : false },"
+                + "{ \"sequence\" : 3, \"type\" : \"deleted\", \"username\" : \"bar\" },"
+                + "{ \"sequence\" : 4, \"type\" : \"deleted\", \"username\" : \"baz\" } ] }";
+        UserReplicateService service = new UserReplicateService( mock( AuthManager.class ), new JsonFormat(), outputFormat, context );
+
+        // When
+        Response first = service.replicate( req, payload );
+        Response second = service.replicate( req, payload );
+
+        // Then
+        assertThat( first.getStatus(), equalTo( 200 ) );
+        String json = new String( (byte[]) first.getEntity() );
+        assertThat( json, containsString( "\"applied\" : 2" ) );
+        assertThat( json, containsString( "\"unchanged\" : 1" ) );
+        assertThat( json, containsString( "\"last\" : 4" ) );
+        assertThat( new String( (byte[]) second.getEntity() ), containsString( "\"applied\" : 0" ) );
+
+        assertTrue( store.findByName( "foo" ).credentials().matchesPassword( "bar" ) );
+        assertTrue( store.findByName( "foo" ).passwordChangeRequired() );
+        assertThat( store.findByName( "bar" ), nullValue() );
+        assertThat( store.findByName( "baz" ), nullValue() );
+        assertTrue( context.users().contains( "foo" ) );
+        assertFalse( context.users().contains( "baz" ) );
+
+        assertThat( context.changes().last(), equalTo( 2L ) );
+        assertFalse( context.changes().get( 1 ).local );
+        assertFalse( context.changes().get( 2 ).local );
+        context.stop();
+    }
+
+    @Test
+    public void shouldApplyReplicatedUpdate() throws Throwable
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+        when( req.getHeader( UserReplicator.SECRET_HEADER ) ).thenReturn( SECRET );
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+
+        JournalUserRepository store = new JournalUserRepository( folder.newFolder(), 1000 );
+        UserManagementContext context = context( store );
+        context.start();
+        store.putAll( Collections.singletonList( new User( "foo", Credential.forPassword( "old" ), false ) ) );
+        context.loadIndex( null );
+
+        Credential credential = Credential.forPassword( "new" );
+        String payload = "{ \"changes\" : ["
+                + "{ \"sequence\" : 1, \"type\" : \"updated\", \"username\" : \"foo\", \"salt\" : \""
+                + Codecs.encodeHexString( credential.salt() ) + "\", \"hash\" : \"" + Codecs.encodeHexString( credential.passwordHash() )
+                + "\", \"password_change_required\" : true } ] }";
+
+        // When
+        Response response = new UserReplicateService( mock( AuthManager.class ), new JsonFormat(), outputFormat, context )
+                .replicate( req, payload );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 200 ) );
+        assertTrue( store.findByName( "foo" ).credentials().matchesPassword( "new" ) );
+        assertTrue( store.findByName( "foo" ).passwordChangeRequired() );
+        assertThat( context.changes().last(), equalTo( 1L ) );
+        assertThat( context.changes().get( 1 ).type, equalTo( UserChangeLog.UPDATED ) );
+        assertFalse( context.changes().get( 1 ).local );
+        context.stop();
+    }
+
+    @Test
+    public void shouldRejectUnknownChangeType() throws Throwable
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+        when( req.getHeader( UserReplicator.SECRET_HEADER ) ).thenReturn( SECRET );
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+
+        JournalUserRepository store = new JournalUserRepository( folder.newFolder(), 1000 );
+        UserManagementContext context = context( store );
+        context.start();
+        store.putAll( Collections.singletonList( new User( "foo", Credential.forPassword( "bar" ), false ) ) );
+
+        // When
+        Response response = new UserReplicateService( mock( AuthManager.class ), new JsonFormat(), outputFormat, context ).replicate( req,
+                "{ \"changes\" : [ { \"sequence\" : 1, \"type\" : \"deleted\", \"username\" : \"foo\" },"
+                + " { \"sequence\" : 2, \"type\" : \"renamed\", \"username\" : \"foo\" } ] }" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 422 ) );
+        assertThat( store.findByName( "foo" ).name(), equalTo( "foo" ) );
+        context.stop();
+    }
+
+    @Test
+    public void shouldNotReplicateWithoutOwnStore() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+        when( req.getHeader( UserReplicator.SECRET_HEADER ) ).thenReturn( SECRET );
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+
+        // When
+        Response response = new UserReplicateService( mock( AuthManager.class ), new JsonFormat(), outputFormat, context( null ) )
+                .replicate( req, "{ \"changes\" : [] }" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 422 ) );
+    }
+
+    @Test
+    public void shouldNotReplicateForCallerWithoutSecret() throws Throwable
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+        when( req.getHeader( UserReplicator.SECRET_HEADER ) ).thenReturn( "guess" );
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        JournalUserRepository store = new JournalUserRepository( folder.newFolder(), 1000 );
+        UserManagementContext context = context( store );
+        context.start();
+        Credential credential = Credential.forPassword( "bar" );
+
+        // When
+        Response response = new UserReplicateService( mock( AuthManager.class ), new JsonFormat(), outputFormat, context )
+                .replicate( req, "{ \"changes\" : [ { \"sequence\" : 1, \"type\" : \"added\", \"username\" : \"foo\","
+                + " \"salt\" : \"" + Codecs.encodeHexString( credential.salt() ) + "\", \"hash\" : \""
+                + Codecs.encodeHexString( credential.passwordHash() ) + "\", \"password_change_required\" : false } ] }" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 404 ) );
+        assertThat( store.findByName( "foo" ), nullValue() );
+        context.stop();
+    }
+
+    @Test
+    public void shouldIgnoreReplicatedChangesToNeo4j() throws Throwable
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+        when( req.getHeader( UserReplicator.SECRET_HEADER ) ).thenReturn( SECRET );
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        JournalUserRepository store = new JournalUserRepository( folder.newFolder(), 1000 );
+        UserManagementContext context = context( store );
+        context.start();
+        store.putAll( Collections.singletonList( new User( "neo4j", Credential.forPassword( "mine" ), false ) ) );
+        Credential credential = Credential.forPassword( "theirs" );
+
+        // When
+        Response response = new UserReplicateService( mock( AuthManager.class ), new JsonFormat(), outputFormat, context )
+                .replicate( req, "{ \"changes\" : [ { \"sequence\" : 1, \"type\" : \"updated\", \"username\" : \"neo4j\","
+                + " \"salt\" : \"" + Codecs.encodeHexString( credential.salt() ) + "\", \"hash\" : \""
+                + Codecs.encodeHexString( credential.passwordHash() ) + "\", \"password_change_required\" : false } ] }" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 200 ) );
+        assertThat( new String( (byte[]) response.getEntity() ), containsString( "\"unchanged\" : 1" ) );
+        assertTrue( store.findByName( "neo4j" ).credentials().matchesPassword( "mine" ) );
+        context.stop();
+    }
+
+    /**
+     * @return a context whose replicator shares {@link #SECRET} with its peers
+     */
+    private static UserManagementContext context( UserStore store )
+    {
+        return new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex(), store,
+                new IdempotencyCache( 100, 60000 ), AdmissionControl.unlimited(), AuditLog.disabled(),
+                new UserChangeLog( 100 ), new UserLocks( 16 ),
+                new UserReplicator( null, Collections.<URI>emptyList(), null, SECRET, 0, 0, 0 ) );
+    }
+}
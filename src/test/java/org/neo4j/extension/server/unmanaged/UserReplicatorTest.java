@@ -0,0 +1,249 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Response;
+
+import org.neo4j.server.rest.repr.formats.JsonFormat;
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.test.server.EntityOutputFormat;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test the replication of user changes to peers.
+ * @author Robin Bramley
+ */
+public class UserReplicatorTest
+{
+    private static final Principal NEO4J_PRINCIPLE = new Principal()
+    {
+        @Override
+        public String getName()
+        {
+            return "neo4j";
+        }
+    };
+
+    private static final String SECRET = "secret";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<Peer> peers = new ArrayList<>();
+
+    @After
+    public void stopPeers() throws Throwable
+    {
+        for ( Peer peer : peers )
+        {
+            peer.stop();
+        }
+    }
+
+    @Test
+    public void shouldReplicateLocalChangesToEachPeer() throws Throwable
+    {
+        // Given
+        Peer first = peer( 0 );
+        Peer second = peer( 0 );
+        UserChangeLog changes = new UserChangeLog( 100 );
+        UserReplicator replicator = new UserReplicator( changes, Arrays.asList( first.uri, second.uri ),
+                "Basic bmVvNGo6c2VjcmV0", SECRET, 2, 10, 5000 );
+        replicator.start();
+
+        // When
+        changes.added( new User( "foo", Credential.forPassword( "bar" ), true ) );
+        changes.added( new User( "bar", Credential.forPassword( "baz" ), false ) );
+        changes.replicatedAdd( new User( "baz", Credential.forPassword( "qux" ), false ) );
+        changes.deleted( "bar" );
+        awaitCaughtUp( replicator );
+        replicator.stop();
+
+        // Then
+        for ( Peer peer : Arrays.asList( first, second ) )
+        {
+            assertTrue( peer.store.findByName( "foo" ).credentials().matchesPassword( "bar" ) );
+            assertTrue( peer.store.findByName( "foo" ).passwordChangeRequired() );
+            assertThat( peer.store.findByName( "bar" ), nullValue() );
+            assertThat( peer.store.findByName( "baz" ), nullValue() );
+        }
+        for ( Map<String, Object> progress : replicator.toList() )
+        {
+            assertThat( progress.get( "acknowledged" ), equalTo( (Object) 4L ) );
+            assertThat( progress.get( "events" ), equalTo( (Object) 3L ) );
+            assertThat( progress.get( "failures" ), equalTo( (Object) 0L ) );
+        }
+    }
+
+    @Test
+    public void shouldSendBatchAgainUntilPeerAcceptsIt() throws Throwable
+    {
+        // Given
+        Peer peer = peer( 2 );
+        UserChangeLog changes = new UserChangeLog( 100 );
+        UserReplicator replicator = new UserReplicator( changes, Arrays.asList( peer.uri ),
+                null, SECRET, 500, 10, 5000 );
+        replicator.start();
+
+        // When
+        changes.added( new User( "foo", Credential.forPassword( "bar" ), false ) );
+        awaitCaughtUp( replicator );
+        replicator.stop();
+
+        // Then
+        assertTrue( peer.store.findByName( "foo" ).credentials().matchesPassword( "bar" ) );
+        Map<String, Object> progress = replicator.toList().get( 0 );
+        assertThat( (Long) progress.get( "failures" ), greaterThan( 1L ) );
+        assertThat( progress.get( "lag_changes" ), equalTo( (Object) 0L ) );
+    }
+
+    private void awaitCaughtUp( UserReplicator replicator ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( System.currentTimeMillis() < deadline )
+        {
+            boolean caughtUp = true;
+            for ( Map<String, Object> progress : replicator.toList() )
+            {
+                caughtUp &= progress.get( "lag_changes" ).equals( 0L );
+            }
+            if ( caughtUp )
+            {
+                return;
+            }
+            Thread.sleep( 10 );
+        }
+        throw new AssertionError( "Peers did not catch up: " + replicator.toList() );
+    }
+
+    /**
+     * @param failures how many requests to fail before accepting any
+     */
+    private Peer peer( int failures ) throws Throwable
+    {
+        Peer peer = new Peer( new JournalUserRepository( folder.newFolder(), 1000 ), failures );
+        peers.add( peer );
+        return peer;
+    }
+
+    /**
+     * A server on a loopback port that hands requests to a {@link UserReplicateService} over a store of its own.
+     */
+    private static class Peer implements HttpHandler
+    {
+        private final JournalUserRepository store;
+        private final UserManagementContext context;
+        private final HttpServer server;
+        private final URI uri;
+        private final AtomicInteger failures;
+
+        Peer( JournalUserRepository store, int failures ) throws Throwable
+        {
+            this.store = store;
+            this.failures = new AtomicInteger( failures );
+            this.context = new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex(), store,
+                    new IdempotencyCache( 100, 60000 ), AdmissionControl.unlimited(), AuditLog.disabled(),
+                    new UserChangeLog( 100 ), new UserLocks( 16 ),
+                    new UserReplicator( null, Collections.<URI>emptyList(), null, SECRET, 0, 0, 0 ) );
+            context.start();
+            this.server = HttpServer.create( new InetSocketAddress( "127.0.0.1", 0 ), 0 );
+            server.createContext( "/unmanaged" + UserReplicator.PATH, this );
+            server.start();
+            this.uri = URI.create( "http://127.0.0.1:" + server.getAddress().getPort() + "/unmanaged/" );
+        }
+
+        @Override
+        public void handle( HttpExchange exchange ) throws IOException
+        {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try ( InputStream in = exchange.getRequestBody() )
+            {
+                byte[] buffer = new byte[8192];
+                for ( int read; (read = in.read( buffer )) >= 0; )
+                {
+                    body.write( buffer, 0, read );
+                }
+            }
+
+            int status;
+            byte[] entity;
+            if ( failures.getAndDecrement() > 0 )
+            {
+                status = 503;
+                entity = new byte[0];
+            } else
+            {
+                HttpServletRequest req = mock( HttpServletRequest.class );
+                when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+                for ( String header : Arrays.asList( UserReplicator.SECRET_HEADER, IdempotencyCache.IDEMPOTENCY_KEY ) )
+                {
+                    when( req.getHeader( header ) ).thenReturn( exchange.getRequestHeaders().getFirst( header ) );
+                }
+                Response response = new UserReplicateService( mock( AuthManager.class ), new JsonFormat(),
+                        new EntityOutputFormat( new JsonFormat(), uri, null ), context )
+                        .replicate( req, body.toString( "UTF-8" ) );
+                status = response.getStatus();
+                entity = (byte[]) response.getEntity();
+            }
+            exchange.sendResponseHeaders( status, entity.length == 0 ? -1 : entity.length );
+            try ( OutputStream out = exchange.getResponseBody() )
+            {
+                out.write( entity );
+            }
+        }
+
+        void stop() throws Throwable
+        {
+            server.stop( 0 );
+            context.stop();
+        }
+    }
+}
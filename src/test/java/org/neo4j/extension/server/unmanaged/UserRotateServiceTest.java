@@ -0,0 +1,189 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.Principal;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Response;
+
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.repr.formats.JsonFormat;
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.test.server.EntityOutputFormat;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test the rest endpoint.
+ * @author Robin Bramley
+ */
+public class UserRotateServiceTest
+{
+    private static final Principal NEO4J_PRINCIPLE = new Principal()
+    {
+        @Override
+        public String getName()
+        {
+            return "neo4j";
+        }
+    };
+    private static final User FOO_USER = new User( "foo", Credential.forPassword( "new" ), false );
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldRotatePasswordsThroughAuthManager() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.setPassword( "foo", "new" ) ).thenReturn( FOO_USER );
+
+        UsernameIndex users = new UsernameIndex();
+        users.load( UserAddServiceTest.authFile( "neo4j:SHA-256,AB,CD:", "foo:SHA-256,AB,CD:password_change_required" ) );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserRotateService userRotateService = new UserRotateService( authManager, new JsonFormat(), outputFormat,
+                new UserManagementContext( UserWriteCoalescer.inline(), users ) );
+
+        // When
+        Response response = userRotateService.rotatePasswords( req,
+                "[ { \"username\" : \"foo\", \"newPassword\" : \"new\" }, "
+                + "{ \"username\" : \"ghost\", \"newPassword\" : \"new\" } ]" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 200 ) );
+        String json = new String( (byte[]) response.getEntity() );
+        assertThat( json, containsString( "\"status\" : \"rotated\"" ) );
+        assertThat( json, containsString( "\"status\" : \"unknown\"" ) );
+        verify( authManager ).setPassword( "foo", "new" );
+        verifyNoMoreInteractions( authManager );
+    }
+
+    @Test
+    public void shouldReplaceCredentialsInOwnStore() throws Throwable
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        JournalUserRepository store = new JournalUserRepository( folder.newFolder(), 1000 );
+        UserManagementContext context = new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex(), store );
+        context.start();
+        store.create( new User( "foo", Credential.forPassword( "old" ), false ) );
+        store.create( new User( "bar", Credential.forPassword( "old" ), false ) );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserRotateService userRotateService = new UserRotateService( mock( AuthManager.class ), new JsonFormat(),
+                outputFormat, context );
+
+        // When
+        Response response = userRotateService.rotatePasswords( req,
+                "[ { \"username\" : \"foo\", \"newPassword\" : \"new\", \"requirePasswordChange\" : true }, "
+                + "{ \"username\" : \"bar\", \"newPassword\" : \"new\" } ]" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 200 ) );
+        assertTrue( store.findByName( "foo" ).credentials().matchesPassword( "new" ) );
+        assertTrue( store.findByName( "foo" ).passwordChangeRequired() );
+        assertTrue( store.findByName( "bar" ).credentials().matchesPassword( "new" ) );
+        assertThat( store.findByName( "bar" ).passwordChangeRequired(), equalTo( false ) );
+        context.stop();
+    }
+
+    @Test
+    public void shouldNotRecreateUserToRequirePasswordChangeThroughAuthManager() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.setPassword( "foo", "new" ) ).thenReturn( FOO_USER );
+
+        UsernameIndex users = new UsernameIndex();
+        users.load( UserAddServiceTest.authFile( "neo4j:SHA-256,AB,CD:", "foo:SHA-256,AB,CD:", "bar:SHA-256,AB,CD:" ) );
+        UserManagementContext context = new UserManagementContext( UserWriteCoalescer.inline(), users );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserRotateService userRotateService = new UserRotateService( authManager, new JsonFormat(), outputFormat, context );
+
+        // When
+        Response response = userRotateService.rotatePasswords( req,
+                "[ { \"username\" : \"foo\", \"newPassword\" : \"new\" }, "
+                + "{ \"username\" : \"bar\", \"newPassword\" : \"new\", \"requirePasswordChange\" : true } ]" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 200 ) );
+        String json = new String( (byte[]) response.getEntity() );
+        assertThat( json, containsString( "\"status\" : \"failed\"" ) );
+        verify( authManager ).setPassword( "foo", "new" );
+        verifyNoMoreInteractions( authManager );
+        assertThat( context.changes().last(), equalTo( 1L ) );
+        assertThat( context.changes().get( 1 ).type, equalTo( UserChangeLog.UPDATED ) );
+    }
+
+    @Test
+    public void shouldReportEachEntryWhenTheStoreCannotBeWritten() throws Throwable
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        UserStore store = mock( UserStore.class );
+        when( store.replaceAll( anyCollectionOf( User.class ) ) ).thenThrow( new IOException( "disk full" ) );
+        UserManagementContext context = new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex(), store );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserRotateService userRotateService = new UserRotateService( mock( AuthManager.class ), new JsonFormat(),
+                outputFormat, context );
+
+        // When
+        Response response = userRotateService.rotatePasswords( req,
+                "[ { \"username\" : \"foo\", \"newPassword\" : \"new\" }, "
+                + "{ \"username\" : \"bar\", \"newPassword\" : \"new\" } ]" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 200 ) );
+        String json = new String( (byte[]) response.getEntity() );
+        assertThat( json, containsString( "\"status\" : \"failed\"" ) );
+        assertThat( json, containsString( "disk full" ) );
+        assertThat( context.changes().last(), equalTo( 0L ) );
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.URI;
+import java.security.Principal;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.neo4j.kernel.impl.util.Codecs;
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.repr.formats.JsonFormat;
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.test.server.EntityOutputFormat;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test the rest endpoint.
+ * @author Robin Bramley
+ */
+public class UserSnapshotServiceTest
+{
+    private static final Principal NEO4J_PRINCIPLE = new Principal()
+    {
+        @Override
+        public String getName()
+        {
+            return "neo4j";
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldRestoreExportedUsers() throws Throwable
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+
+        JournalUserRepository source = new JournalUserRepository( folder.newFolder(), 1000 );
+        UserManagementContext sourceContext = new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex(), source );
+        sourceContext.start();
+        source.create( new User( "foo", Credential.forPassword( "bar" ), true ) );
+        source.create( new User( "baz", Credential.forPassword( "qux" ), false ) );
+
+        JournalUserRepository target = new JournalUserRepository( folder.newFolder(), 1000 );
+        UserManagementContext targetContext = new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex(), target );
+        targetContext.start();
+        target.create( new User( "baz", Credential.forPassword( "old" ), true ) );
+
+        // When
+        Response exported = new UserSnapshotService( mock( AuthManager.class ), outputFormat, sourceContext ).exportUsers( req );
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        ((StreamingOutput) exported.getEntity()).write( snapshot );
+        Response restored = new UserSnapshotService( mock( AuthManager.class ), outputFormat, targetContext )
+                .restoreUsers( req, new ByteArrayInputStream( snapshot.toByteArray() ) );
+
+        // Then
+        assertThat( exported.getStatus(), equalTo( 200 ) );
+        assertThat( restored.getStatus(), equalTo( 200 ) );
+        String json = new String( (byte[]) restored.getEntity() );
+        assertThat( json, containsString( "\"restored\" : 2" ) );
+        assertThat( json, containsString( "\"created\" : 1" ) );
+        assertTrue( target.findByName( "foo" ).credentials().matchesPassword( "bar" ) );
+        assertTrue( target.findByName( "foo" ).passwordChangeRequired() );
+        assertTrue( target.findByName( "baz" ).credentials().matchesPassword( "qux" ) );
+        assertThat( target.findByName( "baz" ).passwordChangeRequired(), equalTo( false ) );
+        sourceContext.stop();
+        targetContext.stop();
+    }
+
+    @Test
+    public void shouldRestoreIntoServersAuthFile() throws Throwable
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+
+        File authFile = new File( folder.newFolder(), "auth" );
+        UserManagementContext context = new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex(),
+                new AuthFileUserStore( authFile ) );
+        context.start();
+
+        Credential credential = Credential.forPassword( "bar" );
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        try ( GZIPOutputStream gzip = new GZIPOutputStream( snapshot ) )
+        {
+            gzip.write( ( "{ \"username\" : \"foo\", \"salt\" : \"" + Codecs.encodeHexString( credential.salt() )
+                    + "\", \"hash\" : \"" + Codecs.encodeHexString( credential.passwordHash() )
+                    + "\", \"password_change_required\" : true }\n" ).getBytes( "UTF-8" ) );
+        }
+
+        // When
+        Response response = new UserSnapshotService( mock( AuthManager.class ), outputFormat, context )
+                .restoreUsers( req, new ByteArrayInputStream( snapshot.toByteArray() ) );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 200 ) );
+        User restored = AuthFileUserStore.read( authFile ).get( 0 );
+        assertThat( restored.name(), equalTo( "foo" ) );
+        assertTrue( restored.credentials().matchesPassword( "bar" ) );
+        assertTrue( restored.passwordChangeRequired() );
+        context.stop();
+    }
+
+    @Test
+    public void shouldRestoreNothingFromInvalidSnapshot() throws Throwable
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+
+        JournalUserRepository store = new JournalUserRepository( folder.newFolder(), 1000 );
+        UserManagementContext context = new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex(), store );
+        context.start();
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        try ( GZIPOutputStream gzip = new GZIPOutputStream( snapshot ) )
+        {
+            gzip.write( ( "{ \"username\" : \"foo\", \"salt\" : \"AB\", \"hash\" : \"CD\", \"password_change_required\" : false }\n"
+                    + "{ \"username\" : \"bar\", \"salt\" : \"not hex\", \"hash\" : \"CD\", \"password_change_required\" : false }\n" )
+                    .getBytes( "UTF-8" ) );
+        }
+
+        // When
+        Response response = new UserSnapshotService( mock( AuthManager.class ), outputFormat, context )
+                .restoreUsers( req, new ByteArrayInputStream( snapshot.toByteArray() ) );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 422 ) );
+        assertThat( new String( (byte[]) response.getEntity() ), containsString( "Line 2" ) );
+        assertThat( store.findByName( "foo" ), nullValue() );
+        context.stop();
+    }
+
+    @Test
+    public void shouldNotRestoreWithoutOwnStore() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserManagementContext context = new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex() );
+
+        // When
+        Response response = new UserSnapshotService( mock( AuthManager.class ), outputFormat, context )
+                .restoreUsers( req, new ByteArrayInputStream( new byte[0] ) );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 422 ) );
+    }
+}
@@ -0,0 +1,300 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URI;
+import java.security.Principal;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Response;
+
+import org.neo4j.helpers.Clock;
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.repr.formats.JsonFormat;
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.test.server.EntityOutputFormat;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test the rest endpoint.
+ * @author Robin Bramley
+ */
+public class UserSyncServiceTest
+{
+    private static final Principal NEO4J_PRINCIPLE = new Principal()
+    {
+        @Override
+        public String getName()
+        {
+            return "neo4j";
+        }
+    };
+    private static final User FOO_USER = new User( "foo", Credential.forPassword( "bar" ), false );
+    private static final User BAZ_USER = new User( "baz", Credential.forPassword( "old" ), false );
+
+    @Test
+    public void shouldApplyOnlyTheDifference() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.getUser( "foo" ) ).thenReturn( FOO_USER );
+        when( authManager.getUser( "baz" ) ).thenReturn( BAZ_USER );
+        when( authManager.newUser( "new", "pw", true ) ).thenReturn( new User( "new", Credential.forPassword( "pw" ), true ) );
+        when( authManager.setPassword( "baz", "changed" ) ).thenReturn( BAZ_USER );
+        when( authManager.deleteUser( "gone" ) ).thenReturn( true );
+
+        UsernameIndex users = new UsernameIndex();
+        users.load( UserAddServiceTest.authFile( "neo4j:SHA-256,AB,CD:", "foo:SHA-256,AB,CD:",
+                "baz:SHA-256,AB,CD:", "gone:SHA-256,AB,CD:" ) );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserSyncService userSyncService = new UserSyncService( authManager, new JsonFormat(), outputFormat,
+                new UserManagementContext( UserWriteCoalescer.inline(), users ) );
+
+        // When
+        Response response = userSyncService.syncUsers( false, req, "[ { \"username\" : \"foo\", \"password\" : \"bar\" }, "
+                + "{ \"username\" : \"baz\", \"password\" : \"changed\" }, "
+                + "{ \"username\" : \"new\", \"password\" : \"pw\" } ]" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 200 ) );
+        verify( authManager ).newUser( "new", "pw", true );
+        verify( authManager ).setPassword( "baz", "changed" );
+        verify( authManager ).deleteUser( "gone" );
+        verify( authManager, never() ).setPassword( "foo", "bar" );
+        verify( authManager, never() ).deleteUser( "neo4j" );
+        assertThat( users.contains( "new" ), equalTo( true ) );
+        assertThat( users.contains( "gone" ), equalTo( false ) );
+    }
+
+    @Test
+    public void shouldReturn429WithoutChangingAnythingWhenTheEntriesAreNotAdmitted() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.getUser( "foo" ) ).thenReturn( FOO_USER );
+
+        UsernameIndex users = new UsernameIndex();
+        users.load( UserAddServiceTest.authFile( "neo4j:SHA-256,AB,CD:", "foo:SHA-256,AB,CD:", "gone:SHA-256,AB,CD:" ) );
+        UserManagementContext context = new UserManagementContext( UserWriteCoalescer.inline(), users,
+                null, new IdempotencyCache( 10, 1000 ), new AdmissionControl( 0.01, 2, 0, 0, 10 ),
+                AuditLog.disabled(), new UserChangeLog( 10 ), new UserLocks( 16 ),
+                UserReplicator.disabled() );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserSyncService userSyncService = new UserSyncService( authManager, new JsonFormat(), outputFormat, context );
+        String payload = "[ { \"username\" : \"foo\", \"password\" : \"bar\" }, "
+                + "{ \"username\" : \"new\", \"password\" : \"pw\" } ]";
+
+        // When
+        Response first = userSyncService.syncUsers( false, req, payload );
+        Response second = userSyncService.syncUsers( false, req, payload );
+
+        // Then
+        assertThat( first.getStatus(), equalTo( 200 ) );
+        assertThat( second.getStatus(), equalTo( 429 ) );
+        verify( authManager, times( 1 ) ).newUser( "new", "pw", true );
+        verify( authManager, times( 1 ) ).deleteUser( "gone" );
+    }
+
+    @Test
+    public void shouldApplyTheWholeDifferenceToTheStoreInOneWrite() throws Throwable
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        File authFile = File.createTempFile( "auth", null );
+        authFile.delete();
+        AuthFileUserStore seeded = new AuthFileUserStore( authFile );
+        seeded.start();
+        seeded.putAll( Arrays.asList( new User( "neo4j", Credential.forPassword( "neo4j" ), false ), FOO_USER,
+                BAZ_USER, new User( "gone", Credential.forPassword( "old" ), false ) ) );
+        AuthFileUserStore store = spy( new AuthFileUserStore( authFile ) );
+        store.start();
+
+        UserManagementContext context = new UserManagementContext( UserWriteCoalescer.inline(), new UsernameIndex(),
+                store );
+        context.loadIndex( authFile );
+        AuthManager authManager = new AuthManager( store, Clock.SYSTEM_CLOCK, true );
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserSyncService userSyncService = new UserSyncService( authManager, new JsonFormat(), outputFormat, context );
+
+        // When
+        Response response = userSyncService.syncUsers( false, req, "[ { \"username\" : \"foo\", \"password\" : \"bar\" }, "
+                + "{ \"username\" : \"baz\", \"password\" : \"changed\" }, "
+                + "{ \"username\" : \"new\", \"password\" : \"pw\" } ]" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 200 ) );
+        verify( store, times( 1 ) ).write( anyListOf( UserStore.Write.class ) );
+        assertTrue( store.findByName( "new" ).passwordChangeRequired() );
+        assertTrue( store.findByName( "baz" ).credentials().matchesPassword( "changed" ) );
+        assertThat( store.findByName( "gone" ), nullValue() );
+        assertThat( context.users().contains( "new" ), equalTo( true ) );
+        assertThat( context.users().contains( "gone" ), equalTo( false ) );
+        assertThat( context.changes().last(), equalTo( 3L ) );
+        authFile.delete();
+    }
+
+    @Test
+    public void shouldChangeNothingIfAnyEntryIsInvalid() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+
+        UsernameIndex users = new UsernameIndex();
+        users.load( UserAddServiceTest.authFile( "neo4j:SHA-256,AB,CD:", "gone:SHA-256,AB,CD:" ) );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserSyncService userSyncService = new UserSyncService( authManager, new JsonFormat(), outputFormat,
+                new UserManagementContext( UserWriteCoalescer.inline(), users ) );
+
+        // When
+        Response response = userSyncService.syncUsersStreamed( false, req, new ByteArrayInputStream(
+                "{\"username\":\"new\",\"password\":\"pw\"}\n{\"username\":\"bad\"}\n".getBytes( "UTF-8" ) ) );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 422 ) );
+        verify( authManager, never() ).deleteUser( anyString() );
+        assertThat( users.contains( "gone" ), equalTo( true ) );
+    }
+
+    @Test
+    public void shouldRefuseToSyncTheNeo4jUser() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+
+        UsernameIndex users = new UsernameIndex();
+        users.load( UserAddServiceTest.authFile( "neo4j:SHA-256,AB,CD:" ) );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserSyncService userSyncService = new UserSyncService( authManager, new JsonFormat(), outputFormat,
+                new UserManagementContext( UserWriteCoalescer.inline(), users ) );
+
+        // When
+        Response response = userSyncService.syncUsers( false, req, "[ { \"username\" : \"neo4j\", \"password\" : \"pw\" } ]" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 422 ) );
+        verify( authManager, never() ).setPassword( anyString(), anyString() );
+    }
+
+    @Test
+    public void shouldRefuseAnEmptyListUnlessAllowed() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+
+        UsernameIndex users = new UsernameIndex();
+        users.load( UserAddServiceTest.authFile( "neo4j:SHA-256,AB,CD:", "foo:SHA-256,AB,CD:" ) );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserSyncService userSyncService = new UserSyncService( authManager, new JsonFormat(), outputFormat,
+                new UserManagementContext( UserWriteCoalescer.inline(), users ) );
+
+        // When
+        Response response = userSyncService.syncUsers( false, req, "[]" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 422 ) );
+        verify( authManager, never() ).deleteUser( anyString() );
+        assertThat( users.contains( "foo" ), equalTo( true ) );
+    }
+
+    @Test
+    public void shouldDeleteEveryUserButNeo4jForAnAllowedEmptyList() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.deleteUser( "foo" ) ).thenReturn( true );
+
+        UsernameIndex users = new UsernameIndex();
+        users.load( UserAddServiceTest.authFile( "neo4j:SHA-256,AB,CD:", "foo:SHA-256,AB,CD:" ) );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserSyncService userSyncService = new UserSyncService( authManager, new JsonFormat(), outputFormat,
+                new UserManagementContext( UserWriteCoalescer.inline(), users ) );
+
+        // When
+        Response response = userSyncService.syncUsers( true, req, "[]" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 200 ) );
+        verify( authManager ).deleteUser( "foo" );
+        verify( authManager, never() ).deleteUser( "neo4j" );
+        assertThat( users.contains( "foo" ), equalTo( false ) );
+    }
+
+    @Test
+    public void shouldReturn503IfIndexIsNotLoaded() throws Exception
+    {
+        // Given
+        HttpServletRequest req = mock( HttpServletRequest.class );
+        when( req.getUserPrincipal() ).thenReturn( NEO4J_PRINCIPLE );
+
+        OutputFormat outputFormat = new EntityOutputFormat( new JsonFormat(), new URI( "http://www.example.com" ), null );
+        UserSyncService userSyncService = new UserSyncService( mock( AuthManager.class ), new JsonFormat(), outputFormat,
+                UserManagementContext.inline() );
+
+        // When
+        Response response = userSyncService.syncUsers( false, req, "[]" );
+
+        // Then
+        assertThat( response.getStatus(), equalTo( 503 ) );
+    }
+}
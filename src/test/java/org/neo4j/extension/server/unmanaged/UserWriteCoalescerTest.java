@@ -0,0 +1,239 @@
+/**
+ * Licensed to Neo Technology under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Neo Technology licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.neo4j.extension.server.unmanaged;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.neo4j.server.security.auth.AuthManager;
+import org.neo4j.server.security.auth.Credential;
+import org.neo4j.server.security.auth.User;
+import org.neo4j.server.security.auth.exception.IllegalUsernameException;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.anyBoolean;
+import static org.mockito.Mockito.anyList;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test the group commit of user writes.
+ * @author Robin Bramley
+ */
+public class UserWriteCoalescerTest
+{
+    private static final User FOO_USER = new User( "foo", Credential.forPassword( "bar" ), true );
+
+    @Test
+    public void shouldApplyEveryQueuedWriteAndCompleteEachCaller() throws Exception
+    {
+        // Given
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.newUser( anyString(), anyString(), anyBoolean() ) ).thenReturn( FOO_USER );
+        when( authManager.deleteUser( "gone" ) ).thenReturn( true );
+
+        UserWriteCoalescer writes = UserWriteCoalescer.grouping( 5, 4, PasswordHashingExecutor.bounded( 2, 8, 1 ), 0 );
+        writes.start();
+
+        // When
+        writes.reserve( 10, false );
+        List<Future<User>> pending = new ArrayList<>();
+        for ( int i = 0; i < 10; i++ )
+        {
+            pending.add( writes.submitNewUser( authManager, "user" + i, "bar", true ) );
+        }
+        boolean deleted = writes.deleteUser( authManager, "gone" );
+
+        // Then
+        for ( Future<User> user : pending )
+        {
+            assertThat( writes.awaitUser( user ), equalTo( FOO_USER ) );
+        }
+        assertThat( deleted, equalTo( true ) );
+        verify( authManager, times( 10 ) ).newUser( anyString(), anyString(), anyBoolean() );
+        writes.stop();
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void shouldWriteEachGroupToStoreOnce() throws Exception
+    {
+        // Given
+        AuthManager authManager = mock( AuthManager.class );
+        UserStore store = mock( UserStore.class );
+        when( store.isValidName( anyString() ) ).thenReturn( true );
+        when( store.write( anyList() ) ).thenAnswer( new Answer<boolean[]>()
+        {
+            @Override
+            public boolean[] answer( InvocationOnMock invocation )
+            {
+                List<UserStore.Write> writes = (List<UserStore.Write>) invocation.getArguments()[0];
+                boolean[] expected = new boolean[writes.size()];
+                for ( int i = 0; i < expected.length; i++ )
+                {
+                    expected[i] = !writes.get( i ).username().equals( "taken" );
+                }
+                return expected;
+            }
+        } );
+
+        UserManagementMetrics metrics = new UserManagementMetrics();
+        UserWriteCoalescer writes = UserWriteCoalescer.grouping( 1000, 8, PasswordHashingExecutor.bounded( 2, 8, 1 ), 0 );
+        writes.attach( store );
+        writes.measure( metrics );
+        writes.start();
+
+        // When
+        writes.reserve( 8, false );
+        List<Future<User>> pending = new ArrayList<>();
+        for ( int i = 0; i < 7; i++ )
+        {
+            pending.add( writes.submitNewUser( authManager, "user" + i, "bar", true ) );
+        }
+        Future<User> taken = writes.submitNewUser( authManager, "taken", "bar", true );
+
+        // Then
+        for ( int i = 0; i < 7; i++ )
+        {
+            User user = writes.awaitUser( pending.get( i ) );
+            assertThat( user.name(), equalTo( "user" + i ) );
+            assertTrue( user.credentials().matchesPassword( "bar" ) );
+        }
+        try
+        {
+            writes.awaitUser( taken );
+            fail( "Expected the existing user to be refused" );
+        } catch ( IllegalUsernameException e )
+        {
+            assertThat( e.getMessage(), equalTo( "The specified user already exists" ) );
+        }
+        verify( store, times( 1 ) ).write( anyList() );
+        verify( authManager, never() ).newUser( anyString(), anyString(), anyBoolean() );
+        String exposition = metrics.toPrometheus();
+        assertThat( exposition, containsString( "useradd_latency_seconds_count{endpoint=\"group_commit\",phase=\"hash\"} 8" ) );
+        assertThat( exposition, containsString( "useradd_latency_seconds_count{endpoint=\"group_commit\",phase=\"persist\"} 1" ) );
+        writes.stop();
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void shouldFailQueuedAndLaterWritesOnceTheWriterStopsUnexpectedly() throws Exception
+    {
+        // Given
+        AuthManager authManager = mock( AuthManager.class );
+        UserStore store = mock( UserStore.class );
+        UserWriteCoalescer writes = UserWriteCoalescer.grouping( 5, 4, PasswordHashingExecutor.bounded( 1, 1, 1 ), 0 );
+        writes.attach( store );
+        writes.start();
+
+        // A write that does not hash runs on the writer thread
+        final AtomicReference<Thread> writer = new AtomicReference<>();
+        writes.awaitWrite( writes.submitWrite( new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+            {
+                writer.set( Thread.currentThread() );
+                return true;
+            }
+        }, false ) );
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        writes.reserve( 1, false );
+        Future<Boolean> handedOver = writes.submitWrite( new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call() throws InterruptedException
+            {
+                started.countDown();
+                release.await();
+                return true;
+            }
+        }, true );
+        started.await();
+        Future<Boolean> queued = writes.submitDeleteUser( authManager, "queued" );
+
+        // When
+        writer.get().interrupt();
+        writer.get().join( 5000 );
+        Future<Boolean> later = writes.submitDeleteUser( authManager, "later" );
+        release.countDown();
+
+        // Then
+        for ( Future<Boolean> refused : new Future[]{ queued, later } )
+        {
+            try
+            {
+                writes.awaitDeleted( refused );
+                fail( "Expected the write to fail" );
+            } catch ( IOException e )
+            {
+                assertThat( e.getMessage(), containsString( "writer has stopped" ) );
+            }
+        }
+        assertThat( writes.awaitWrite( handedOver ), equalTo( true ) );
+        verify( store, never() ).write( anyList() );
+        writes.stop();
+    }
+
+    @Test
+    public void shouldApplyWritesOnCallingThreadWhenInline() throws Exception
+    {
+        // Given
+        AuthManager authManager = mock( AuthManager.class );
+        when( authManager.newUser( "foo", "bar", true ) ).thenReturn( FOO_USER );
+
+        // When
+        User user = UserWriteCoalescer.inline().newUser( authManager, "foo", "bar", true );
+
+        // Then
+        assertThat( user, equalTo( FOO_USER ) );
+        verify( authManager ).newUser( "foo", "bar", true );
+    }
+
+    @Test( expected = RejectedExecutionException.class )
+    public void shouldRejectWhenHashingQueueIsFull() throws Exception
+    {
+        // Given
+        UserWriteCoalescer writes = UserWriteCoalescer.grouping( 5, 4, PasswordHashingExecutor.bounded( 1, 1, 1 ), 0 );
+        writes.reserve( 2, false );
+
+        // When
+        writes.reserve( 1, false );
+    }
+}